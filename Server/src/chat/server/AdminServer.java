@@ -0,0 +1,172 @@
+package chat.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Locale;
+
+/**
+ * Plain text metrics endpoint, on its own port bound to the loopback address.
+ * <p>
+ * {@code curl http://127.0.0.1:<admin port>/metrics} returns one {@code name value} line per metric,
+ * in the Prometheus text format, without touching the chat protocol or the reactors
+ */
+public class AdminServer {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final ChatServer server;
+
+    private final HttpServer http;
+
+    // The previous scrape, to turn the line counter into a rate
+    private long lastScrapeNanos, lastInboundLines;
+
+    public AdminServer(ChatServer server, int port) throws IOException {
+        this.server = server;
+        this.http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+
+        this.http.createContext("/metrics", this::handle);
+        this.lastScrapeNanos = System.nanoTime();
+    }
+
+    public void start() {
+        this.http.start();
+
+        Log.info("Admin endpoint listening on {}", this.http.getAddress());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = render().getBytes(ChatServer.charset);
+
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Render the current value of every metric
+     *
+     * @return The metrics, one per line
+     */
+    public synchronized String render() {
+        Metrics metrics = this.server.getMetrics();
+
+        long queued = 0, maxQueued = 0;
+
+        for (ClientHandler client : this.server.getClients().getClients()) {
+            long bytes = client.getOutbound().getBytes();
+
+            queued += bytes;
+            maxQueued = Math.max(maxQueued, bytes);
+        }
+
+        long now = System.nanoTime(), lines = metrics.getInboundLines();
+
+        double linesPerSecond = (lines - this.lastInboundLines) / Math.max(1e-9, (now - this.lastScrapeNanos) / 1e9);
+
+        this.lastScrapeNanos = now;
+        this.lastInboundLines = lines;
+
+        StringBuilder out = new StringBuilder(1024);
+
+        line(out, "chat_connections", this.server.getClients().size());
+        long rooms = 0, backlog = 0;
+
+        for (RoomShard shard : this.server.getRoomShards()) {
+            rooms += shard.getRooms().size();
+            backlog += shard.getRooms().getBacklogSize();
+        }
+
+        line(out, "chat_rooms", rooms);
+        line(out, "chat_room_backlog_bytes", backlog);
+        line(out, "chat_accepts_total", metrics.getAccepts());
+        line(out, "chat_disconnects_total", metrics.getDisconnects());
+
+        for (Admission.Reason reason : Admission.Reason.values()) {
+            out.append("chat_rejected_connections_total{reason=\"").append(reason.name().toLowerCase(Locale.ROOT))
+                    .append("\"} ").append(metrics.getRejected(reason)).append('\n');
+        }
+
+        line(out, "chat_idle_disconnects_total", metrics.getIdleDisconnects());
+        line(out, "chat_inbound_lines_total", lines);
+        out.append("chat_inbound_lines_per_second ").append(String.format(Locale.ROOT, "%.1f", linesPerSecond)).append('\n');
+        line(out, "chat_outbound_bytes_total", metrics.getOutboundBytes());
+        line(out, "chat_outbound_frames_total", metrics.getOutboundFrames());
+        line(out, "chat_outbound_writes_total", metrics.getOutboundWrites());
+        line(out, "chat_outbound_queued_bytes", queued);
+        line(out, "chat_outbound_queued_bytes_max", maxQueued);
+        line(out, "chat_outbound_dropped_frames_total", metrics.getDroppedFrames());
+        line(out, "chat_log_dropped_total", Log.getDropped());
+
+        RoomShard[] shards = this.server.getRoomShards();
+
+        for (int i = 0; i < shards.length; i++) {
+            out.append("chat_room_shard_queued{shard=\"").append(i).append("\"} ").append(shards[i].getQueued()).append('\n');
+        }
+
+        line(out, "chat_room_mailbox_full_total", metrics.getMailboxFull());
+
+        for (FloodControl.Kind kind : FloodControl.Kind.values()) {
+            String label = "{kind=\"" + kind.name().toLowerCase(Locale.ROOT) + "\"} ";
+
+            out.append("chat_flood_refused_total").append(label).append(metrics.getFloodRefused(kind)).append('\n');
+            out.append("chat_flood_paused_total").append(label).append(metrics.getFloodPaused(kind)).append('\n');
+        }
+
+        long compressionInput = metrics.getCompressionInput();
+
+        line(out, "chat_compression_input_bytes_total", compressionInput);
+        line(out, "chat_compression_output_bytes_total", metrics.getCompressionOutput());
+        line(out, "chat_compression_skipped_bytes_total", metrics.getCompressionSkipped());
+        out.append("chat_compression_ratio ").append(String.format(Locale.ROOT, "%.3f",
+                compressionInput == 0 ? 1.0 : metrics.getCompressionOutput() / (double) compressionInput)).append('\n');
+        out.append("chat_compression_seconds_total ").append(String.format(Locale.ROOT, "%.6f", metrics.getCompressionNanos() / 1e9)).append('\n');
+
+        if (this.server.getHistory() != null) {
+            line(out, "chat_history_dropped_total", this.server.getHistory().getDropped());
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+
+        line(out, "chat_heap_used_bytes", runtime.totalMemory() - runtime.freeMemory());
+        line(out, "chat_pool_allocated_bytes", this.server.getBufferPool().getAllocated());
+        line(out, "chat_pool_borrowed_bytes", this.server.getBufferPool().getBorrowed());
+
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                line(out, "chat_direct_used_bytes", pool.getMemoryUsed());
+            }
+        }
+
+        histogram(out, "chat_fanout_recipients", metrics.getFanOut(), 1);
+        histogram(out, "chat_delivery_latency_seconds", metrics.getDeliveryLatency(), 1e9);
+
+        return out.toString();
+    }
+
+    private static void line(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder out, String name, Histogram histogram, double scale) {
+        for (double quantile : QUANTILES) {
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.getPercentile(quantile) / scale).append('\n');
+        }
+
+        out.append(name).append("_max ").append(histogram.getMax() / scale).append('\n');
+        out.append(name).append("_sum ").append(histogram.getSum() / scale).append('\n');
+        out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+    }
+
+}
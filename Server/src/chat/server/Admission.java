@@ -0,0 +1,121 @@
+package chat.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which of the accepted connections are let in, so that a reconnect storm, or a single host,
+ * can't take more connections than the server is sized for.
+ * <p>
+ * A connection over a cap is reset right after it's accepted: no client is created for it and nothing is
+ * logged, a SO_LINGER of 0 makes the close send a RST instead of leaving the socket in TIME_WAIT. The
+ * connections are counted in by the acceptor, the only thread that admits them, and counted out by
+ * whichever thread deletes the client
+ */
+public final class Admission {
+
+    /**
+     * Why a connection was refused
+     */
+    public enum Reason {
+        /**
+         * The server has as many clients as it may have
+         */
+        FULL,
+        /**
+         * The remote address has as many clients as it may have
+         */
+        ADDRESS
+    }
+
+    private final int maxConnections, maxPerAddress;
+
+    private final Metrics metrics;
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    // Connections per remote address, only counted if they're capped
+    private final Map<InetAddress, Integer> perAddress = new ConcurrentHashMap<>();
+
+    /**
+     * @param config  Where the caps are read from
+     * @param metrics Where the refused connections are counted
+     */
+    public Admission(ServerConfig config, Metrics metrics) {
+        this.maxConnections = config.getMaxConnections();
+        this.maxPerAddress = config.getMaxConnectionsPerAddress();
+        this.metrics = metrics;
+    }
+
+    /**
+     * Check if an accepted connection can be let in, and count it if it can.
+     * <p>
+     * Only called by the acceptor
+     *
+     * @param socket The connection
+     * @return The remote address to hand back to {@link #release(InetAddress)}, null if the connection is refused,
+     * in which case it's already closed
+     */
+    public InetAddress admit(SocketChannel socket) throws IOException {
+        if (this.maxConnections > 0 && this.connections.get() >= this.maxConnections) {
+            return reject(socket, Reason.FULL);
+        }
+
+        InetAddress address = ((InetSocketAddress) socket.getRemoteAddress()).getAddress();
+
+        if (this.maxPerAddress > 0 && this.perAddress.merge(address, 1, Integer::sum) > this.maxPerAddress) {
+            releaseAddress(address);
+
+            return reject(socket, Reason.ADDRESS);
+        }
+
+        this.connections.incrementAndGet();
+
+        return address;
+    }
+
+    /**
+     * Count out a connection that was let in
+     *
+     * @param address The remote address {@link #admit(SocketChannel)} returned for it
+     */
+    public void release(InetAddress address) {
+        this.connections.decrementAndGet();
+
+        if (this.maxPerAddress > 0) {
+            releaseAddress(address);
+        }
+    }
+
+    private void releaseAddress(InetAddress address) {
+        this.perAddress.computeIfPresent(address, (key, count) -> count == 1 ? null : count - 1);
+    }
+
+    private InetAddress reject(SocketChannel socket, Reason reason) throws IOException {
+        this.metrics.rejected(reason);
+
+        try {
+            socket.setOption(StandardSocketOptions.SO_LINGER, 0);
+        } finally {
+            socket.close();
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the amount of connections that were let in and haven't been released
+     *
+     * @return The amount
+     */
+    public int getConnections() {
+        return this.connections.get();
+    }
+
+}
@@ -0,0 +1,234 @@
+package chat.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the bytes received from a binary client into frames, see {@link BinaryProtocol}.
+ * <p>
+ * Frames that arrive in a single read are handled straight out of the read buffer, only the
+ * incomplete tail of a read is copied and kept until the next one
+ */
+public class BinaryDecoder implements Decoder {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final int maxFrameLength;
+
+    // The start of a frame whose end we haven't received yet, only allocated while there's one
+    private byte[] partial;
+
+    private int partialLength;
+
+    // The bytes of a frame that went over the limit that are still to be skipped
+    private int discarding;
+
+    /**
+     * @param maxLineLength The longest line of the text protocol, the frames can be up to 4 times that, as UTF-8
+     */
+    public BinaryDecoder(int maxLineLength) {
+        this.maxFrameLength = maxLineLength * 4 + 16;
+    }
+
+    @Override
+    public void decode(ByteBuffer buffer, ClientHandler client) {
+        ByteBuffer data = buffer;
+
+        if (this.partialLength > 0) {
+            append(buffer);
+
+            data = ByteBuffer.wrap(this.partial, 0, this.partialLength);
+        }
+
+        while (data.hasRemaining()) {
+            if (this.discarding > 0) {
+                int skipped = Math.min(this.discarding, data.remaining());
+
+                data.position(data.position() + skipped);
+                this.discarding -= skipped;
+                continue;
+            }
+
+            int start = data.position(), length = BinaryProtocol.getVarint(data);
+
+            if (length < 0) {
+                break;
+            }
+
+            if (length == 0) {
+                client.sendMessage(ClientHandler.ERROR_FRAME);
+                continue;
+            }
+
+            if (length > this.maxFrameLength) {
+                this.discarding = length;
+
+                client.lineTooLong();
+                continue;
+            }
+
+            if (data.remaining() < length) {
+                data.position(start);
+                break;
+            }
+
+            int end = data.position() + length;
+
+            handle(data, end, client);
+
+            data.position(end);
+
+            if (client.isClosed()) {
+                // The frame disconnected the client (QUIT), ignore whatever came after it
+                this.partial = null;
+                this.partialLength = 0;
+                buffer.position(buffer.limit());
+                return;
+            }
+        }
+
+        // Whatever is left is the start of a frame, keep it for the next read
+        if (data == buffer) {
+            if (buffer.hasRemaining()) {
+                append(buffer);
+            }
+        } else if (data.hasRemaining()) {
+            System.arraycopy(this.partial, data.position(), this.partial, 0, data.remaining());
+
+            this.partialLength = data.remaining();
+        } else {
+            // Only held while a frame is incomplete, an idle client keeps none
+            this.partial = null;
+            this.partialLength = 0;
+        }
+    }
+
+    /**
+     * Handle the frame between the position of the buffer and the end
+     */
+    private void handle(ByteBuffer data, int end, ClientHandler client) {
+        int bytes = end - data.position();
+
+        byte opcode = data.get();
+
+        // The private messages are checked once past the length of their nick, which could be a 10 or a 13
+        if (opcode != BinaryProtocol.SEND_PRIVATE && hasLineBreak(data, end)) {
+            client.sendMessage(ClientHandler.ERROR_FRAME);
+            return;
+        }
+
+        if (opcode == BinaryProtocol.COMMAND) {
+            // Counted and traced with the lines
+            client.receiveFinalMessage(text(data, end));
+            return;
+        }
+
+        ChatServer.getInstance().getMetrics().lineReceived();
+
+        Tracing.ParseEvent event = Tracing.parse(client);
+
+        dispatch(opcode, data, end, client);
+
+        if (event != null) {
+            Tracing.commit(event, client, command(opcode), bytes);
+        }
+    }
+
+    private void dispatch(byte opcode, ByteBuffer data, int end, ClientHandler client) {
+        switch (opcode) {
+            case BinaryProtocol.NICK -> client.receiveName(text(data, end));
+            case BinaryProtocol.JOIN -> client.receiveRoom(text(data, end));
+            case BinaryProtocol.LEAVE -> client.setCurrentChatRoom(null);
+            case BinaryProtocol.SEND -> client.receiveChatMessage(text(data, end));
+            case BinaryProtocol.SEND_PRIVATE -> {
+                int length = BinaryProtocol.getVarint(data);
+
+                if (length <= 0 || length >= end - data.position() || hasLineBreak(data, end)) {
+                    client.sendMessage(ClientHandler.ERROR_FRAME);
+                    return;
+                }
+
+                String dest = text(data, data.position() + length);
+
+                data.position(data.position() + length);
+
+                client.receivePrivateMessage(dest, text(data, end));
+            }
+            case BinaryProtocol.QUIT -> ChatServer.getInstance().deleteClient(client);
+            default -> client.sendMessage(ClientHandler.ERROR_FRAME);
+        }
+    }
+
+    /**
+     * Get the name of the command of a frame, as in the text protocol, for the parse events
+     */
+    private static String command(byte opcode) {
+        return switch (opcode) {
+            case BinaryProtocol.NICK -> "nick";
+            case BinaryProtocol.JOIN -> "join";
+            case BinaryProtocol.LEAVE -> "leave";
+            case BinaryProtocol.SEND -> "message";
+            case BinaryProtocol.SEND_PRIVATE -> "priv";
+            case BinaryProtocol.QUIT -> "bye";
+            default -> "unknown";
+        };
+    }
+
+    /**
+     * Check if the rest of a frame has a CR or a LF in it. Whatever a binary client sends is relayed to the
+     * text clients as lines, the federation peers and the history as well, so a line break would let it
+     * send lines of its own. Neither byte is ever part of a multi byte character in UTF-8
+     *
+     * @param data The frame, from its position
+     * @param end  The end of the frame
+     * @return true if the frame has to be refused
+     */
+    private static boolean hasLineBreak(ByteBuffer data, int end) {
+        byte[] array = data.array();
+
+        for (int i = data.arrayOffset() + data.position(), last = data.arrayOffset() + end; i < last; i++) {
+            if (array[i] == '\n' || array[i] == '\r') {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Get the amount of bytes of an incomplete frame that are being held
+     *
+     * @return The amount of bytes
+     */
+    public int getPending() {
+        return this.partialLength;
+    }
+
+    private static String text(ByteBuffer data, int end) {
+        return new String(data.array(), data.arrayOffset() + data.position(), end - data.position(), ChatServer.charset);
+    }
+
+    private void append(ByteBuffer buffer) {
+        int required = this.partialLength + buffer.remaining();
+
+        if (this.partial == null || this.partial.length < required) {
+            int capacity = this.partial == null ? INITIAL_CAPACITY : this.partial.length;
+
+            while (capacity < required) {
+                capacity *= 2;
+            }
+
+            byte[] partial = new byte[capacity];
+
+            if (this.partialLength > 0) {
+                System.arraycopy(this.partial, 0, partial, 0, this.partialLength);
+            }
+
+            this.partial = partial;
+        }
+
+        buffer.get(this.partial, this.partialLength, buffer.remaining());
+
+        this.partialLength = required;
+    }
+
+}
@@ -0,0 +1,153 @@
+package chat.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The binary framing a client can switch to with {@code /protocol binary}, as the first thing it sends.
+ * <p>
+ * Every frame is its length, as an unsigned varint, followed by that many bytes: an opcode and its payload.
+ * Text is UTF-8 and always runs to the end of the frame, so it's neither escaped nor terminated. The users
+ * are referred to by a number instead of their nick; a NAME frame tells the client the nick behind a number
+ * before the first frame that uses it. A number always stands for the same nick, a user that changes
+ * nicks gets a new one
+ */
+public final class BinaryProtocol {
+
+    // From the server
+    public static final byte OK = 1,
+            ERROR = 2,
+            BYE = 3,
+            // [id][nick]
+            NAME = 4,
+            // [id][text]
+            MESSAGE = 5,
+            // [id][text]
+            PRIVATE = 6,
+            // [id]
+            JOINED = 7,
+            // [id]
+            LEFT = 8,
+            // [old id][new id]
+            NEW_NICK = 9,
+            // [line], any other line of the text protocol, without its line feed
+            TEXT = 10,
+            // The reply to /ping
+            PONG = 11;
+
+    // From the client
+    public static final byte NICK = 16,
+            JOIN = 17,
+            LEAVE = 18,
+            // [text], never a command, whatever it starts with
+            SEND = 19,
+            // [length of the nick][nick][text]
+            SEND_PRIVATE = 20,
+            QUIT = 21,
+            // [line], handled like a line of the text protocol
+            COMMAND = 22;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Get the amount of bytes a value takes as a varint
+     *
+     * @param value The value, not negative
+     * @return The amount of bytes
+     */
+    public static int varintSize(int value) {
+        int size = 1;
+
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+
+        return size;
+    }
+
+    /**
+     * Write a value as an unsigned varint, 7 bits per byte starting with the lowest ones
+     *
+     * @param buffer The buffer
+     * @param value  The value, not negative
+     */
+    public static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Read an unsigned varint
+     *
+     * @param buffer The buffer, positioned at the varint
+     * @return The value, -1 if the buffer ends before the varint does, in which case nothing is consumed, or
+     * {@link Integer#MAX_VALUE} if it's longer than any int
+     */
+    public static int getVarint(ByteBuffer buffer) {
+        int start = buffer.position(), value = 0;
+
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                buffer.position(start);
+                return -1;
+            }
+
+            byte b = buffer.get();
+
+            // The 5th byte only has room for the last 3 bits of a positive int: more bytes, more bits, or the
+            // sign bit, which would come out as the -1 of an incomplete varint, or as another negative length
+            if (shift == 28 && (b & 0xF8) != 0) {
+                return Integer.MAX_VALUE;
+            }
+
+            value |= (b & 0x7F) << shift;
+
+            if (b >= 0) {
+                return value;
+            }
+        }
+
+        // Not reached, the 5th byte either ends the varint or is refused
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Encode a frame
+     *
+     * @param opcode The opcode
+     * @param first  The first id, ignored if 0
+     * @param second The second id, ignored if 0
+     * @param text   The text at the end of the frame, may be null
+     * @return The frame, ready to be written
+     */
+    static ByteBuffer encode(byte opcode, int first, int second, String text) {
+        byte[] bytes = text == null ? null : text.getBytes(ChatServer.charset);
+
+        int length = 1 + (first == 0 ? 0 : varintSize(first)) + (second == 0 ? 0 : varintSize(second))
+                + (bytes == null ? 0 : bytes.length);
+
+        ByteBuffer buffer = ByteBuffer.allocate(varintSize(length) + length);
+
+        putVarint(buffer, length);
+        buffer.put(opcode);
+
+        if (first != 0) {
+            putVarint(buffer, first);
+        }
+
+        if (second != 0) {
+            putVarint(buffer, second);
+        }
+
+        if (bytes != null) {
+            buffer.put(bytes);
+        }
+
+        return buffer.flip().asReadOnlyBuffer();
+    }
+
+}
@@ -0,0 +1,259 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a single client with blocking reads and writes, each on its own virtual thread.
+ * <p>
+ * The reader owns the client the way a reactor owns its clients: every line is handled, and the client
+ * is torn down, on the reader. The writer sleeps until output is queued and writes it a pooled buffer at a time,
+ * outside of the queue's lock, so a slow socket only ever blocks its own writer
+ */
+public class BlockingConnection implements Transport {
+
+    // Lines are decoded straight out of it, so it only has to be big enough to make the reads worth it
+    private static final int READ_BUFFER = 4096;
+
+    // How long a client that is being closed gets to take the output that is still queued for it
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private final ChatServer server;
+
+    private final SocketChannel socket;
+
+    private final ClientHandler client;
+
+    private final Thread reader, writer;
+
+    // Set once the client has been removed from the server, the writer writes what's left and stops
+    private volatile boolean closing;
+
+    // When the reader can read again after the flood control paused it, only touched by the reader
+    private long resumeNanos;
+
+    private boolean paused;
+
+    public BlockingConnection(ChatServer server, SocketChannel socket) {
+        this.server = server;
+        this.socket = socket;
+        this.client = new ClientHandler(socket, this);
+        this.reader = Thread.ofVirtual().unstarted(this::read);
+        this.writer = Thread.ofVirtual().unstarted(this::write);
+    }
+
+    public void start() {
+        this.writer.start();
+        this.reader.start();
+    }
+
+    /**
+     * Get the client driven by this connection
+     *
+     * @return The client
+     */
+    public ClientHandler getClient() {
+        return this.client;
+    }
+
+    @Override
+    public boolean inOwnerThread() {
+        return Thread.currentThread() == this.reader;
+    }
+
+    @Override
+    public void disconnect(ClientHandler client) {
+        try {
+            // Wakes up the reader with the end of the stream, which then tears the client down
+            this.socket.shutdownInput();
+        } catch (IOException e) {
+            // Already closed, the reader is on its way out
+        }
+    }
+
+    @Override
+    public void requestFlush(ClientHandler client) {
+        LockSupport.unpark(this.writer);
+    }
+
+    @Override
+    public void pauseReads(ClientHandler client, long resumeNanos) {
+        this.paused = true;
+        this.resumeNanos = resumeNanos;
+    }
+
+    @Override
+    public void close(ClientHandler client) {
+        this.closing = true;
+
+        LockSupport.unpark(this.writer);
+    }
+
+    private void read() {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER);
+
+        try {
+            while (!this.closing) {
+                long wait;
+
+                // The unread input piles up in the socket, until the client can't send any more
+                while (this.paused && (wait = this.resumeNanos - System.nanoTime()) > 0 && !this.closing) {
+                    LockSupport.parkNanos(this, wait);
+                }
+
+                this.paused = false;
+
+                buffer.clear();
+
+                if (this.socket.read(buffer) < 0) {
+                    break;
+                }
+
+                buffer.flip();
+
+                if (buffer.hasRemaining()) {
+                    // Timed from the end of the read, the blocking read mostly waits for the client
+                    Tracing.ReadEvent event = Tracing.read();
+
+                    int bytes = buffer.remaining();
+
+                    this.client.receive(buffer);
+
+                    Tracing.commit(event, bytes);
+                }
+
+                // Virtual threads aren't preempted, a client that always has more input would
+                // otherwise keep the writers it just woke up from running on this carrier
+                Thread.yield();
+            }
+        } catch (IOException e) {
+            // Reset by the client, or closed by the writer after a failed write
+        }
+
+        this.server.deleteClient(this.client);
+
+        try {
+            // A client that doesn't read would keep the writer blocked forever
+            this.writer.join(CLOSE_TIMEOUT_MILLIS);
+
+            this.socket.close();
+        } catch (InterruptedException | IOException e) {
+            Log.error("Failed to close the connection of {}", e, this.client.getName());
+        }
+    }
+
+    /**
+     * Write the queued frames through buffers borrowed from the pool, as many frames at a time as fit
+     *
+     * @return The bytes written
+     */
+    private long drain(OutboundQueue outbound, Metrics metrics) throws IOException {
+        BufferPool pool = this.server.getBufferPool();
+
+        ByteBuffer buffer;
+
+        long written = 0;
+
+        while (!outbound.isEmpty() && (buffer = pool.borrow((int) Math.min(outbound.getBytes(), BufferPool.MAX_SIZE))) != null) {
+            try {
+                int frames = outbound.drainTo(buffer);
+
+                if (buffer.position() == 0) {
+                    // Only frames to compress are left
+                    return written;
+                }
+
+                buffer.flip();
+
+                int size = buffer.remaining();
+
+                while (buffer.hasRemaining()) {
+                    this.socket.write(buffer);
+                }
+
+                metrics.written(size, frames);
+
+                written += size;
+            } finally {
+                pool.release(buffer);
+            }
+        }
+
+        return written;
+    }
+
+    private void write() {
+        OutboundQueue outbound = this.client.getOutbound();
+
+        Metrics metrics = this.server.getMetrics();
+
+        ByteBuffer[] head = new ByteBuffer[1];
+
+        try {
+            while (true) {
+                // Read before draining, so the output queued before the close is always written
+                boolean closing = this.closing;
+
+                Tracing.WriteEvent event = Tracing.write();
+
+                long written = drain(outbound, metrics);
+
+                Frame frame;
+
+                // Whatever the pool had no buffer for, a frame at a time
+                while ((frame = outbound.poll(head)) != null) {
+                    try {
+                        ByteBuffer view = head[0];
+
+                        int size = view.remaining();
+
+                        while (view.hasRemaining()) {
+                            this.socket.write(view);
+                        }
+
+                        metrics.written(size, 1);
+
+                        written += size;
+                    } finally {
+                        frame.release();
+                    }
+                }
+
+                ByteBuffer chunk;
+
+                while ((chunk = outbound.pollChunk()) != null) {
+                    int size = chunk.remaining();
+
+                    while (chunk.hasRemaining()) {
+                        this.socket.write(chunk);
+                    }
+
+                    metrics.written(size, outbound.getChunkFrames());
+
+                    written += size;
+                }
+
+                Tracing.commit(event, written);
+
+                if (closing) {
+                    break;
+                }
+
+                LockSupport.park(this);
+            }
+        } catch (IOException e) {
+            Log.debug("Failed to write to {}", this.client.getName());
+        } finally {
+            try {
+                // Also wakes up the reader if the write failed
+                this.socket.close();
+            } catch (IOException ignored) {
+            }
+
+            outbound.clear();
+        }
+    }
+
+}
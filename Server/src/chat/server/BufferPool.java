@@ -0,0 +1,154 @@
+package chat.server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of direct buffers in size classes, that the output to the clients is copied into to be written.
+ * <p>
+ * A socket can only be written from native memory: given a heap buffer, the JDK copies it into a temporary
+ * direct buffer of its own, one for every buffer of a gathering write, and throws away the ones it doesn't
+ * cache. The pool carves its buffers out of slabs, each slab cut into buffers of one class, and the slabs
+ * are never freed: a returned buffer goes back to the free list of its class for the next writer.
+ * <p>
+ * The buffers are only borrowed for as long as there are bytes in them to write, so a connection with
+ * nothing to write holds none. Once the slabs reach the limit, {@link #borrow(int)} returns null and the
+ * caller writes from the heap instead
+ */
+public final class BufferPool {
+
+    public static final int MIN_SIZE = 1024, MAX_SIZE = 64 * 1024;
+
+    private static final int SLAB = 1024 * 1024;
+
+    /**
+     * The free buffers of one size class
+     */
+    private static final class SizeClass {
+
+        private final int size;
+
+        private ByteBuffer[] free = new ByteBuffer[16];
+
+        private int count;
+
+        SizeClass(int size) {
+            this.size = size;
+        }
+
+    }
+
+    private final long limit;
+
+    private final SizeClass[] classes;
+
+    private final AtomicLong allocated = new AtomicLong();
+
+    private final LongAdder borrowed = new LongAdder();
+
+    /**
+     * @param limit The most bytes of slabs, 0 for none
+     */
+    public BufferPool(long limit) {
+        this.limit = limit;
+        this.classes = new SizeClass[Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1];
+
+        for (int i = 0; i < this.classes.length; i++) {
+            this.classes[i] = new SizeClass(MIN_SIZE << i);
+        }
+    }
+
+    /**
+     * Borrow a buffer, cleared
+     *
+     * @param size The bytes needed, a bigger buffer may be returned; past {@link #MAX_SIZE} only that much
+     * @return The buffer, null if the pool is exhausted
+     */
+    public ByteBuffer borrow(int size) {
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.min(Math.max(size, 1), MAX_SIZE) - 1),
+                index = Math.max(0, bits - Integer.numberOfTrailingZeros(MIN_SIZE));
+
+        SizeClass sizeClass = this.classes[index];
+
+        ByteBuffer buffer;
+
+        synchronized (sizeClass) {
+            if (sizeClass.count == 0 && !addSlab(sizeClass)) {
+                return null;
+            }
+
+            buffer = sizeClass.free[--sizeClass.count];
+            sizeClass.free[sizeClass.count] = null;
+        }
+
+        this.borrowed.add(buffer.capacity());
+
+        return buffer.clear();
+    }
+
+    /**
+     * Give a buffer back, it mustn't be used afterwards
+     *
+     * @param buffer The buffer, from {@link #borrow(int)}
+     */
+    public void release(ByteBuffer buffer) {
+        SizeClass sizeClass = this.classes[Integer.numberOfTrailingZeros(buffer.capacity() / MIN_SIZE)];
+
+        this.borrowed.add(-buffer.capacity());
+
+        synchronized (sizeClass) {
+            sizeClass.free[sizeClass.count++] = buffer;
+        }
+    }
+
+    /**
+     * Cut a new slab into buffers of a class, with the class's lock held
+     *
+     * @return false if the limit has been reached
+     */
+    private boolean addSlab(SizeClass sizeClass) {
+        long allocated;
+
+        do {
+            allocated = this.allocated.get();
+
+            if (allocated + SLAB > this.limit) {
+                return false;
+            }
+        } while (!this.allocated.compareAndSet(allocated, allocated + SLAB));
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(SLAB);
+
+        int buffers = SLAB / sizeClass.size;
+
+        // Room for every buffer of the class to come back
+        sizeClass.free = Arrays.copyOf(sizeClass.free, Math.max(sizeClass.free.length, (int) ((allocated + SLAB) / sizeClass.size)));
+
+        for (int i = 0; i < buffers; i++) {
+            sizeClass.free[sizeClass.count++] = slab.slice(i * sizeClass.size, sizeClass.size);
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the direct memory taken by the slabs
+     *
+     * @return The bytes
+     */
+    public long getAllocated() {
+        return this.allocated.get();
+    }
+
+    /**
+     * Get the capacity of the buffers that are borrowed
+     *
+     * @return The bytes
+     */
+    public long getBorrowed() {
+        return this.borrowed.sum();
+    }
+
+}
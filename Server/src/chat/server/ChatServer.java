@@ -0,0 +1,750 @@
+package chat.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+public class ChatServer {
+
+    /**
+     * How the connections are driven
+     */
+    public enum IoMode {
+        /**
+         * Non-blocking channels multiplexed on a few selector threads, see {@link Reactor}
+         */
+        REACTOR,
+        /**
+         * Blocking reads and writes on virtual threads, see {@link BlockingConnection}
+         */
+        VIRTUAL
+    }
+
+    // How long the acceptor waits after a failed accept, for file descriptors to free up
+    private static final long ACCEPT_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static ChatServer ins;
+
+    public static ChatServer getInstance() {
+        return ins;
+    }
+
+    // Decoder for incoming text -- assume UTF-8
+    static public final Charset charset = StandardCharsets.UTF_8;
+
+    private final ServerConfig config;
+
+    private Selector selector;
+
+    private Reactor[] reactors;
+
+    private int nextReactor;
+
+    // Shared by every reactor, so these have to be safe for concurrent access
+    private final ClientRegistry clients;
+
+    // Every room is owned by one of the shards, see shardOf
+    private final RoomShard[] shards;
+
+    private final Metrics metrics = new Metrics();
+
+    // The direct buffers the output is written from
+    private final BufferPool bufferPool;
+
+    // Which of the accepted connections are let in
+    private final Admission admission;
+
+    // Null unless a directory is configured for it
+    private MessageLog history;
+
+    // Null unless this node is linked to other servers
+    private Federation federation;
+
+    // Null if silent clients are kept forever
+    private IdleWheel idle;
+
+    public ChatServer(int port) {
+        this(ServerConfig.fromSystemProperties(port));
+    }
+
+    public ChatServer(ServerConfig config) {
+        ins = this;
+        this.config = config;
+
+        Tracing.setSampleRate(config.getTraceSampleRate());
+
+        this.clients = new ClientRegistry();
+        this.bufferPool = new BufferPool(config.getBufferPoolLimit());
+        this.admission = new Admission(config, this.metrics);
+        this.shards = new RoomShard[config.getRoomShards()];
+
+        for (int i = 0; i < this.shards.length; i++) {
+            this.shards[i] = new RoomShard(i, new RoomRegistry(config.getBacklogMessages(), config.getBacklogBytes(),
+                    config.getBacklogBudget() / this.shards.length), config.getRoomMailbox(), this.metrics);
+        }
+    }
+
+    /**
+     * Start the reactors and accept connections, on the calling thread, until the server stops
+     */
+    public void start() {
+        try {
+            Log.start(config.getLogLevel(), config.getLogFile(), config.getLogBuffer());
+
+            if (config.getHistoryDirectory() != null) {
+                this.history = new MessageLog(Path.of(config.getHistoryDirectory()), config.getHistorySegmentSize(),
+                        config.getHistorySyncMillis(), config.getHistoryRetentionBytes(), config.getHistoryRetentionMillis(),
+                        config.getLogBuffer());
+
+                this.history.start();
+            }
+
+            if (config.getFederationPort() > 0) {
+                InetSocketAddress federationAddress = config.getFederationBindAddress() == null
+                        ? new InetSocketAddress(InetAddress.getLoopbackAddress(), config.getFederationPort())
+                        : new InetSocketAddress(config.getFederationBindAddress(), config.getFederationPort());
+
+                this.federation = new Federation(this, config.getNodeId(), federationAddress, config.getFederationSecret(),
+                        config.getPeers());
+
+                for (RoomShard shard : this.shards) {
+                    shard.getRooms().setListener(this.federation);
+                }
+
+                this.federation.start();
+            }
+
+            for (RoomShard shard : this.shards) {
+                shard.start();
+            }
+
+            Log.info("Started {} room shards", this.shards.length);
+
+            if (config.getIdleTimeoutMillis() > 0) {
+                this.idle = new IdleWheel(this, config.getIdleTimeoutMillis(), config.getIdleTickMillis());
+                this.idle.start();
+            }
+
+            if (config.getIoMode() == IoMode.REACTOR) {
+                startReactors();
+            }
+
+            if (config.getAdminPort() > 0) {
+                new AdminServer(this, config.getAdminPort()).start();
+            }
+
+            if (config.getIoMode() == IoMode.REACTOR) {
+                acceptConnections(config.getPort());
+            } else {
+                acceptBlockingConnections(config.getPort());
+            }
+        } catch (IOException e) {
+            Log.error("The server stopped", e);
+        }
+    }
+
+    private void startReactors() throws IOException {
+        this.reactors = new Reactor[config.getReactors()];
+
+        for (int i = 0; i < this.reactors.length; i++) {
+            this.reactors[i] = new Reactor(this, i);
+            this.reactors[i].start();
+        }
+
+        Log.info("Started {} reactors", this.reactors.length);
+    }
+
+    private void acceptConnections(int port) throws IOException {
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+
+        ssc.configureBlocking(false);
+        ssc.bind(new InetSocketAddress(port), config.getAcceptBacklog());
+
+        this.selector = Selector.open();
+
+        ssc.register(selector, SelectionKey.OP_ACCEPT);
+        Log.info("Listening on port: {}", port);
+
+        // The reactors that were handed a connection in the current batch
+        boolean[] handed = new boolean[this.reactors.length];
+
+        while (true) {
+
+            if (selector.select() == 0) {
+                continue;
+            }
+
+            // The only key is the server socket's
+            selector.selectedKeys().clear();
+
+            // Accept until the backlog is empty or the batch is full, in which case the key is selected again
+            // right away. The reactors start reading from a batch while the next one is accepted
+            for (int i = 0; i < config.getAcceptBatch(); i++) {
+                SocketChannel sc;
+
+                try {
+                    sc = ssc.accept();
+                } catch (IOException e) {
+                    // Most likely out of file descriptors, the connections wait in the backlog until some are closed
+                    Log.error("Failed to accept a connection", e);
+
+                    LockSupport.parkNanos(ACCEPT_RETRY_NANOS);
+                    break;
+                }
+
+                if (sc == null) {
+                    break;
+                }
+
+                int reactor = this.nextReactor;
+
+                if (accept(sc)) {
+                    handed[reactor] = true;
+                }
+            }
+
+            for (int i = 0; i < handed.length; i++) {
+                if (handed[i]) {
+                    handed[i] = false;
+
+                    this.reactors[i].wakeup();
+                }
+            }
+        }
+    }
+
+    /**
+     * Let an accepted connection in and hand it to the next reactor, without waking the reactor up
+     *
+     * @param sc The connection
+     * @return false if it was refused
+     */
+    private boolean accept(SocketChannel sc) {
+        InetAddress address = null;
+
+        try {
+            address = this.admission.admit(sc);
+
+            if (address == null) {
+                return false;
+            }
+
+            // Make sure to make it non-blocking, so we can use a selector on it
+            sc.configureBlocking(false);
+        } catch (IOException e) {
+            Log.error("Failed to set up the connection {}", e, sc);
+
+            abandon(sc, address);
+            return false;
+        }
+
+        Log.debug("Got connection from {}", sc);
+
+        this.metrics.accepted();
+
+        // Hand it to one of the reactors, which will listen for input on it
+        Reactor reactor = nextReactor();
+
+        ClientHandler clientHandler = new ClientHandler(sc, reactor);
+
+        clientHandler.setAddress(address);
+
+        this.clients.add(clientHandler);
+
+        if (this.idle != null) {
+            this.idle.add(clientHandler);
+        }
+
+        reactor.enqueue(clientHandler);
+        return true;
+    }
+
+    /**
+     * Close a connection that was accepted but couldn't be set up
+     *
+     * @param address The address it was admitted under, null if it wasn't
+     */
+    private void abandon(SocketChannel sc, InetAddress address) {
+        if (address != null) {
+            this.admission.release(address);
+        }
+
+        try {
+            sc.close();
+        } catch (IOException e) {
+            // Nothing more to do with it
+        }
+    }
+
+    /**
+     * Accept connections with blocking accepts, each connection is then driven by its own virtual threads
+     *
+     * @param port The port to listen on
+     */
+    private void acceptBlockingConnections(int port) throws IOException {
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+
+        ssc.bind(new InetSocketAddress(port), config.getAcceptBacklog());
+
+        Log.info("Listening on port: {}, with a virtual thread per connection", port);
+
+        while (true) {
+            SocketChannel sc;
+
+            try {
+                sc = ssc.accept();
+            } catch (IOException e) {
+                Log.error("Failed to accept a connection", e);
+
+                LockSupport.parkNanos(ACCEPT_RETRY_NANOS);
+                continue;
+            }
+
+            InetAddress address;
+
+            try {
+                address = this.admission.admit(sc);
+            } catch (IOException e) {
+                Log.error("Failed to set up the connection {}", e, sc);
+
+                abandon(sc, null);
+                continue;
+            }
+
+            if (address == null) {
+                continue;
+            }
+
+            Log.debug("Got connection from {}", sc);
+
+            this.metrics.accepted();
+
+            BlockingConnection connection = new BlockingConnection(this, sc);
+
+            connection.getClient().setAddress(address);
+
+            this.clients.add(connection.getClient());
+
+            if (this.idle != null) {
+                this.idle.add(connection.getClient());
+            }
+
+            connection.start();
+        }
+    }
+
+    /**
+     * Get the configuration the server was started with
+     *
+     * @return The configuration
+     */
+    public ServerConfig getConfig() {
+        return this.config;
+    }
+
+    /**
+     * Get the durable log of the messages
+     *
+     * @return The log, null if the messages aren't logged
+     */
+    public MessageLog getHistory() {
+        return this.history;
+    }
+
+    /**
+     * Get the runtime metrics of the server
+     *
+     * @return The metrics
+     */
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Get the pool of the direct buffers the output is written from
+     *
+     * @return The pool
+     */
+    public BufferPool getBufferPool() {
+        return this.bufferPool;
+    }
+
+    /**
+     * Pick the reactor that will own the next connection, round robin
+     *
+     * @return The reactor
+     */
+    private Reactor nextReactor() {
+        Reactor reactor = this.reactors[this.nextReactor];
+
+        this.nextReactor = (this.nextReactor + 1) % this.reactors.length;
+
+        return reactor;
+    }
+
+    /**
+     * Get the shard that owns a room
+     *
+     * @param room The name of the room
+     * @return The shard
+     */
+    public RoomShard shardOf(String room) {
+        int hash = room.hashCode();
+
+        return this.shards[((hash ^ (hash >>> 16)) & 0x7fffffff) % this.shards.length];
+    }
+
+    /**
+     * Get the room shards
+     *
+     * @return The shards, this array must not be modified
+     */
+    public RoomShard[] getRoomShards() {
+        return this.shards;
+    }
+
+    /**
+     * Change a users chat room.
+     * <p>
+     * The leave and the join are handed to the shards of the two rooms, which may run them in any order
+     * relative to each other, but each in order with everything else that happens in its room
+     *
+     * @param handler      The user to change chat room
+     * @param previousChat The previous chat room
+     * @param newChat      The new chat room
+     */
+    public void changeChatRoom(ClientHandler handler, String previousChat, String newChat) {
+
+        if (previousChat != null) {
+            Frame left = Frame.left(handler.getNameId(), handler.getName());
+
+            shardOf(previousChat).execute(rooms -> {
+                rooms.leave(previousChat, handler);
+
+                broadcast(rooms, previousChat, left);
+            });
+        }
+
+        if (newChat != null) {
+            handler.sendMessage(ClientHandler.OK_FRAME);
+
+            Frame joined = Frame.joined(handler.getNameId(), handler.getName());
+
+            shardOf(newChat).execute(rooms -> {
+                broadcast(rooms, newChat, joined);
+
+                rooms.join(newChat, handler);
+            });
+        }
+
+    }
+
+    /**
+     * Delete a client from the client list.
+     * <p>
+     * The client is always torn down by the thread that owns it, so its pending output gets a last chance to be written
+     *
+     * @param clientHandler
+     */
+    public void deleteClient(ClientHandler clientHandler) {
+
+        Transport transport = clientHandler.getTransport();
+
+        if (!transport.inOwnerThread()) {
+            transport.disconnect(clientHandler);
+            return;
+        }
+
+        if (!this.clients.remove(clientHandler)) {
+            // Already deleted, e.g. a /bye followed by the end of the stream
+            return;
+        }
+
+        if (this.federation != null && clientHandler.getName() != null) {
+            this.federation.nickChanged(clientHandler.getName(), null);
+        }
+
+        this.metrics.disconnected();
+
+        if (clientHandler.getAddress() != null) {
+            this.admission.release(clientHandler.getAddress());
+        }
+
+        clientHandler.sendMessage(ClientHandler.BYE_FRAME);
+
+        changeChatRoom(clientHandler, clientHandler.getCurrentChatRoom(), null);
+
+        Log.debug("Closed connection {}", clientHandler.getSocket().socket());
+
+        clientHandler.close();
+    }
+
+    /**
+     * Send a message to all the connected clients
+     *
+     * @param message The message to send
+     */
+    public void sendGlobalMessage(String message) {
+        sendGlobalMessage(Frame.chat(message));
+    }
+
+    /**
+     * Send an encoded frame to all the connected clients
+     *
+     * @param frame The frame to send
+     */
+    public void sendGlobalMessage(Frame frame) {
+
+        for (ClientHandler client : this.clients.getClients()) {
+            client.sendMessage(frame);
+        }
+
+    }
+
+    /**
+     * Send a message to all the clients connected to a room
+     *
+     * @param room    The room they are connected to
+     * @param message The message to send
+     */
+    public void sendMessageToRoom(String room, String message) {
+        sendMessageToRoom(room, Frame.chat(message));
+    }
+
+    /**
+     * Send an encoded frame to all the clients connected to a room.
+     * <p>
+     * The frame is encoded once by the caller, each member only gets a view of it. The members are
+     * looked up and sent to by the room's shard
+     *
+     * @param room  The room they are connected to
+     * @param frame The frame to send
+     */
+    public void sendMessageToRoom(String room, Frame frame) {
+        shardOf(room).execute(rooms -> broadcast(rooms, room, frame));
+    }
+
+    /**
+     * Send a room event to the members of a room and to the other nodes, on the room's shard
+     */
+    private void broadcast(RoomRegistry rooms, String room, Frame frame) {
+        if (this.federation != null) {
+            this.federation.forwardRoomEvent(room, frame.getLine());
+        }
+
+        sendMessageToMembers(rooms.getMembers(room), frame);
+    }
+
+    /**
+     * Send an encoded frame to the members of a room, releasing the broadcaster's hold on it
+     *
+     * @param members The members
+     * @param frame   The frame to send
+     */
+    public void sendMessageToMembers(ClientHandler[] members, Frame frame) {
+
+        for (ClientHandler client : members) {
+            client.sendMessage(frame);
+        }
+
+        this.metrics.fannedOut(members.length);
+
+        // Done queueing, the delivery is complete once every copy has been written
+        frame.release();
+    }
+
+    /**
+     * Get the registry of the connected clients
+     *
+     * @return The registry
+     */
+    public ClientRegistry getClients() {
+        return this.clients;
+    }
+
+    /**
+     * Check if the username is taken by any of the online users
+     *
+     * @param name The name to check for
+     * @return
+     */
+    public boolean isUsernameTaken(String name) {
+        return this.clients.isNameTaken(name) || (this.federation != null && this.federation.isNameTaken(name));
+    }
+
+    /**
+     * Atomically claim a nick name for a user
+     *
+     * @param clientHandler The user claiming the name
+     * @param oldName       The name the user currently has, null if none
+     * @param newName       The name to claim
+     * @return false if the name is taken by an online user
+     */
+    public boolean claimUserName(ClientHandler clientHandler, String oldName, String newName) {
+        if (this.federation == null) {
+            return this.clients.claimName(clientHandler, oldName, newName);
+        }
+
+        if (this.federation.isNameTaken(newName) || !this.clients.claimName(clientHandler, oldName, newName)) {
+            return false;
+        }
+
+        this.federation.nickChanged(oldName, newName);
+        return true;
+    }
+
+    /**
+     * Accept a user changing nick names
+     *
+     * @param clientHandler The user that is changing
+     * @param oldNameId     The name id of the old name
+     * @param oldName       The old name
+     * @param newName       The new name
+     */
+    public void acceptUserName(ClientHandler clientHandler, int oldNameId, String oldName, String newName) {
+
+        if (clientHandler.getState() == ClientHandler.State.INSIDE) {
+            sendMessageToRoom(clientHandler.getCurrentChatRoom(), Frame.newNick(oldNameId, oldName, clientHandler.getNameId(), newName));
+        }
+
+    }
+
+    /**
+     * Accept a private message sent by a user
+     *
+     * @param sender The user that sent the message
+     * @param dest   The destination of the message
+     * @param msg    The message
+     */
+    public void acceptPrivateMessage(ClientHandler sender, String dest, String msg) {
+
+        ClientHandler client = this.clients.getByName(dest);
+
+        Frame frame = Frame.privateMessage(sender.getNameId(), sender.getName(), msg);
+
+        if (client != null) {
+            client.sendMessage(frame);
+
+            if (this.history != null) {
+                this.history.appendPrivateMessage(client.getName(), frame);
+            }
+
+            sender.sendMessage(ClientHandler.OK_FRAME);
+        } else if (this.federation != null
+                && this.federation.forwardPrivateMessage(dest, frame.getLine())) {
+            sender.sendMessage(ClientHandler.OK_FRAME);
+        } else {
+            sender.sendMessage(ClientHandler.ERROR_FRAME);
+        }
+
+    }
+
+    /**
+     * Deliver a chat message that was sent on another node to the members of a room on this one
+     *
+     * @param room The room
+     * @param line The MESSAGE line
+     */
+    public void deliverRoomMessage(String room, String line) {
+        Frame frame = Frame.chat(line);
+
+        shardOf(room).execute(rooms -> {
+            if (this.history != null) {
+                this.history.appendRoomMessage(room, frame);
+            }
+
+            sendMessageToMembers(rooms.publish(room, frame), frame);
+        });
+    }
+
+    /**
+     * Deliver a room event (JOINED, LEFT, NEWNICK) from another node to the members of a room on this one
+     *
+     * @param room The room
+     * @param line The line
+     */
+    public void deliverRoomEvent(String room, String line) {
+        Frame frame = Frame.chat(line);
+
+        shardOf(room).execute(rooms -> sendMessageToMembers(rooms.getMembers(room), frame));
+    }
+
+    /**
+     * Deliver a private message that was sent on another node
+     *
+     * @param dest The nick of the destination
+     * @param line The PRIVATE line
+     */
+    public void deliverPrivateMessage(String dest, String line) {
+        ClientHandler client = this.clients.getByName(dest);
+
+        if (client == null) {
+            // Went away while the message was on its way
+            return;
+        }
+
+        Frame frame = Frame.control(line);
+
+        client.sendMessage(frame);
+
+        if (this.history != null) {
+            this.history.appendPrivateMessage(client.getName(), frame);
+        }
+    }
+
+    /**
+     * Accept a chat message sent by a user to its room.
+     * <p>
+     * The message is encoded here, by the thread that read it, and logged, forwarded and fanned out by the room's shard
+     *
+     * @param sender  The user that sent the message
+     * @param message The message
+     */
+    public void acceptMessage(ClientHandler sender, String message) {
+        if (sender.getState() == ClientHandler.State.INSIDE) {
+            String room = sender.getCurrentChatRoom();
+
+            Frame frame = Frame.message(sender.getNameId(), sender.getName(), message, sender.getLastReadNanos());
+
+            frame.setTraceId(sender.getTraceId());
+
+            long handed = frame.getTraceId() == 0 ? 0 : System.nanoTime();
+
+            shardOf(room).execute(rooms -> {
+                Tracing.FanOutEvent event = Tracing.fanOut(frame, handed);
+
+                if (this.history != null) {
+                    this.history.appendRoomMessage(room, frame);
+                }
+
+                if (this.federation != null) {
+                    this.federation.forwardRoomMessage(room, frame.getLine());
+                }
+
+                // Kept in the room's backlog, for the clients that join later
+                ClientHandler[] members = rooms.publish(room, frame);
+
+                sendMessageToMembers(members, frame);
+
+                Tracing.commit(event, room, members.length, frame.size());
+            });
+        } else {
+            sender.sendMessage(ClientHandler.ERROR_FRAME);
+        }
+    }
+
+    public static void main(String[] args) {
+        new ChatServer(Integer.parseInt(args[0])).start();
+    }
+
+}
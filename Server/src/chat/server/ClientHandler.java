@@ -0,0 +1,643 @@
+package chat.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ClientHandler {
+
+    public static final String LEFT = "LEFT %s\n",
+            JOINED = "JOINED %s\n",
+            MESSAGE = "MESSAGE %s %s\n",
+            NEW_NICK = "NEWNICK %s %s\n",
+            PRIVATE = "PRIVATE %s %s\n",
+            ERROR = "ERROR\n",
+            OK = "OK\n",
+            PONG = "PONG\n",
+            BYE = "BYE\n";
+
+    // The control replies are the same for everyone, so they're only encoded once
+    public static final Frame OK_FRAME = Frame.control(OK, BinaryProtocol.OK),
+            ERROR_FRAME = Frame.control(ERROR, BinaryProtocol.ERROR),
+            BYE_FRAME = Frame.control(BYE, BinaryProtocol.BYE),
+            PONG_FRAME = Frame.control(PONG, BinaryProtocol.PONG);
+
+    // How many name ids a binary client is remembered to know, the cache is direct mapped
+    private static final int KNOWN_NAMES = 64;
+
+    private static final AtomicInteger nameIds = new AtomicInteger();
+
+    // Read by the other threads (nick checks, private messages), so they have to be visible across threads
+    private volatile State state;
+
+    private volatile String name, currentChatRoom;
+
+    // The number that stands for the current nick in the binary protocol, a new one for every nick
+    private volatile int nameId;
+
+    // Read by whoever queues output to this client
+    private volatile Protocol protocol = Protocol.TEXT;
+
+    // The name ids this binary client has been told about, guarded by the outbound queue
+    private int[] knownNames;
+
+    private SocketChannel socket;
+
+    // The remote address it was admitted under, null if it didn't go through the Admission
+    private InetAddress address;
+
+    private Transport transport;
+
+    // Only used when the client is owned by a reactor
+    private SelectionKey key;
+
+    // The slot of this client in its room's member array, written by the shards of the rooms it goes through so only a hint
+    private int roomSlot;
+
+    // Set once the client is being torn down, whatever it sends after that is ignored
+    private volatile boolean closed;
+
+    private final OutboundQueue outbound;
+
+    private Decoder decoder;
+
+    private final FloodControl flood;
+
+    // Whether the reactor stopped reading from this client for the flood control, only touched by the reactor
+    private boolean readPaused;
+
+    // Whether a flush has been handed to the reactor and hasn't happened yet
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    // When the data that is being handled was read, to measure the delivery of the messages,
+    // and when the client was last heard from, for the IdleWheel
+    private volatile long lastReadNanos = System.nanoTime();
+
+    // The next client in the same slot of the IdleWheel, guarded by the wheel
+    ClientHandler idleNext;
+
+    // The trace id of the line that is being handled, 0 if it isn't traced, only touched by the owner
+    private long traceId;
+
+    public ClientHandler(SocketChannel socket, Transport transport) {
+        this.socket = socket;
+        this.transport = transport;
+
+        ServerConfig config = ChatServer.getInstance().getConfig();
+
+        this.outbound = new OutboundQueue(config.getOutboundLimit(), config.getSlowConsumerPolicy(),
+                ChatServer.getInstance().getMetrics(), ChatServer.getInstance().getBufferPool());
+        this.decoder = new LineDecoder(config.getMaxLineLength());
+        this.flood = new FloodControl(config, ChatServer.getInstance().getMetrics());
+
+        state = State.INIT;
+    }
+
+    boolean acceptName(String name) {
+        String oldName = this.name;
+
+        int oldNameId = this.nameId;
+
+        if (!allow(FloodControl.Kind.CHURN)) {
+            return false;
+        }
+
+        if (!ChatServer.getInstance().claimUserName(this, oldName, name)) {
+            sendMessage(ERROR_FRAME);
+            return false;
+        }
+
+        this.nameId = nameIds.incrementAndGet();
+        this.name = name;
+        this.state = this.state == State.INIT ? State.OUTSIDE : this.state;
+
+        ChatServer.getInstance().acceptUserName(this, oldNameId, oldName, name);
+
+        sendMessage(OK_FRAME);
+        return true;
+    }
+
+    void setCurrentChatRoom(String currentChatRoom) {
+
+        if (this.state == State.INIT) {
+            sendMessage(ERROR_FRAME);
+            return;
+        }
+
+        if (currentChatRoom == null && this.state != State.INSIDE) {
+            sendMessage(ERROR_FRAME);
+            return;
+        } else if (currentChatRoom != null && !allow(FloodControl.Kind.CHURN)) {
+            return;
+        } else if (currentChatRoom == null) {
+            sendMessage(OK_FRAME);
+        }
+
+        this.state = currentChatRoom == null ? State.OUTSIDE : State.INSIDE;
+
+        ChatServer.getInstance().changeChatRoom(this, this.currentChatRoom, (this.currentChatRoom = currentChatRoom));
+    }
+
+    private boolean handleMessage(String msg) {
+        if (getState() != State.INSIDE) {
+            sendMessage(ERROR_FRAME);
+            return false;
+        }
+
+        if (!allow(FloodControl.Kind.LINE)) {
+            return false;
+        }
+
+        ChatServer.getInstance().acceptMessage(this, msg);
+
+        return true;
+    }
+
+    void handlePrivateMessage(String dest, String msg) {
+        if (!allow(FloodControl.Kind.PRIVATE)) {
+            return;
+        }
+
+        ChatServer.getInstance().acceptPrivateMessage(this, dest, msg);
+    }
+
+    /**
+     * Switch to another protocol, which is only allowed before the client has a nick.
+     * <p>
+     * The reply is still sent with the protocol the client asked with, everything after it uses the new one
+     *
+     * @param protocol The protocol
+     */
+    void switchProtocol(Protocol protocol) {
+        if (this.state != State.INIT || this.protocol != Protocol.TEXT) {
+            sendMessage(ERROR_FRAME);
+            return;
+        }
+
+        sendMessage(OK_FRAME);
+
+        if (protocol == Protocol.BINARY) {
+            synchronized (this.outbound) {
+                this.knownNames = new int[KNOWN_NAMES];
+            }
+
+            this.decoder = new BinaryDecoder(ChatServer.getInstance().getConfig().getMaxLineLength());
+            this.protocol = protocol;
+        }
+    }
+
+    /**
+     * Compress everything sent to this client after the reply, see {@link Compressor}
+     */
+    void startCompression() {
+        ServerConfig config = ChatServer.getInstance().getConfig();
+
+        if (config.getCompressionLevel() <= 0 || this.outbound.isCompressed()) {
+            sendMessage(ERROR_FRAME);
+            return;
+        }
+
+        // Nothing else can be queued between the reply and the start of the compressed output
+        synchronized (this.outbound) {
+            sendMessage(OK_FRAME);
+
+            this.outbound.startCompression(new Compressor(config.getCompressionLevel(), config.getCompressionThreshold(),
+                    ChatServer.getInstance().getMetrics()));
+        }
+    }
+
+    /**
+     * Handle a NICK frame of the binary protocol
+     *
+     * @param name The nick
+     */
+    void receiveName(String name) {
+        if (name.isEmpty() || Commands.identifierLength(name, 0) != name.length()) {
+            sendMessage(ERROR_FRAME);
+            return;
+        }
+
+        acceptName(name);
+    }
+
+    /**
+     * Handle a JOIN frame of the binary protocol
+     *
+     * @param room The room
+     */
+    void receiveRoom(String room) {
+        if (room.isEmpty() || Commands.identifierLength(room, 0) != room.length()) {
+            sendMessage(ERROR_FRAME);
+            return;
+        }
+
+        setCurrentChatRoom(room);
+    }
+
+    /**
+     * Handle a SEND frame of the binary protocol, the message is never a command
+     *
+     * @param message The message
+     */
+    void receiveChatMessage(String message) {
+        if (message.isEmpty()) {
+            sendMessage(ERROR_FRAME);
+            return;
+        }
+
+        handleMessage(message);
+    }
+
+    /**
+     * Handle a SEND_PRIVATE frame of the binary protocol
+     *
+     * @param dest    The nick of the destination
+     * @param message The message
+     */
+    void receivePrivateMessage(String dest, String message) {
+        if (Commands.identifierLength(dest, 0) != dest.length()) {
+            sendMessage(ERROR_FRAME);
+            return;
+        }
+
+        handlePrivateMessage(dest, message);
+    }
+
+    /**
+     * Get the name of this client
+     *
+     * @return The name
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Get the number that stands for the current nick in the binary protocol
+     *
+     * @return The id, 0 if the client has no nick
+     */
+    public int getNameId() {
+        return this.nameId;
+    }
+
+    /**
+     * Get the protocol this client talks
+     *
+     * @return The protocol
+     */
+    public Protocol getProtocol() {
+        return this.protocol;
+    }
+
+    /**
+     * Get the current chat room
+     *
+     * @return The current chat room the client is in
+     */
+    public String getCurrentChatRoom() {
+        return this.currentChatRoom;
+    }
+
+    int getRoomSlot() {
+        return this.roomSlot;
+    }
+
+    void setRoomSlot(int roomSlot) {
+        this.roomSlot = roomSlot;
+    }
+
+    /**
+     * Get the state of this state
+     *
+     * @return The state of this client
+     */
+    public State getState() {
+        return this.state;
+    }
+
+    /**
+     * The channel this client is on
+     *
+     * @return
+     */
+    public SocketChannel getSocket() {
+        return this.socket;
+    }
+
+    /**
+     * The remote address the client was let in under, see {@link Admission}
+     *
+     * @return The address, null if the client wasn't admitted by the acceptor
+     */
+    public InetAddress getAddress() {
+        return this.address;
+    }
+
+    void setAddress(InetAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * The transport that owns this client's channel
+     *
+     * @return The transport
+     */
+    public Transport getTransport() {
+        return this.transport;
+    }
+
+    /**
+     * The key of this client's channel in its reactor's selector
+     *
+     * @return The key, null if the channel hasn't been registered yet
+     */
+    public SelectionKey getKey() {
+        return this.key;
+    }
+
+    public void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * The output that is waiting to be written to this client
+     *
+     * @return The queue
+     */
+    public OutboundQueue getOutbound() {
+        return this.outbound;
+    }
+
+    /**
+     * Whether this client is being torn down
+     *
+     * @return true if it is
+     */
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Close the connection, once the client has been removed from the server
+     */
+    void close() {
+        this.closed = true;
+
+        this.transport.close(this);
+    }
+
+    /**
+     * Handle receiving data, every complete line or frame in it is handled as a message
+     *
+     * @param data The bytes that have been read from the socket
+     */
+    public void receive(ByteBuffer data) {
+        this.lastReadNanos = System.nanoTime();
+
+        // A switch of protocol stops the decoder in the middle of the data, the new decoder takes the rest
+        do {
+            this.decoder.decode(data, this);
+        } while (data.hasRemaining() && !this.closed);
+
+        if (this.flood.isPaused()) {
+            this.transport.pauseReads(this, this.flood.resume());
+        }
+    }
+
+    /**
+     * Check a line against the flood control, replying with an ERROR if it's refused
+     *
+     * @param kind The kind of line
+     * @return true if it can be handled
+     */
+    private boolean allow(FloodControl.Kind kind) {
+        if (this.flood.allow(kind, this.lastReadNanos)) {
+            return true;
+        }
+
+        sendMessage(ERROR_FRAME);
+        return false;
+    }
+
+    /**
+     * Stop or resume reading from this client, for the reactor that owns it
+     *
+     * @param paused Whether the reads are paused
+     */
+    void setReadPaused(boolean paused) {
+        this.readPaused = paused;
+
+        if (this.key != null && this.key.isValid()) {
+            this.key.interestOps(paused ? this.key.interestOps() & ~SelectionKey.OP_READ
+                    : this.key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    Decoder getDecoder() {
+        return this.decoder;
+    }
+
+    /**
+     * Get when the data that is being handled was read
+     *
+     * @return The {@link System#nanoTime()} of the last read
+     */
+    public long getLastReadNanos() {
+        return this.lastReadNanos;
+    }
+
+    /**
+     * Handle a line that went over the maximum line length, the whole line is ignored
+     */
+    void lineTooLong() {
+        sendMessage(ERROR_FRAME);
+    }
+
+    void receiveFinalMessage(String receivedMessage) {
+        ChatServer.getInstance().getMetrics().lineReceived();
+
+        if (Log.isEnabled(Log.Level.TRACE)) {
+            Log.trace("Message received from user {}: {}", getName(), receivedMessage);
+        }
+
+        Tracing.ParseEvent event = Tracing.parse(this);
+
+        //Check if it's a command
+        if (Commands.dispatch(this, receivedMessage)) {
+            Tracing.commit(event, this, receivedMessage, true);
+            return;
+        }
+
+        handleMessage(escapeBars(receivedMessage));
+
+        Tracing.commit(event, this, receivedMessage, false);
+    }
+
+    /**
+     * Get the trace id of the line that is being handled, for the frames it turns into
+     *
+     * @return The id, 0 if the line isn't traced
+     */
+    long getTraceId() {
+        return this.traceId;
+    }
+
+    void setTraceId(long traceId) {
+        this.traceId = traceId;
+    }
+
+    private String escapeBars(String msg) {
+
+        if (msg.startsWith("//")) {
+            return msg.substring(1);
+        }
+
+        return msg;
+    }
+
+    /**
+     * Send a control reply (OK, ERROR, ...) to this user, which is never dropped
+     *
+     * @param msg
+     */
+    public void sendMessage(String msg) {
+        sendMessage(Frame.control(msg));
+    }
+
+    /**
+     * Send an encoded frame to this user.
+     * <p>
+     * Can be called from any thread, the frame is queued and written by the transport that owns this user
+     *
+     * @param frame The frame
+     */
+    public void sendMessage(Frame frame) {
+
+        if (Log.isEnabled(Log.Level.TRACE)) {
+            Log.trace("Message sent to user {}: {}", getName(), frame.getLine());
+        }
+
+        if (!this.socket.isOpen()) {
+            return;
+        }
+
+        frame.retain();
+
+        boolean queued = this.protocol == Protocol.BINARY ? offerBinary(frame) : this.outbound.offer(frame, frame.view());
+
+        if (!queued) {
+            if (this.closed) {
+                // Already on its way out, the owner just hasn't got to it yet
+                return;
+            }
+
+            this.closed = true;
+
+            Log.warn("Disconnecting slow client {}, {} bytes waiting", getName(), this.outbound.getBytes());
+
+            // Never torn down right here, the caller may be in the middle of a fan-out or of a join
+            this.transport.disconnect(this);
+            return;
+        }
+
+        this.transport.requestFlush(this);
+    }
+
+    /**
+     * Queue the binary encoding of a frame, preceded by the NAME frames of the users it refers to that this
+     * client may not know about yet.
+     * <p>
+     * Holds the queue's lock throughout, so a frame from another thread can never get between a NAME frame
+     * and the frame it was sent for
+     */
+    private boolean offerBinary(Frame frame) {
+        synchronized (this.outbound) {
+            return introduce(frame.getFirstId(), frame.getFirstName())
+                    && introduce(frame.getSecondId(), frame.getSecondName())
+                    && this.outbound.offer(frame, frame.view(Protocol.BINARY));
+        }
+    }
+
+    private boolean introduce(int id, String name) {
+        if (id == 0 || name == null) {
+            return true;
+        }
+
+        int slot = id & (KNOWN_NAMES - 1);
+
+        if (this.knownNames[slot] == id) {
+            return true;
+        }
+
+        this.knownNames[slot] = id;
+
+        Frame frame = Frame.name(id, name);
+
+        return this.outbound.offer(frame, frame.view(Protocol.BINARY));
+    }
+
+    /**
+     * Mark this client as having a flush handed to its reactor
+     *
+     * @return false if a flush was already pending
+     */
+    boolean scheduleFlush() {
+        return this.flushScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Write the queued output, only called from the reactor that owns this client.
+     * <p>
+     * Whatever the socket doesn't take now is written once the channel becomes writable again
+     */
+    void flush() {
+        this.flushScheduled.set(false);
+
+        if (this.key == null || !this.key.isValid()) {
+            // Not registered yet, the reactor flushes us once the registration happens
+            return;
+        }
+
+        Tracing.WriteEvent event = Tracing.write();
+
+        try {
+            int read = this.readPaused ? 0 : SelectionKey.OP_READ;
+
+            long written = event == null ? 0 : this.outbound.getWritten();
+
+            if (this.outbound.writeTo(this.socket)) {
+                this.key.interestOps(read);
+            } else {
+                this.key.interestOps(read | SelectionKey.OP_WRITE);
+            }
+
+            if (event != null) {
+                Tracing.commit(event, this.outbound.getWritten() - written);
+            }
+        } catch (IOException e) {
+            ChatServer.getInstance().deleteClient(this);
+        }
+    }
+
+    public enum State {
+        INIT,
+        INSIDE,
+        OUTSIDE
+    }
+
+    public enum Protocol {
+        /**
+         * Lines of text, see the templates above
+         */
+        TEXT,
+        /**
+         * Length prefixed frames, see {@link BinaryProtocol}
+         */
+        BINARY
+    }
+}
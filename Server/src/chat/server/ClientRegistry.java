@@ -0,0 +1,111 @@
+package chat.server;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The connected clients, with a case insensitive index of their nick names.
+ * <p>
+ * Every operation is constant time and safe to call from any reactor
+ */
+public class ClientRegistry {
+
+    private final Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
+
+    // Nick names folded to lower case -> owner of the nick
+    private final Map<String, ClientHandler> names = new ConcurrentHashMap<>();
+
+    /**
+     * Add a newly connected client
+     *
+     * @param client The client
+     */
+    public void add(ClientHandler client) {
+        this.clients.add(client);
+    }
+
+    /**
+     * Remove a client, releasing its nick name
+     *
+     * @param client The client
+     * @return false if the client had already been removed
+     */
+    public boolean remove(ClientHandler client) {
+        if (!this.clients.remove(client)) {
+            return false;
+        }
+
+        if (client.getName() != null) {
+            this.names.remove(fold(client.getName()), client);
+        }
+
+        return true;
+    }
+
+    /**
+     * Atomically claim a nick name for a client, releasing its previous one.
+     * <p>
+     * Claiming a name that is held by anyone (including the client itself, with a different case) fails
+     *
+     * @param client  The client claiming the name
+     * @param oldName The name the client currently has, null if it has none
+     * @param newName The name to claim
+     * @return true if the name now belongs to the client
+     */
+    public boolean claimName(ClientHandler client, String oldName, String newName) {
+        if (this.names.putIfAbsent(fold(newName), client) != null) {
+            return false;
+        }
+
+        if (oldName != null) {
+            this.names.remove(fold(oldName), client);
+        }
+
+        return true;
+    }
+
+    /**
+     * Check if a nick name is held by any client
+     *
+     * @param name The name, in any case
+     * @return true if it's taken
+     */
+    public boolean isNameTaken(String name) {
+        return this.names.containsKey(fold(name));
+    }
+
+    /**
+     * Get the client that holds a nick name
+     *
+     * @param name The name, in any case
+     * @return The client, null if nobody has that name
+     */
+    public ClientHandler getByName(String name) {
+        return this.names.get(fold(name));
+    }
+
+    /**
+     * All the connected clients
+     *
+     * @return A live view of the clients
+     */
+    public Set<ClientHandler> getClients() {
+        return this.clients;
+    }
+
+    /**
+     * The amount of connected clients
+     *
+     * @return The amount
+     */
+    public int size() {
+        return this.clients.size();
+    }
+
+    private static String fold(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+}
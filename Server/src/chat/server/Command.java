@@ -0,0 +1,17 @@
+package chat.server;
+
+/**
+ * A command a client can send, a line starting with / followed by the name of the command
+ */
+public interface Command {
+
+    /**
+     * Execute the command
+     *
+     * @param client The client that sent the command
+     * @param args   Everything after the command name and the space that follows it, empty if there's nothing
+     * @return false if the arguments don't fit the command, in which case the line is handled as a regular message
+     */
+    boolean execute(ClientHandler client, String args);
+
+}
@@ -0,0 +1,187 @@
+package chat.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The table of the commands clients can send, looked up by name.
+ * <p>
+ * Commands have to be registered before the server starts accepting connections,
+ * the table is only read afterwards
+ */
+public final class Commands {
+
+    private static final Map<String, Command> commands = new HashMap<>();
+
+    static {
+        register("nick", (client, args) -> {
+            int length = identifierLength(args, 0);
+
+            if (length == 0) {
+                return false;
+            }
+
+            client.acceptName(args.substring(0, length));
+            return true;
+        });
+
+        register("join", (client, args) -> {
+            int length = identifierLength(args, 0);
+
+            if (length == 0) {
+                return false;
+            }
+
+            client.setCurrentChatRoom(args.substring(0, length));
+            return true;
+        });
+
+        register("priv", (client, args) -> {
+            int length = identifierLength(args, 0);
+
+            // The destination has to be followed by a space and a message that isn't empty
+            if (length == 0 || args.length() < length + 2 || args.charAt(length) != ' ') {
+                return false;
+            }
+
+            client.handlePrivateMessage(args.substring(0, length), args.substring(length + 1));
+            return true;
+        });
+
+        register("history", (client, args) -> {
+            int length = identifierLength(args, 0), digits = 0;
+
+            while (length + 1 + digits < args.length() && Character.isDigit(args.charAt(length + 1 + digits)) && digits < 4) {
+                digits++;
+            }
+
+            // A room followed by a space and a count, and nothing else
+            if (length == 0 || digits == 0 || args.charAt(length) != ' ' || length + 1 + digits != args.length()) {
+                return false;
+            }
+
+            MessageLog history = ChatServer.getInstance().getHistory();
+
+            if (history == null || client.getState() == ClientHandler.State.INIT) {
+                client.sendMessage(ClientHandler.ERROR_FRAME);
+                return true;
+            }
+
+            String room = args.substring(0, length);
+
+            int count = Integer.parseInt(args.substring(length + 1));
+
+            // Through the room's shard, so the messages it was handed before are logged first
+            ChatServer.getInstance().shardOf(room).execute(rooms -> history.requestHistory(client, room, count));
+            return true;
+        });
+
+        register("protocol", (client, args) -> {
+            ClientHandler.Protocol protocol = switch (args) {
+                case "text" -> ClientHandler.Protocol.TEXT;
+                case "binary" -> ClientHandler.Protocol.BINARY;
+                default -> null;
+            };
+
+            if (protocol == null) {
+                return false;
+            }
+
+            client.switchProtocol(protocol);
+            return true;
+        });
+
+        register("compress", (client, args) -> {
+            if (!args.isEmpty()) {
+                return false;
+            }
+
+            client.startCompression();
+            return true;
+        });
+
+        register("ping", (client, args) -> {
+            if (!args.isEmpty()) {
+                return false;
+            }
+
+            // Reading the line is what keeps the connection alive, the reply tells the client the server is still there
+            client.sendMessage(ClientHandler.PONG_FRAME);
+            return true;
+        });
+
+        register("leave", (client, args) -> {
+            client.setCurrentChatRoom(null);
+            return true;
+        });
+
+        register("bye", (client, args) -> {
+            ChatServer.getInstance().deleteClient(client);
+            return true;
+        });
+    }
+
+    private Commands() {
+    }
+
+    /**
+     * Register a command
+     *
+     * @param name    The name of the command, without the /
+     * @param command The command
+     */
+    public static void register(String name, Command command) {
+        commands.put(name, command);
+    }
+
+    /**
+     * Handle a line if it's a command.
+     * <p>
+     * A line is a command if it starts with a single / followed by a registered name, which ends
+     * at the first space or at the end of the line. Lines starting with // are never commands
+     *
+     * @param client The client that sent the line
+     * @param line   The line
+     * @return true if the line was a command and has been handled
+     */
+    public static boolean dispatch(ClientHandler client, String line) {
+
+        if (line.length() < 2 || line.charAt(0) != '/' || line.charAt(1) == '/') {
+            return false;
+        }
+
+        int space = line.indexOf(' ');
+
+        Command command = commands.get(space < 0 ? line.substring(1) : line.substring(1, space));
+
+        if (command == null) {
+            return false;
+        }
+
+        return command.execute(client, space < 0 ? "" : line.substring(space + 1));
+    }
+
+    /**
+     * Get the length of the name (letters, digits and _) that starts at the given index
+     *
+     * @param text The text
+     * @param from The index the name starts at
+     * @return The length of the name, 0 if there's none
+     */
+    public static int identifierLength(String text, int from) {
+        int i = from;
+
+        while (i < text.length()) {
+            char c = text.charAt(i);
+
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_') {
+                i++;
+            } else {
+                break;
+            }
+        }
+
+        return i - from;
+    }
+
+}
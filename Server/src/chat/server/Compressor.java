@@ -0,0 +1,162 @@
+package chat.server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the output of a client that asked for it with {@code /compress}.
+ * <p>
+ * Once compression starts the client gets a sequence of chunks: a type byte, the length of the chunk as an
+ * unsigned varint and that many bytes. The frames that piled up for a write are compressed together as one
+ * DEFLATED chunk, ended with a sync flush so the client can inflate all of it right away; the deflate stream
+ * and its dictionary carry on from chunk to chunk. A batch under the threshold, like a lone OK, isn't worth
+ * the flush and goes out as a PLAIN chunk instead.
+ * <p>
+ * Every client has its own {@link Deflater}, which holds a few hundred KiB of native memory until the client goes away
+ */
+public final class Compressor {
+
+    public static final byte PLAIN = 0, DEFLATED = 1;
+
+    // The most bytes compressed as one chunk, a bigger frame is still compressed on its own
+    public static final int MAX_BATCH = 64 * 1024;
+
+    private final Deflater deflater;
+
+    private final int threshold;
+
+    private final Metrics metrics;
+
+    // The frames of the batch that is being gathered
+    private byte[] input = new byte[1024];
+
+    private int inputLength, inputFrames;
+
+    private byte[] output = new byte[1024];
+
+    // The chunk that is being written
+    private ByteBuffer chunk = ByteBuffer.allocate(0);
+
+    private int chunkFrames;
+
+    /**
+     * @param level     The deflate level, 1 to 9
+     * @param threshold The smallest batch that is compressed
+     * @param metrics   Where the compression is counted
+     */
+    public Compressor(int level, int threshold, Metrics metrics) {
+        this.deflater = new Deflater(level);
+        this.threshold = threshold;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Check if a frame still fits in the batch that is being gathered
+     *
+     * @param size The size of the frame
+     * @return true if it does, always for the first frame of a batch
+     */
+    boolean fits(int size) {
+        return this.inputLength == 0 || this.inputLength + size <= MAX_BATCH;
+    }
+
+    /**
+     * Add the bytes of a frame to the batch, consuming the view
+     *
+     * @param view The view of the frame
+     */
+    void add(ByteBuffer view) {
+        int required = this.inputLength + view.remaining();
+
+        if (required > this.input.length) {
+            this.input = Arrays.copyOf(this.input, Math.max(required, this.input.length * 2));
+        }
+
+        view.get(this.input, this.inputLength, view.remaining());
+
+        this.inputLength = required;
+        this.inputFrames++;
+    }
+
+    /**
+     * Turn the batch into the next chunk, once the previous one has been written
+     */
+    void finishBatch() {
+        byte type;
+
+        byte[] data;
+
+        int length;
+
+        if (this.inputLength < this.threshold) {
+            type = PLAIN;
+            data = this.input;
+            length = this.inputLength;
+
+            this.metrics.compressionSkipped(length);
+        } else {
+            long start = System.nanoTime();
+
+            this.deflater.setInput(this.input, 0, this.inputLength);
+
+            length = 0;
+
+            // A sync flush that filled the output has more to give
+            do {
+                if (length == this.output.length) {
+                    this.output = Arrays.copyOf(this.output, this.output.length * 2);
+                }
+
+                length += this.deflater.deflate(this.output, length, this.output.length - length, Deflater.SYNC_FLUSH);
+            } while (length == this.output.length);
+
+            type = DEFLATED;
+            data = this.output;
+
+            this.metrics.compressed(this.inputLength, length, System.nanoTime() - start);
+        }
+
+        int size = 1 + BinaryProtocol.varintSize(length) + length;
+
+        if (this.chunk.capacity() < size) {
+            this.chunk = ByteBuffer.allocate(Math.max(size, this.chunk.capacity() * 2));
+        }
+
+        this.chunk.clear();
+        this.chunk.put(type);
+        BinaryProtocol.putVarint(this.chunk, length);
+        this.chunk.put(data, 0, length);
+        this.chunk.flip();
+
+        this.chunkFrames = this.inputFrames;
+        this.inputLength = 0;
+        this.inputFrames = 0;
+    }
+
+    /**
+     * Get the chunk that is being written, its position is how much of it has been written
+     *
+     * @return The chunk, empty if there's none
+     */
+    ByteBuffer getChunk() {
+        return this.chunk;
+    }
+
+    /**
+     * Get the amount of frames in the chunk that is being written
+     *
+     * @return The amount of frames
+     */
+    int getChunkFrames() {
+        return this.chunkFrames;
+    }
+
+    /**
+     * Free the native memory of the deflater, once the client is gone
+     */
+    void end() {
+        this.deflater.end();
+    }
+
+}
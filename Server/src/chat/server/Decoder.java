@@ -0,0 +1,21 @@
+package chat.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the bytes received from a client into the commands and messages it sent, either
+ * {@link LineDecoder} for the text protocol or {@link BinaryDecoder} for the binary one
+ */
+public interface Decoder {
+
+    /**
+     * Decode the bytes that have been read, handing everything complete in them to the client.
+     * <p>
+     * Stops early, leaving the rest of the buffer, if the client switched to another decoder
+     *
+     * @param buffer The bytes that have been read, a heap buffer between its position and limit
+     * @param client The client the bytes came from
+     */
+    void decode(ByteBuffer buffer, ClientHandler client);
+
+}
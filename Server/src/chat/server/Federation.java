@@ -0,0 +1,402 @@
+package chat.server;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Links several chat server processes so their rooms, nicks and private messages span all of them.
+ * <p>
+ * Every node listens for its peers on the federation port and opens a link to every peer it's configured with,
+ * so each pair of nodes talks over two connections, one in each direction. A node tells all the others about
+ * its nicks and about the rooms it has members in, and only forwards the traffic of a room to the nodes that
+ * have members in it. The messages received from a peer are only delivered to the local clients, never forwarded again.
+ * <p>
+ * A nick is checked against the nicks the other nodes told us about, two nodes can still hand out the same
+ * nick if it's claimed on both before either of them heard from the other
+ * <p>
+ * The nodes share a secret, sent in the HELLO that starts every connection: a node only links to a peer, or
+ * applies what a peer sends, once the peer's HELLO had the same secret as its own. It's sent in the clear,
+ * the federation port is bound to the loopback address unless told otherwise and should only be reachable
+ * from the other nodes
+ */
+public class Federation implements RoomRegistry.Listener {
+
+    static final byte HELLO = 1,
+            NICK = 2,
+            UNNICK = 3,
+            OPEN = 4,
+            CLOSE = 5,
+            ROOM_MESSAGE = 6,
+            ROOM_EVENT = 7,
+            PRIVATE = 8;
+
+    private final ChatServer server;
+
+    private final String nodeId;
+
+    private final InetSocketAddress address;
+
+    private final byte[] secret;
+
+    private final List<PeerLink> links = new ArrayList<>();
+
+    // Node id -> our link to it, once it's connected
+    private final Map<String, PeerLink> linksById = new ConcurrentHashMap<>();
+
+    // Node id -> the connection it opened to us
+    private final Map<String, Socket> inbound = new ConcurrentHashMap<>();
+
+    // Room -> the other nodes that have members in it
+    private final Map<String, Set<String>> interest = new ConcurrentHashMap<>();
+
+    // Nick folded to lower case -> the node that has the client
+    private final Map<String, String> remoteNames = new ConcurrentHashMap<>();
+
+    // Orders the changes to the nicks and rooms of this node with the snapshot sent to a peer that links
+    private final Object stateLock = new Object();
+
+    // The rooms that have members on this node, guarded by the state lock
+    private final Set<String> openRooms = new HashSet<>();
+
+    /**
+     * @param server  The server
+     * @param nodeId  The id of this node, unique in the federation
+     * @param address The address the peers connect to
+     * @param secret  The secret the nodes share
+     * @param peers   The addresses of the other nodes
+     */
+    public Federation(ChatServer server, String nodeId, InetSocketAddress address, String secret, List<InetSocketAddress> peers) {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("The federation needs a shared secret");
+        }
+
+        this.server = server;
+        this.nodeId = nodeId;
+        this.address = address;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+
+        for (InetSocketAddress peer : peers) {
+            this.links.add(new PeerLink(this, peer));
+        }
+    }
+
+    /**
+     * Listen for the peers and start linking to them
+     *
+     * @throws IOException If the federation port can't be bound
+     */
+    public void start() throws IOException {
+        ServerSocket listener = new ServerSocket();
+
+        listener.bind(this.address);
+
+        Thread acceptor = new Thread(() -> acceptPeers(listener), "federation");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        for (PeerLink link : this.links) {
+            link.start();
+        }
+
+        Log.info("Node {} listening for peers on {}, {} peers configured", this.nodeId, listener.getLocalSocketAddress(), this.links.size());
+    }
+
+    /**
+     * Check if a nick is held by a client of another node
+     *
+     * @param name The name, in any case
+     * @return true if it is
+     */
+    public boolean isNameTaken(String name) {
+        return this.remoteNames.containsKey(fold(name));
+    }
+
+    /**
+     * Tell the other nodes a client changed nicks
+     *
+     * @param oldName The previous nick, null if it had none
+     * @param newName The new nick, null if the client went away
+     */
+    public void nickChanged(String oldName, String newName) {
+        synchronized (this.stateLock) {
+            if (oldName != null) {
+                sendToAll(new Message(UNNICK, oldName, null));
+            }
+
+            if (newName != null) {
+                sendToAll(new Message(NICK, newName, null));
+            }
+        }
+    }
+
+    @Override
+    public void roomOpened(String room) {
+        synchronized (this.stateLock) {
+            this.openRooms.add(room);
+            sendToAll(new Message(OPEN, room, null));
+        }
+    }
+
+    @Override
+    public void roomClosed(String room) {
+        synchronized (this.stateLock) {
+            this.openRooms.remove(room);
+            sendToAll(new Message(CLOSE, room, null));
+        }
+    }
+
+    /**
+     * Forward a chat message to the nodes that have members in its room
+     *
+     * @param room The room
+     * @param line The encoded MESSAGE line
+     */
+    public void forwardRoomMessage(String room, String line) {
+        sendToRoom(room, new Message(ROOM_MESSAGE, room, line));
+    }
+
+    /**
+     * Forward a room event (JOINED, LEFT, NEWNICK) to the nodes that have members in its room
+     *
+     * @param room The room
+     * @param line The line
+     */
+    public void forwardRoomEvent(String room, String line) {
+        sendToRoom(room, new Message(ROOM_EVENT, room, line));
+    }
+
+    /**
+     * Forward a private message to the node of its destination
+     *
+     * @param dest The nick of the destination
+     * @param line The PRIVATE line
+     * @return false if no node we're linked to has that nick
+     */
+    public boolean forwardPrivateMessage(String dest, String line) {
+        String node = this.remoteNames.get(fold(dest));
+
+        PeerLink link = node == null ? null : this.linksById.get(node);
+
+        if (link == null || !link.isConnected()) {
+            return false;
+        }
+
+        link.send(new Message(PRIVATE, dest, line));
+        return true;
+    }
+
+    private void sendToAll(Message message) {
+        for (PeerLink link : this.links) {
+            link.send(message);
+        }
+    }
+
+    private void sendToRoom(String room, Message message) {
+        Set<String> nodes = this.interest.get(room);
+
+        if (nodes == null) {
+            return;
+        }
+
+        for (String node : nodes) {
+            PeerLink link = this.linksById.get(node);
+
+            if (link != null) {
+                link.send(message);
+            }
+        }
+    }
+
+    /**
+     * A link finished its handshake, queue the state of this node before anything else
+     */
+    void linked(PeerLink link) {
+        synchronized (this.stateLock) {
+            List<Message> state = new ArrayList<>();
+
+            for (ClientHandler client : this.server.getClients().getClients()) {
+                String name = client.getName();
+
+                if (name != null) {
+                    state.add(new Message(NICK, name, null));
+                }
+            }
+
+            for (String room : this.openRooms) {
+                state.add(new Message(OPEN, room, null));
+            }
+
+            link.resync(state);
+        }
+
+        this.linksById.put(link.getNodeId(), link);
+    }
+
+    void unlinked(PeerLink link) {
+        if (link.getNodeId() != null) {
+            this.linksById.remove(link.getNodeId(), link);
+        }
+    }
+
+    void writeHello(DataOutputStream out) throws IOException {
+        out.writeByte(HELLO);
+        out.writeUTF(this.nodeId);
+        out.writeShort(this.secret.length);
+        out.write(this.secret);
+    }
+
+    /**
+     * Read the HELLO of a peer
+     *
+     * @return The id of the peer
+     * @throws IOException If it isn't a HELLO, or doesn't have our secret
+     */
+    String readHello(DataInputStream in) throws IOException {
+        if (in.readByte() != HELLO) {
+            throw new IOException("Expected a HELLO");
+        }
+
+        String node = in.readUTF();
+
+        byte[] secret = new byte[in.readUnsignedShort()];
+
+        in.readFully(secret);
+
+        if (!MessageDigest.isEqual(secret, this.secret)) {
+            throw new IOException("Node " + node + " doesn't have the federation's secret");
+        }
+
+        return node;
+    }
+
+    private void acceptPeers(ServerSocket listener) {
+        while (true) {
+            try {
+                Socket socket = listener.accept();
+
+                Thread reader = new Thread(() -> readPeer(socket), "federation-in-" + socket.getPort());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                Log.error("Failed to accept a peer", e);
+            }
+        }
+    }
+
+    /**
+     * Apply everything a peer sends us, until its connection goes down
+     */
+    private void readPeer(Socket socket) {
+        String node = null;
+
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+            // Nothing about this node is sent to a peer that doesn't have the secret, its own HELLO included
+            node = readHello(in);
+
+            writeHello(out);
+            out.flush();
+
+            // A node that reconnects sends its whole state again, forget what it told us before
+            Socket previous = this.inbound.put(node, socket);
+
+            if (previous != null) {
+                previous.close();
+            }
+
+            forget(node);
+
+            while (true) {
+                apply(node, in.readByte(), in);
+            }
+        } catch (IOException e) {
+            // The peer went away, or reconnected on another socket
+            if (node == null) {
+                Log.warn("Refused the peer at {}: {}", socket.getRemoteSocketAddress(), e);
+            }
+        }
+
+        if (node != null && this.inbound.remove(node, socket)) {
+            forget(node);
+        }
+    }
+
+    private void apply(String node, byte type, DataInputStream in) throws IOException {
+        String first = in.readUTF();
+
+        switch (type) {
+            case NICK -> {
+                if (this.server.getClients().isNameTaken(first)) {
+                    Log.warn("Node {} handed out the nick {}, which is also taken here", node, first);
+                }
+
+                this.remoteNames.put(fold(first), node);
+            }
+            case UNNICK -> this.remoteNames.remove(fold(first), node);
+            case OPEN -> this.interest.computeIfAbsent(first, room -> ConcurrentHashMap.newKeySet()).add(node);
+            case CLOSE -> this.interest.computeIfPresent(first, (room, nodes) -> {
+                nodes.remove(node);
+
+                return nodes.isEmpty() ? null : nodes;
+            });
+            case ROOM_MESSAGE -> this.server.deliverRoomMessage(first, in.readUTF());
+            case ROOM_EVENT -> this.server.deliverRoomEvent(first, in.readUTF());
+            case PRIVATE -> this.server.deliverPrivateMessage(first, in.readUTF());
+            default -> throw new IOException("Unknown message type " + type + " from node " + node);
+        }
+    }
+
+    /**
+     * Forget the nicks and rooms of a node whose link went down
+     */
+    private void forget(String node) {
+        this.remoteNames.values().removeIf(node::equals);
+
+        for (String room : this.interest.keySet()) {
+            this.interest.computeIfPresent(room, (key, nodes) -> {
+                nodes.remove(node);
+
+                return nodes.isEmpty() ? null : nodes;
+            });
+        }
+    }
+
+    private static String fold(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * A message between two nodes: its type followed by one or two strings
+     */
+    static final class Message {
+
+        private final byte type;
+
+        private final String first, second;
+
+        Message(byte type, String first, String second) {
+            this.type = type;
+            this.first = first;
+            this.second = second;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(this.type);
+            out.writeUTF(this.first);
+
+            if (this.second != null) {
+                out.writeUTF(this.second);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,131 @@
+package chat.server;
+
+/**
+ * Limits how fast a client may send, so that one client can't saturate the server: a chat line in a big
+ * room turns into a write for every member.
+ * <p>
+ * Every kind of line has its own {@link TokenBucket}. A line that finds its bucket empty is either refused
+ * with an ERROR, or handled anyway and the reads from the client are paused until the bucket is out of debt,
+ * which slows a flooding client down to the limit without losing anything it sent. Only used by the thread
+ * that owns the client
+ */
+public final class FloodControl {
+
+    /**
+     * What happens to a line over the limit
+     */
+    public enum Policy {
+        /**
+         * Refuse it with an ERROR
+         */
+        ERROR,
+        /**
+         * Handle it, and stop reading from the client until it's back under the limit
+         */
+        PAUSE
+    }
+
+    /**
+     * The kinds of lines that are limited separately
+     */
+    public enum Kind {
+        /**
+         * Chat messages to the room
+         */
+        LINE,
+        /**
+         * /join and /nick
+         */
+        CHURN,
+        /**
+         * /priv
+         */
+        PRIVATE
+    }
+
+    private final Policy policy;
+
+    private final Metrics metrics;
+
+    // Null for the kinds that aren't limited
+    private final TokenBucket lines, churn, privates;
+
+    // Until when the reads are paused, only meaningful if paused
+    private long resumeNanos;
+
+    private boolean paused;
+
+    /**
+     * @param config  Where the limits are read from
+     * @param metrics Where the lines over the limit are counted
+     */
+    public FloodControl(ServerConfig config, Metrics metrics) {
+        this.policy = config.getFloodPolicy();
+        this.metrics = metrics;
+        this.lines = bucket(config.getFloodLineRate(), config.getFloodLineBurst());
+        this.churn = bucket(config.getFloodChurnRate(), config.getFloodChurnBurst());
+        this.privates = bucket(config.getFloodPrivateRate(), config.getFloodPrivateBurst());
+    }
+
+    private static TokenBucket bucket(int rate, int burst) {
+        return rate > 0 ? new TokenBucket(rate, burst) : null;
+    }
+
+    /**
+     * Check if a line can be handled
+     *
+     * @param kind The kind of line
+     * @param now  When it was read
+     * @return false if it's refused, in which case the caller replies with an ERROR
+     */
+    public boolean allow(Kind kind, long now) {
+        TokenBucket bucket = switch (kind) {
+            case LINE -> this.lines;
+            case CHURN -> this.churn;
+            case PRIVATE -> this.privates;
+        };
+
+        if (bucket == null || bucket.tryTake(now)) {
+            return true;
+        }
+
+        if (this.policy == Policy.ERROR) {
+            this.metrics.floodRefused(kind);
+            return false;
+        }
+
+        long resume = now + bucket.borrow(now);
+
+        if (!this.paused || resume - this.resumeNanos > 0) {
+            this.resumeNanos = resume;
+        }
+
+        if (!this.paused) {
+            this.paused = true;
+            this.metrics.floodPaused(kind);
+        }
+
+        return true;
+    }
+
+    /**
+     * Check if a line handled since the last {@link #resume()} ran over the limit, with the PAUSE policy
+     *
+     * @return true if the reads have to pause
+     */
+    public boolean isPaused() {
+        return this.paused;
+    }
+
+    /**
+     * Get when the reads can resume, and start counting the next pause
+     *
+     * @return The {@link System#nanoTime()} the bucket that ran over is back under the limit
+     */
+    public long resume() {
+        this.paused = false;
+
+        return this.resumeNanos;
+    }
+
+}
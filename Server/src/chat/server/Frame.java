@@ -0,0 +1,331 @@
+package chat.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A protocol line that has been encoded once and can be queued to any amount of clients.
+ * <p>
+ * The encoded bytes are shared and read only, every recipient gets its own view of them
+ * so it can keep track of how much of the frame has been written. The text encoding is made
+ * up front, the binary one by the first binary client the frame is queued to
+ */
+public final class Frame {
+
+    private final String line;
+
+    private final ByteBuffer data;
+
+    // Shared with the untracked copies, so the binary encoding is only made once
+    private final Binary binary;
+
+    private final boolean droppable;
+
+    // When the line this frame answers was read, 0 if the delivery of this frame isn't measured
+    private final long arrivalNanos;
+
+    // Copies that haven't been written yet, plus one held by the broadcaster until it's done queueing
+    private final AtomicInteger pending;
+
+    // Set before the frame is handed to its room if the line it answers is traced, see Tracing
+    private long traceId;
+
+    private Frame(String line, Binary binary, boolean droppable, long arrivalNanos) {
+        this(line, ByteBuffer.wrap(line.getBytes(ChatServer.charset)).asReadOnlyBuffer(), binary, droppable, arrivalNanos);
+    }
+
+    private Frame(String line, ByteBuffer data, Binary binary, boolean droppable, long arrivalNanos) {
+        this.line = line;
+        this.data = data;
+        this.binary = binary;
+        this.droppable = droppable;
+        this.arrivalNanos = arrivalNanos;
+        this.pending = arrivalNanos == 0 ? null : new AtomicInteger(1);
+    }
+
+    /**
+     * Encode a control reply (OK, ERROR, PRIVATE, ...), that is never dropped for a slow client
+     *
+     * @param line The line, including the line feed
+     * @return The frame
+     */
+    public static Frame control(String line) {
+        return new Frame(line, Binary.text(line), false, 0);
+    }
+
+    /**
+     * Encode a control reply that has its own binary opcode (OK, ERROR, BYE)
+     *
+     * @param line   The line, including the line feed
+     * @param opcode The binary opcode
+     * @return The frame
+     */
+    static Frame control(String line, byte opcode) {
+        return new Frame(line, new Binary(opcode, 0, null, 0, null, null), false, 0);
+    }
+
+    /**
+     * Encode a room broadcast (MESSAGE, JOINED, LEFT, NEWNICK), that can be dropped for a slow client
+     *
+     * @param line The line, including the line feed
+     * @return The frame
+     */
+    public static Frame chat(String line) {
+        return new Frame(line, Binary.text(line), true, 0);
+    }
+
+    /**
+     * Encode a room broadcast whose delivery is measured, from the time the line it relays was read
+     * until the last copy of it has been written.
+     * <p>
+     * Has to be sent with {@link ChatServer#sendMessageToMembers(ClientHandler[], Frame)}, which releases the broadcaster's hold once it's done
+     *
+     * @param line         The line, including the line feed
+     * @param arrivalNanos The {@link System#nanoTime()} the relayed line was read at
+     * @return The frame
+     */
+    public static Frame chat(String line, long arrivalNanos) {
+        return new Frame(line, Binary.text(line), true, arrivalNanos);
+    }
+
+    /**
+     * Encode a chat message to a room, whose delivery is measured like {@link #chat(String, long)}
+     *
+     * @param senderId     The name id of the sender
+     * @param sender       The nick of the sender
+     * @param message      The message
+     * @param arrivalNanos The {@link System#nanoTime()} the message was read at
+     * @return The frame
+     */
+    public static Frame message(int senderId, String sender, String message, long arrivalNanos) {
+        return new Frame(String.format(ClientHandler.MESSAGE, sender, message),
+                new Binary(BinaryProtocol.MESSAGE, senderId, sender, 0, null, message), true, arrivalNanos);
+    }
+
+    /**
+     * Encode a private message
+     *
+     * @param senderId The name id of the sender
+     * @param sender   The nick of the sender
+     * @param message  The message
+     * @return The frame
+     */
+    public static Frame privateMessage(int senderId, String sender, String message) {
+        return new Frame(String.format(ClientHandler.PRIVATE, sender, message),
+                new Binary(BinaryProtocol.PRIVATE, senderId, sender, 0, null, message), false, 0);
+    }
+
+    /**
+     * Encode the broadcast of a user joining a room
+     *
+     * @param id   The name id of the user
+     * @param name The nick of the user
+     * @return The frame
+     */
+    public static Frame joined(int id, String name) {
+        return new Frame(String.format(ClientHandler.JOINED, name), new Binary(BinaryProtocol.JOINED, id, name, 0, null, null), true, 0);
+    }
+
+    /**
+     * Encode the broadcast of a user leaving a room
+     *
+     * @param id   The name id of the user
+     * @param name The nick of the user
+     * @return The frame
+     */
+    public static Frame left(int id, String name) {
+        return new Frame(String.format(ClientHandler.LEFT, name), new Binary(BinaryProtocol.LEFT, id, name, 0, null, null), true, 0);
+    }
+
+    /**
+     * Encode the broadcast of a user changing nicks
+     *
+     * @param oldId   The previous name id of the user
+     * @param oldName The previous nick
+     * @param newId   The new name id
+     * @param newName The new nick
+     * @return The frame
+     */
+    public static Frame newNick(int oldId, String oldName, int newId, String newName) {
+        return new Frame(String.format(ClientHandler.NEW_NICK, oldName, newName),
+                new Binary(BinaryProtocol.NEW_NICK, oldId, oldName, newId, newName, null), true, 0);
+    }
+
+    /**
+     * Encode the NAME frame that tells a binary client the nick behind a name id, it has no text encoding
+     *
+     * @param id   The name id
+     * @param name The nick
+     * @return The frame
+     */
+    static Frame name(int id, String name) {
+        return new Frame("", new Binary(BinaryProtocol.NAME, id, null, 0, null, name), false, 0);
+    }
+
+    /**
+     * Get a frame with the same encoded bytes whose delivery isn't measured, to be sent again later
+     *
+     * @return The frame, this one if its delivery isn't measured
+     */
+    public Frame untracked() {
+        return this.pending == null ? this : new Frame(this.line, this.data, this.binary, this.droppable, 0);
+    }
+
+    /**
+     * Get a new view of the text encoding for a single recipient
+     *
+     * @return The view, positioned at the start of the frame
+     */
+    public ByteBuffer view() {
+        return this.data.duplicate();
+    }
+
+    /**
+     * Get a new view of the encoding a recipient uses
+     *
+     * @param protocol The protocol of the recipient
+     * @return The view, positioned at the start of the frame
+     */
+    public ByteBuffer view(ClientHandler.Protocol protocol) {
+        return protocol == ClientHandler.Protocol.BINARY ? this.binary.encoded().duplicate() : this.data.duplicate();
+    }
+
+    /**
+     * Get the name id of the first user the binary encoding refers to
+     *
+     * @return The id, 0 if none
+     */
+    int getFirstId() {
+        return this.binary.firstId;
+    }
+
+    String getFirstName() {
+        return this.binary.firstName;
+    }
+
+    /**
+     * Get the name id of the second user the binary encoding refers to, the new nick of a NEWNICK
+     *
+     * @return The id, 0 if none
+     */
+    int getSecondId() {
+        return this.binary.secondId;
+    }
+
+    String getSecondName() {
+        return this.binary.secondName;
+    }
+
+    /**
+     * Count a copy of this frame that is about to be queued
+     */
+    public void retain() {
+        if (this.pending != null) {
+            this.pending.incrementAndGet();
+        }
+    }
+
+    /**
+     * Count a copy of this frame as done, either written or dropped.
+     * <p>
+     * Once the last copy is done the delivery time is recorded
+     */
+    public void release() {
+        if (this.pending != null && this.pending.decrementAndGet() == 0) {
+            ChatServer.getInstance().getMetrics().delivered(System.nanoTime() - this.arrivalNanos);
+
+            if (this.traceId != 0) {
+                Tracing.delivered(this.traceId, this.arrivalNanos);
+            }
+        }
+    }
+
+    /**
+     * Get the trace id of the line this frame answers
+     *
+     * @return The id, 0 if it isn't traced
+     */
+    long getTraceId() {
+        return this.traceId;
+    }
+
+    void setTraceId(long traceId) {
+        this.traceId = traceId;
+    }
+
+    /**
+     * Get the size of the text encoding
+     *
+     * @return The size in bytes
+     */
+    public int size() {
+        return this.data.remaining();
+    }
+
+    /**
+     * Whether this frame can be dropped for a client that can't keep up
+     *
+     * @return true if it's a chat message
+     */
+    public boolean isDroppable() {
+        return this.droppable;
+    }
+
+    /**
+     * Get the line this frame was encoded from
+     *
+     * @return The line
+     */
+    public String getLine() {
+        return this.line;
+    }
+
+    /**
+     * What the binary encoding is made of, and the encoding once it's been made
+     */
+    private static final class Binary {
+
+        private final byte opcode;
+
+        private final int firstId, secondId;
+
+        private final String firstName, secondName, text;
+
+        private volatile ByteBuffer encoded;
+
+        Binary(byte opcode, int firstId, String firstName, int secondId, String secondName, String text) {
+            this.opcode = opcode;
+            this.firstId = firstId;
+            this.firstName = firstName;
+            this.secondId = secondId;
+            this.secondName = secondName;
+            this.text = text;
+        }
+
+        /**
+         * A line that has no binary form of its own, sent as TEXT
+         */
+        static Binary text(String line) {
+            return new Binary(BinaryProtocol.TEXT, 0, null, 0, null, line);
+        }
+
+        ByteBuffer encoded() {
+            ByteBuffer encoded = this.encoded;
+
+            if (encoded == null) {
+                String text = this.text;
+
+                if (this.opcode == BinaryProtocol.TEXT && text.endsWith("\n")) {
+                    text = text.substring(0, text.length() - 1);
+                }
+
+                // Two clients racing for it encode it twice, which is harmless
+                this.encoded = encoded = BinaryProtocol.encode(this.opcode, this.firstId, this.secondId, text);
+            }
+
+            return encoded;
+        }
+
+    }
+
+}
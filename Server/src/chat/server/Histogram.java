@@ -0,0 +1,103 @@
+package chat.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of non negative values, e.g. latencies in nanoseconds.
+ * <p>
+ * Values are counted in log-linear buckets: every power of two is split into 8 buckets,
+ * so a percentile is accurate to within 12.5% whatever the magnitude of the values
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3, SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+
+    private final LongAdder count = new LongAdder(), sum = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Record a value, from any thread
+     *
+     * @param value The value, negative values are counted as 0
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+
+        this.buckets.incrementAndGet(bucket(value));
+        this.count.increment();
+        this.sum.add(value);
+        this.max.accumulate(value);
+    }
+
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    public long getSum() {
+        return this.sum.sum();
+    }
+
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * Get a percentile of the recorded values
+     *
+     * @param quantile The percentile, between 0 and 1 (0.99 for the p99)
+     * @return The upper bound of the bucket the percentile falls in, 0 if nothing has been recorded
+     */
+    public long getPercentile(double quantile) {
+        long total = 0;
+
+        for (int i = 0; i < this.buckets.length(); i++) {
+            total += this.buckets.get(i);
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total)), seen = 0;
+
+        for (int i = 0; i < this.buckets.length(); i++) {
+            seen += this.buckets.get(i);
+
+            if (seen >= rank) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+
+        return getMax();
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1, subBucket = bucket % SUB_BUCKETS;
+
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+
+        return (1L << exponent) + (subBucket + 1) * width - 1;
+    }
+
+}
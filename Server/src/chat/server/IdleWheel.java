@@ -0,0 +1,145 @@
+package chat.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Disconnects the clients that haven't sent anything for a while, which is how a connection whose peer
+ * vanished without closing it (a half-open connection) is ever noticed.
+ * <p>
+ * A hashed timing wheel: one slot per tick, each slot a list of the clients due to be checked at that tick.
+ * Reading from a client only stores when it happened, the wheel doesn't hear about it. When a client's slot
+ * comes up the wheel compares that time with the timeout, and either disconnects the client or moves it to
+ * the slot of its new deadline. Every client is looked at about once per timeout whatever it sends, and a
+ * tick only walks the clients of one slot instead of all of them.
+ * <p>
+ * The lists run through {@link ClientHandler#idleNext}, so adding and moving a client never allocates.
+ * Clients that went away are only dropped from their list when their slot comes up
+ */
+public class IdleWheel implements Runnable {
+
+    // The most ticks in a timeout, for the amount of slots to fit in an int
+    static final long MAX_TICKS = (1 << 30) - 3;
+
+    private final ChatServer server;
+
+    private final long timeoutNanos, tickNanos;
+
+    // A power of two, more slots than ticks in a timeout so a deadline never wraps around to a slot before it comes up
+    private final ClientHandler[] slots;
+
+    private final Thread thread;
+
+    // The tick the wheel is at, counted from the start
+    private long tick;
+
+    private final long start = System.nanoTime();
+
+    /**
+     * @param server        The server
+     * @param timeoutMillis How long a client may stay silent
+     * @param tickMillis    How often the wheel turns, a client is disconnected at most that late
+     */
+    public IdleWheel(ChatServer server, long timeoutMillis, long tickMillis) {
+        this.server = server;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.slots = new ClientHandler[Integer.highestOneBit((int) (timeoutMillis / tickMillis) + 2) * 2];
+        this.thread = new Thread(this, "idle-reaper");
+
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        this.thread.start();
+    }
+
+    /**
+     * Start watching a newly accepted client, safe to call from any thread
+     *
+     * @param client The client
+     */
+    public synchronized void add(ClientHandler client) {
+        schedule(client, client.getLastReadNanos() + this.timeoutNanos);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            long next = this.start + (this.tick + 1) * this.tickNanos, now;
+
+            while ((now = System.nanoTime()) < next) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(next - now);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            advance(now);
+        }
+    }
+
+    /**
+     * Move to the next tick and check the clients of its slot
+     *
+     * @param now The current time
+     */
+    private void advance(long now) {
+        ClientHandler client, idle = null;
+
+        synchronized (this) {
+            this.tick++;
+
+            int slot = (int) (this.tick & (this.slots.length - 1));
+
+            client = this.slots[slot];
+            this.slots[slot] = null;
+
+            while (client != null) {
+                ClientHandler next = client.idleNext;
+
+                client.idleNext = null;
+
+                if (!client.isClosed()) {
+                    long deadline = client.getLastReadNanos() + this.timeoutNanos;
+
+                    if (deadline - now <= 0) {
+                        // Torn down outside of the lock, the list of the idle ones is threaded the same way
+                        client.idleNext = idle;
+                        idle = client;
+                    } else {
+                        schedule(client, deadline);
+                    }
+                }
+
+                client = next;
+            }
+        }
+
+        while (idle != null) {
+            ClientHandler next = idle.idleNext;
+
+            idle.idleNext = null;
+
+            Log.debug("Disconnecting {}, silent for too long", idle.getSocket().socket());
+
+            this.server.getMetrics().idleDisconnected();
+            this.server.deleteClient(idle);
+
+            idle = next;
+        }
+    }
+
+    /**
+     * Put a client in the slot of the first tick at or after its deadline
+     */
+    private void schedule(ClientHandler client, long deadline) {
+        long due = Math.max(this.tick + 1, Math.ceilDiv(deadline - this.start, this.tickNanos));
+
+        int slot = (int) (due & (this.slots.length - 1));
+
+        client.idleNext = this.slots[slot];
+        this.slots[slot] = client;
+    }
+
+}
@@ -0,0 +1,130 @@
+package chat.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the bytes received from a client into lines.
+ * <p>
+ * Works on the raw bytes, so a multi byte character split across two reads is only decoded
+ * once the whole line has arrived. Lines that arrive in a single read are decoded straight
+ * out of the read buffer; only the incomplete tail of a read is copied and kept until the next one
+ */
+public class LineDecoder implements Decoder {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final int maxLineLength;
+
+    // The start of a line whose end we haven't received yet, only allocated while there's one
+    private byte[] partial;
+
+    private int partialLength;
+
+    // Whether we're skipping the rest of a line that went over the limit
+    private boolean discarding;
+
+    public LineDecoder(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    @Override
+    public void decode(ByteBuffer buffer, ClientHandler client) {
+        byte[] array = buffer.array();
+
+        int start = buffer.arrayOffset() + buffer.position(), end = buffer.arrayOffset() + buffer.limit();
+
+        for (int i = start; i < end; i++) {
+
+            if (array[i] != '\n') {
+                continue;
+            }
+
+            if (this.discarding) {
+                // The end of the line that was too long
+                this.discarding = false;
+            } else if (this.partialLength + (i - start) > this.maxLineLength) {
+                this.partial = null;
+                this.partialLength = 0;
+
+                client.lineTooLong();
+            } else if (this.partialLength > 0) {
+                append(array, start, i - start);
+
+                String line = new String(this.partial, 0, this.partialLength, ChatServer.charset);
+
+                // Only held while a line is incomplete, an idle client keeps none
+                this.partial = null;
+                this.partialLength = 0;
+
+                client.receiveFinalMessage(line);
+            } else {
+                client.receiveFinalMessage(new String(array, start, i - start, ChatServer.charset));
+            }
+
+            start = i + 1;
+
+            if (client.isClosed()) {
+                // The line disconnected the client (/bye), ignore whatever came after it
+                buffer.position(buffer.limit());
+                return;
+            }
+
+            if (client.getDecoder() != this) {
+                // The line switched the protocol, the rest is for the new decoder
+                buffer.position(start - buffer.arrayOffset());
+                return;
+            }
+        }
+
+        buffer.position(buffer.limit());
+
+        if (start == end || this.discarding) {
+            return;
+        }
+
+        if (this.partialLength + (end - start) > this.maxLineLength) {
+            this.partial = null;
+            this.partialLength = 0;
+            this.discarding = true;
+
+            client.lineTooLong();
+            return;
+        }
+
+        append(array, start, end - start);
+    }
+
+    /**
+     * Get the amount of bytes of an incomplete line that are being held
+     *
+     * @return The amount of bytes
+     */
+    public int getPending() {
+        return this.partialLength;
+    }
+
+    private void append(byte[] array, int offset, int length) {
+        int required = this.partialLength + length;
+
+        if (this.partial == null || this.partial.length < required) {
+            int capacity = this.partial == null ? INITIAL_CAPACITY : this.partial.length;
+
+            while (capacity < required) {
+                capacity *= 2;
+            }
+
+            byte[] partial = new byte[Math.min(capacity, Math.max(this.maxLineLength, required))];
+
+            if (this.partialLength > 0) {
+                System.arraycopy(this.partial, 0, partial, 0, this.partialLength);
+            }
+
+            this.partial = partial;
+        }
+
+        System.arraycopy(array, offset, this.partial, this.partialLength, length);
+
+        this.partialLength = required;
+    }
+
+}
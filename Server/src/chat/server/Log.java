@@ -0,0 +1,271 @@
+package chat.server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logger for the server.
+ * <p>
+ * The reactors only build a record and offer it to a bounded ring, the formatting and the writing
+ * happen on a background thread that writes the records in batches. When the ring is full the
+ * record is dropped and counted instead of making the reactor wait.
+ * <p>
+ * Messages use {} as the placeholder for their arguments, e.g. {@code Log.info("Got connection from {}", socket)}.
+ * Each record is written as a logfmt line: {@code ts=... level=INFO thread=reactor-0 msg="..."}
+ */
+public final class Log {
+
+    public enum Level {
+        TRACE,
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR
+    }
+
+    private static final int BATCH_SIZE = 512;
+
+    private static volatile Level level = Level.INFO;
+
+    private static volatile RingBuffer<Record> ring = new RingBuffer<>(65536);
+
+    private static final LongAdder dropped = new LongAdder();
+
+    private static Thread writer;
+
+    // Set while the writer is parked, or about to be, so the next record wakes it up
+    private static volatile boolean sleeping;
+
+    private Log() {
+    }
+
+    /**
+     * Start the background writer
+     *
+     * @param minimum  The lowest level that is logged
+     * @param file     The file to append to, null to write to the standard output
+     * @param capacity The amount of records that can be waiting to be written
+     * @throws IOException If the file can't be opened
+     */
+    public static synchronized void start(Level minimum, String file, int capacity) throws IOException {
+        if (writer != null) {
+            throw new IllegalStateException("The logger has already been started");
+        }
+
+        OutputStream out = file == null ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(file, true);
+
+        Writer output = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 65536);
+
+        level = minimum;
+        ring = new RingBuffer<>(capacity);
+
+        writer = new Thread(() -> writeLoop(output), "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        // Whatever is still in the ring when the server goes down
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> drain(output)));
+    }
+
+    /**
+     * Check if a level is logged, to guard the records that are expensive to build
+     *
+     * @param check The level
+     * @return true if records of that level are logged
+     */
+    public static boolean isEnabled(Level check) {
+        return check.compareTo(level) >= 0;
+    }
+
+    public static void trace(String message, Object... args) {
+        log(Level.TRACE, message, args, null);
+    }
+
+    public static void debug(String message, Object... args) {
+        log(Level.DEBUG, message, args, null);
+    }
+
+    public static void info(String message, Object... args) {
+        log(Level.INFO, message, args, null);
+    }
+
+    public static void warn(String message, Object... args) {
+        log(Level.WARN, message, args, null);
+    }
+
+    public static void error(String message, Throwable error, Object... args) {
+        log(Level.ERROR, message, args, error);
+    }
+
+    /**
+     * Get the amount of records that were dropped because the ring was full
+     *
+     * @return The amount of records
+     */
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    private static void log(Level recordLevel, String message, Object[] args, Throwable error) {
+        if (!isEnabled(recordLevel)) {
+            return;
+        }
+
+        Record record = new Record(System.currentTimeMillis(), recordLevel, Thread.currentThread().getName(), message, args, error);
+
+        if (!ring.offer(record)) {
+            dropped.increment();
+        } else if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private static void writeLoop(Writer output) {
+        long reportedDrops = 0;
+
+        while (true) {
+            drain(output);
+
+            long drops = dropped.sum();
+
+            if (drops != reportedDrops) {
+                write(output, new Record(System.currentTimeMillis(), Level.WARN, "log-writer",
+                        "Dropped {} log records, the ring is full", new Object[]{drops - reportedDrops}, null));
+
+                reportedDrops = drops;
+
+                // Flushed now rather than with the next record, which may be a long time coming
+                drain(output);
+            }
+
+            // Checked again once the flag is visible, a record offered in between either sees the flag or is seen here
+            sleeping = true;
+
+            if (ring.size() == 0) {
+                LockSupport.park(Log.class);
+            }
+
+            sleeping = false;
+        }
+    }
+
+    /**
+     * Write whatever is in the ring, in batches with a single flush each
+     *
+     * @return The amount of records that were written
+     */
+    private static synchronized int drain(Writer output) {
+        int written = 0, batch;
+
+        do {
+            Record record;
+
+            batch = 0;
+
+            while (batch < BATCH_SIZE && (record = ring.poll()) != null) {
+                write(output, record);
+                batch++;
+            }
+
+            written += batch;
+
+            try {
+                output.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } while (batch == BATCH_SIZE);
+
+        return written;
+    }
+
+    private static void write(Writer output, Record record) {
+        try {
+            output.write(record.format());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static final class Record {
+
+        private final long timestamp;
+
+        private final Level level;
+
+        private final String thread, message;
+
+        private final Object[] args;
+
+        private final Throwable error;
+
+        private Record(long timestamp, Level level, String thread, String message, Object[] args, Throwable error) {
+            this.timestamp = timestamp;
+            this.level = level;
+            this.thread = thread;
+            this.message = message;
+            this.args = args;
+            this.error = error;
+        }
+
+        private String format() {
+            StringBuilder line = new StringBuilder(128)
+                    .append("ts=").append(Instant.ofEpochMilli(this.timestamp))
+                    .append(" level=").append(this.level)
+                    .append(" thread=").append(this.thread)
+                    .append(" msg=\"");
+
+            int arg = 0, from = 0, placeholder;
+
+            while ((placeholder = this.message.indexOf("{}", from)) >= 0 && arg < this.args.length) {
+                escape(line, this.message, from, placeholder);
+                escape(line, String.valueOf(this.args[arg++]), 0, -1);
+
+                from = placeholder + 2;
+            }
+
+            escape(line, this.message, from, this.message.length());
+
+            line.append('"');
+
+            if (this.error != null) {
+                StringWriter trace = new StringWriter();
+
+                this.error.printStackTrace(new PrintWriter(trace));
+
+                line.append(" error=\"");
+                escape(line, trace.toString(), 0, -1);
+                line.append('"');
+            }
+
+            return line.append('\n').toString();
+        }
+
+        private static void escape(StringBuilder line, String text, int from, int to) {
+            if (to < 0) {
+                to = text.length();
+            }
+
+            for (int i = from; i < to; i++) {
+                char c = text.charAt(i);
+
+                if (c == '"' || c == '\\') {
+                    line.append('\\').append(c);
+                } else if (c == '\n') {
+                    line.append("\\n");
+                } else if (c == '\r') {
+                    line.append("\\r");
+                } else if (c == '\t') {
+                    line.append("\\t");
+                } else {
+                    line.append(c);
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,583 @@
+package chat.server;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Durable, append only log of the room and private messages, on memory mapped segment files.
+ * <p>
+ * The reactors only offer the already encoded frame to a bounded ring, like the records of {@link Log}.
+ * A background thread copies the frames into the current segment and forces them to disk in batches,
+ * at most once per sync interval. When the ring is full the message isn't logged, and is counted,
+ * instead of making the reactor wait.
+ * <p>
+ * Every room keeps an index of the positions of its messages, rebuilt from the segments at startup,
+ * so a {@code /history} request reads the last messages of a room straight out of the mapped segments.
+ * Old segments are deleted once the log goes over its size limit or they get too old.
+ * <p>
+ * Each record is {@code [int length][long timestamp][short key length][key][line]}, where the key is the
+ * room, or {@code @} followed by the destination for a private message. A length of 0 marks the end of the data
+ */
+public class MessageLog {
+
+    // The most messages a single /history request returns
+    public static final int MAX_HISTORY = 200;
+
+    private static final int BATCH_SIZE = 512;
+
+    private static final int HEADER = Integer.BYTES + Long.BYTES + Short.BYTES;
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final long syncNanos, retentionBytes, retentionMillis;
+
+    private final RingBuffer<Request> ring;
+
+    private final LongAdder dropped = new LongAdder();
+
+    // Everything below is only touched by the writer thread
+
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    // Room -> positions of its messages, oldest first
+    private final Map<String, Positions> index = new HashMap<>();
+
+    private Segment active;
+
+    // The part of the active segment that hasn't been forced to disk yet
+    private int unsyncedFrom;
+
+    private long lastSync;
+
+    private Thread writer;
+
+    // Set while the writer is parked, or about to be, so the next request wakes it up
+    private volatile boolean sleeping;
+
+    /**
+     * @param directory       The directory of the segment files, created if it doesn't exist
+     * @param segmentSize     The size of each segment file
+     * @param syncMillis      The longest time an appended message waits to be forced to disk
+     * @param retentionBytes  The size of the log, over which the oldest segments are deleted
+     * @param retentionMillis The age after which a segment is deleted
+     * @param capacity        The amount of messages that can be waiting to be appended
+     */
+    public MessageLog(Path directory, int segmentSize, long syncMillis, long retentionBytes, long retentionMillis, int capacity) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncNanos = TimeUnit.MILLISECONDS.toNanos(syncMillis);
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.ring = new RingBuffer<>(capacity);
+    }
+
+    /**
+     * Open the existing segments, rebuild the index and start the background writer
+     *
+     * @throws IOException If the segments can't be read or created
+     */
+    public void start() throws IOException {
+        Files.createDirectories(this.directory);
+
+        List<Path> files;
+
+        try (Stream<Path> list = Files.list(this.directory)) {
+            files = list.filter(file -> file.getFileName().toString().matches("segment-\\d+\\.log")).sorted().toList();
+        }
+
+        for (Path file : files) {
+            Segment segment = Segment.open(file, segmentIdOf(file), this.segmentSize);
+
+            this.segments.add(segment);
+
+            recover(segment);
+        }
+
+        if (this.segments.isEmpty()) {
+            roll(0);
+        } else {
+            this.active = this.segments.getLast();
+            this.unsyncedFrom = this.active.end;
+        }
+
+        Log.info("Message log in {}: {} segments, {} rooms", this.directory, this.segments.size(), this.index.size());
+
+        this.lastSync = System.nanoTime();
+
+        this.writer = new Thread(this::writeLoop, "message-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+
+        // Whatever is still in the ring when the server goes down
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            synchronized (this) {
+                drain();
+                sync();
+            }
+        }));
+    }
+
+    /**
+     * Append a room message, from any thread
+     *
+     * @param room  The room
+     * @param frame The encoded message
+     */
+    public void appendRoomMessage(String room, Frame frame) {
+        append(room, frame);
+    }
+
+    /**
+     * Append a private message, from any thread
+     *
+     * @param dest  The nick the message was sent to
+     * @param frame The encoded message
+     */
+    public void appendPrivateMessage(String dest, Frame frame) {
+        append("@" + dest, frame);
+    }
+
+    private void append(String key, Frame frame) {
+        if (this.ring.offer(new Request(key, frame, null, 0))) {
+            wakeWriter();
+        } else {
+            this.dropped.increment();
+        }
+    }
+
+    /**
+     * Send the last messages of a room to a client, followed by an OK.
+     * <p>
+     * The messages are read by the background writer, after everything that has already been appended
+     *
+     * @param client The client that asked
+     * @param room   The room
+     * @param count  The amount of messages, at most {@link #MAX_HISTORY}
+     */
+    public void requestHistory(ClientHandler client, String room, int count) {
+        if (this.ring.offer(new Request(room, null, client, Math.min(count, MAX_HISTORY)))) {
+            wakeWriter();
+        } else {
+            client.sendMessage(ClientHandler.ERROR_FRAME);
+        }
+    }
+
+    private void wakeWriter() {
+        if (this.sleeping) {
+            LockSupport.unpark(this.writer);
+        }
+    }
+
+    /**
+     * Get the amount of messages that weren't logged because the ring was full
+     *
+     * @return The amount of messages
+     */
+    public long getDropped() {
+        return this.dropped.sum();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            boolean unsynced;
+            long syncDue;
+
+            synchronized (this) {
+                drain();
+
+                if (System.nanoTime() - this.lastSync >= this.syncNanos) {
+                    sync();
+                    retain();
+                }
+
+                unsynced = this.active.end > this.unsyncedFrom;
+                syncDue = this.lastSync + this.syncNanos;
+            }
+
+            // Checked again once the flag is visible, a request offered in between either sees the flag or is seen here
+            this.sleeping = true;
+
+            if (this.ring.size() == 0) {
+                if (unsynced) {
+                    // Only until the messages that were appended have to be forced to disk
+                    LockSupport.parkNanos(this, syncDue - System.nanoTime());
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+
+            this.sleeping = false;
+        }
+    }
+
+    /**
+     * Handle whatever is in the ring
+     *
+     * @return The amount of requests that were handled
+     */
+    private int drain() {
+        int handled = 0, batch;
+
+        do {
+            Request request;
+
+            batch = 0;
+
+            while (batch < BATCH_SIZE && (request = this.ring.poll()) != null) {
+                try {
+                    if (request.client == null) {
+                        write(request.key, request.frame);
+                    } else {
+                        sendHistory(request.client, request.key, request.count);
+                    }
+                } catch (IOException e) {
+                    Log.error("Failed to write to the message log", e);
+                }
+
+                batch++;
+            }
+
+            handled += batch;
+        } while (batch == BATCH_SIZE);
+
+        return handled;
+    }
+
+    private void write(String key, Frame frame) throws IOException {
+        byte[] keyBytes = key.getBytes(ChatServer.charset);
+
+        int length = HEADER + keyBytes.length + frame.size();
+
+        if (length > this.segmentSize) {
+            return;
+        }
+
+        if (this.active.end + length + Integer.BYTES > this.segmentSize) {
+            sync();
+            roll(this.active.id + 1);
+            retain();
+        }
+
+        ByteBuffer buffer = this.active.buffer;
+
+        int position = this.active.end;
+
+        // The body first and the length last, so a record is only there once it's complete
+        buffer.putLong(position + Integer.BYTES, System.currentTimeMillis());
+        buffer.putShort(position + Integer.BYTES + Long.BYTES, (short) keyBytes.length);
+        buffer.put(position + HEADER, keyBytes);
+        buffer.put(position + HEADER + keyBytes.length, frame.view(), 0, frame.size());
+        buffer.putInt(position, length);
+
+        this.active.end += length;
+        this.active.lastAppend = System.currentTimeMillis();
+
+        if (key.charAt(0) != '@') {
+            this.index.computeIfAbsent(key, room -> new Positions()).add(position(this.active.id, position));
+        }
+    }
+
+    private void sendHistory(ClientHandler client, String room, int count) {
+        Positions positions = this.index.get(room);
+
+        if (positions != null) {
+            Segment segment = null;
+
+            for (int i = Math.max(0, positions.size - count); i < positions.size; i++) {
+                long position = positions.get(i), id = position >>> 32;
+
+                // The positions of a room are in order, only looked up again when they move to the next segment
+                if (segment == null || segment.id != id) {
+                    segment = find(id);
+                }
+
+                if (segment != null) {
+                    client.sendMessage(Frame.control(segment.readLine((int) position)));
+                }
+            }
+        }
+
+        client.sendMessage(ClientHandler.OK_FRAME);
+    }
+
+    /**
+     * Force what has been appended since the last sync to disk
+     */
+    private void sync() {
+        if (this.active.end > this.unsyncedFrom) {
+            this.active.buffer.force(this.unsyncedFrom, this.active.end - this.unsyncedFrom);
+
+            this.unsyncedFrom = this.active.end;
+        }
+
+        this.lastSync = System.nanoTime();
+    }
+
+    /**
+     * Start a new segment
+     */
+    private void roll(long id) throws IOException {
+        this.active = Segment.open(this.directory.resolve(String.format("segment-%020d.log", id)), id, this.segmentSize);
+        this.segments.add(this.active);
+        this.unsyncedFrom = 0;
+    }
+
+    /**
+     * Delete the oldest segments while the log is over its size limit, or they're too old
+     */
+    private void retain() {
+        long now = System.currentTimeMillis();
+
+        while (this.segments.size() > 1) {
+            Segment oldest = this.segments.getFirst();
+
+            boolean tooBig = (long) this.segments.size() * this.segmentSize > this.retentionBytes,
+                    tooOld = now - oldest.lastAppend > this.retentionMillis;
+
+            if (!tooBig && !tooOld) {
+                break;
+            }
+
+            this.segments.removeFirst();
+
+            long firstKept = position(this.segments.getFirst().id, 0);
+
+            this.index.values().removeIf(positions -> positions.trim(firstKept));
+
+            // Nothing refers to its mapping anymore, the file only frees its blocks once it's unmapped
+            oldest.unmap();
+
+            try {
+                Files.deleteIfExists(oldest.path);
+
+                Log.info("Deleted the message log segment {}", oldest.path.getFileName());
+            } catch (IOException e) {
+                Log.error("Failed to delete the message log segment {}", e, oldest.path.getFileName());
+            }
+        }
+    }
+
+    /**
+     * Index the records of a segment that was opened at startup
+     */
+    private void recover(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+
+        int position = 0;
+
+        while (position + HEADER <= this.segmentSize) {
+            int length = buffer.getInt(position);
+
+            if (length < HEADER || position + length > this.segmentSize) {
+                break;
+            }
+
+            segment.lastAppend = buffer.getLong(position + Integer.BYTES);
+
+            String key = segment.readKey(position);
+
+            if (!key.isEmpty() && key.charAt(0) != '@') {
+                this.index.computeIfAbsent(key, room -> new Positions()).add(position(segment.id, position));
+            }
+
+            position += length;
+        }
+
+        segment.end = position;
+    }
+
+    private Segment find(long id) {
+        for (Segment segment : this.segments) {
+            if (segment.id == id) {
+                return segment;
+            }
+        }
+
+        return null;
+    }
+
+    private static long position(long segment, int offset) {
+        return segment << 32 | offset;
+    }
+
+    private static long segmentIdOf(Path file) {
+        String name = file.getFileName().toString();
+
+        return Long.parseLong(name.substring("segment-".length(), name.length() - ".log".length()));
+    }
+
+    private static final class Request {
+
+        private final String key;
+
+        private final Frame frame;
+
+        private final ClientHandler client;
+
+        private final int count;
+
+        private Request(String key, Frame frame, ClientHandler client, int count) {
+            this.key = key;
+            this.frame = frame;
+            this.client = client;
+            this.count = count;
+        }
+
+    }
+
+    private static final class Segment {
+
+        // Unmaps the segments that are deleted, null if the JDK doesn't let us, they're then unmapped by the GC
+        private static final Method UNMAP;
+
+        private static final Object UNSAFE;
+
+        static {
+            Method unmap = null;
+            Object unsafe = null;
+
+            try {
+                Class<?> type = Class.forName("sun.misc.Unsafe");
+                Field field = type.getDeclaredField("theUnsafe");
+
+                field.setAccessible(true);
+
+                unsafe = field.get(null);
+                unmap = type.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                Log.warn("The deleted message log segments are only unmapped by the GC: {}", e);
+            }
+
+            UNMAP = unmap;
+            UNSAFE = unsafe;
+        }
+
+        private final Path path;
+
+        private final long id;
+
+        // Null once unmapped
+        private MappedByteBuffer buffer;
+
+        // Where the next record goes
+        private int end;
+
+        private long lastAppend;
+
+        private Segment(Path path, long id, MappedByteBuffer buffer) {
+            this.path = path;
+            this.id = id;
+            this.buffer = buffer;
+            this.lastAppend = System.currentTimeMillis();
+        }
+
+        private static Segment open(Path path, long id, int size) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // The mapping stays valid after the channel is closed
+                return new Segment(path, id, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            }
+        }
+
+        /**
+         * Release the mapping right away, the segment can't be read anymore
+         */
+        private void unmap() {
+            MappedByteBuffer buffer = this.buffer;
+
+            this.buffer = null;
+
+            if (UNMAP != null) {
+                try {
+                    UNMAP.invoke(UNSAFE, buffer);
+                } catch (ReflectiveOperationException e) {
+                    Log.error("Failed to unmap the message log segment {}", e, this.path.getFileName());
+                }
+            }
+        }
+
+        private String readKey(int position) {
+            int keyLength = this.buffer.getShort(position + Integer.BYTES + Long.BYTES);
+
+            byte[] key = new byte[keyLength];
+
+            this.buffer.get(position + HEADER, key);
+
+            return new String(key, ChatServer.charset);
+        }
+
+        private String readLine(int position) {
+            int length = this.buffer.getInt(position),
+                    keyLength = this.buffer.getShort(position + Integer.BYTES + Long.BYTES);
+
+            byte[] line = new byte[length - HEADER - keyLength];
+
+            this.buffer.get(position + HEADER + keyLength, line);
+
+            return new String(line, ChatServer.charset);
+        }
+
+    }
+
+    /**
+     * The positions of the messages of a room, a growable array of segment id and offset pairs
+     */
+    private static final class Positions {
+
+        private long[] positions = new long[8];
+
+        private int size;
+
+        void add(long position) {
+            if (this.size == this.positions.length) {
+                this.positions = Arrays.copyOf(this.positions, this.size * 2);
+            }
+
+            this.positions[this.size++] = position;
+        }
+
+        long get(int i) {
+            return this.positions[i];
+        }
+
+        /**
+         * Forget the positions before the given one
+         *
+         * @return true if nothing is left
+         */
+        boolean trim(long first) {
+            int from = 0;
+
+            while (from < this.size && this.positions[from] < first) {
+                from++;
+            }
+
+            if (from > 0) {
+                this.size -= from;
+
+                long[] positions = new long[Math.max(8, Integer.highestOneBit(Math.max(1, this.size)) << 1)];
+
+                System.arraycopy(this.positions, from, positions, 0, this.size);
+
+                this.positions = positions;
+            }
+
+            return this.size == 0;
+        }
+
+    }
+
+}
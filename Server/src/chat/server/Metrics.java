@@ -0,0 +1,218 @@
+package chat.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The runtime counters of the server.
+ * <p>
+ * Everything here is updated from the reactors without locks, the counters are only
+ * summed up when they're read by the admin endpoint
+ */
+public class Metrics {
+
+    private final LongAdder accepts = new LongAdder(),
+            disconnects = new LongAdder(),
+            idleDisconnects = new LongAdder(),
+            inboundLines = new LongAdder(),
+            outboundBytes = new LongAdder(),
+            outboundFrames = new LongAdder(),
+            outboundWrites = new LongAdder(),
+            droppedFrames = new LongAdder(),
+            compressionInput = new LongAdder(),
+            compressionOutput = new LongAdder(),
+            compressionNanos = new LongAdder(),
+            compressionSkipped = new LongAdder(),
+            mailboxFull = new LongAdder();
+
+    // Lines over the flood control limits, by FloodControl.Kind
+    private final LongAdder[] floodRefused = adders(FloodControl.Kind.values().length),
+            floodPaused = adders(FloodControl.Kind.values().length);
+
+    // Connections reset right after their accept, by Admission.Reason
+    private final LongAdder[] rejected = adders(Admission.Reason.values().length);
+
+    // Members a room broadcast was queued to
+    private final Histogram fanOut = new Histogram();
+
+    // Nanoseconds from reading a chat line to writing the last copy of its broadcast
+    private final Histogram deliveryLatency = new Histogram();
+
+    public void accepted() {
+        this.accepts.increment();
+    }
+
+    public void disconnected() {
+        this.disconnects.increment();
+    }
+
+    public void idleDisconnected() {
+        this.idleDisconnects.increment();
+    }
+
+    public void lineReceived() {
+        this.inboundLines.increment();
+    }
+
+    /**
+     * Count a write to a client's socket
+     *
+     * @param bytes  The bytes it wrote
+     * @param frames The frames it completed
+     */
+    public void written(long bytes, int frames) {
+        this.outboundWrites.increment();
+        this.outboundBytes.add(bytes);
+        this.outboundFrames.add(frames);
+    }
+
+    public void framesDropped(long frames) {
+        this.droppedFrames.add(frames);
+    }
+
+    /**
+     * Count a batch of output that has been deflated
+     *
+     * @param input  The bytes before
+     * @param output The bytes after
+     * @param nanos  The time it took
+     */
+    public void compressed(long input, long output, long nanos) {
+        this.compressionInput.add(input);
+        this.compressionOutput.add(output);
+        this.compressionNanos.add(nanos);
+    }
+
+    /**
+     * Count a batch of output of a compressed client that was too small to be worth deflating
+     *
+     * @param bytes The bytes
+     */
+    public void compressionSkipped(long bytes) {
+        this.compressionSkipped.add(bytes);
+    }
+
+    /**
+     * Count a line refused by the flood control
+     *
+     * @param kind The kind of line
+     */
+    public void floodRefused(FloodControl.Kind kind) {
+        this.floodRefused[kind.ordinal()].increment();
+    }
+
+    /**
+     * Count a pause of the reads from a client that ran over the flood control limits
+     *
+     * @param kind The kind of line that ran over
+     */
+    public void floodPaused(FloodControl.Kind kind) {
+        this.floodPaused[kind.ordinal()].increment();
+    }
+
+    /**
+     * Count a command that found the mailbox of its room shard full, and had to wait
+     */
+    public void mailboxFull() {
+        this.mailboxFull.increment();
+    }
+
+    /**
+     * Count a connection that was refused by the admission control
+     *
+     * @param reason Why it was refused
+     */
+    public void rejected(Admission.Reason reason) {
+        this.rejected[reason.ordinal()].increment();
+    }
+
+    public void fannedOut(int recipients) {
+        this.fanOut.record(recipients);
+    }
+
+    public void delivered(long nanos) {
+        this.deliveryLatency.record(nanos);
+    }
+
+    public long getAccepts() {
+        return this.accepts.sum();
+    }
+
+    public long getDisconnects() {
+        return this.disconnects.sum();
+    }
+
+    public long getIdleDisconnects() {
+        return this.idleDisconnects.sum();
+    }
+
+    public long getInboundLines() {
+        return this.inboundLines.sum();
+    }
+
+    public long getOutboundBytes() {
+        return this.outboundBytes.sum();
+    }
+
+    public long getOutboundFrames() {
+        return this.outboundFrames.sum();
+    }
+
+    public long getOutboundWrites() {
+        return this.outboundWrites.sum();
+    }
+
+    public long getDroppedFrames() {
+        return this.droppedFrames.sum();
+    }
+
+    public long getCompressionInput() {
+        return this.compressionInput.sum();
+    }
+
+    public long getCompressionOutput() {
+        return this.compressionOutput.sum();
+    }
+
+    public long getCompressionNanos() {
+        return this.compressionNanos.sum();
+    }
+
+    public long getCompressionSkipped() {
+        return this.compressionSkipped.sum();
+    }
+
+    public long getMailboxFull() {
+        return this.mailboxFull.sum();
+    }
+
+    public long getFloodRefused(FloodControl.Kind kind) {
+        return this.floodRefused[kind.ordinal()].sum();
+    }
+
+    public long getFloodPaused(FloodControl.Kind kind) {
+        return this.floodPaused[kind.ordinal()].sum();
+    }
+
+    public long getRejected(Admission.Reason reason) {
+        return this.rejected[reason.ordinal()].sum();
+    }
+
+    public Histogram getFanOut() {
+        return this.fanOut;
+    }
+
+    public Histogram getDeliveryLatency() {
+        return this.deliveryLatency;
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+
+        return adders;
+    }
+
+}
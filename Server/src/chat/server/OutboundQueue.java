@@ -0,0 +1,538 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * The frames waiting to be written to a client.
+ * <p>
+ * Frames can be offered from any thread, but are only written by the transport that owns the client.
+ * They're copied into a direct buffer borrowed from the {@link BufferPool} to be written, which is given
+ * back once the socket took all of it. A frame only partially copied stays at the head of the queue
+ */
+public class OutboundQueue {
+
+    /**
+     * What to do with a client that has more than the limit of bytes waiting to be written
+     */
+    public enum Policy {
+        /**
+         * Disconnect the client
+         */
+        DISCONNECT,
+        /**
+         * Drop the oldest chat messages, the control replies (OK, ERROR, ...) are always kept
+         */
+        DROP_OLDEST
+    }
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final long limit;
+
+    private final Policy policy;
+
+    private final Metrics metrics;
+
+    private final BufferPool pool;
+
+    // Ring of the views of the queued frames, the length is always a power of two
+    private ByteBuffer[] views = new ByteBuffer[INITIAL_CAPACITY];
+
+    // The frame each view belongs to
+    private Frame[] frames = new Frame[INITIAL_CAPACITY];
+
+    private int head, size;
+
+    // Bytes still waiting to be written
+    private long bytes;
+
+    // Bytes written to the socket since the start, the compressed ones if compressed
+    private long written;
+
+    private long dropped;
+
+    // Set once the client asked for compression, see Compressor
+    private Compressor compressor;
+
+    // Frames at the head that were queued before compression started, and are still written as they are
+    private int uncompressed;
+
+    // The bytes copied out of the frames that the socket hasn't taken yet, borrowed from the pool
+    private ByteBuffer copied;
+
+    // The frames whose end is in the copied bytes
+    private int copiedFrames;
+
+    public OutboundQueue(long limit, Policy policy, Metrics metrics, BufferPool pool) {
+        this.limit = limit;
+        this.policy = policy;
+        this.metrics = metrics;
+        this.pool = pool;
+    }
+
+    /**
+     * Queue a view of a frame to be written.
+     * <p>
+     * The frame is released once its view has been written or dropped
+     *
+     * @param frame The frame
+     * @param view  The view of the encoding the client uses
+     * @return false if the client is over its limit and has to be disconnected
+     */
+    public synchronized boolean offer(Frame frame, ByteBuffer view) {
+
+        if (this.size == this.frames.length) {
+            grow();
+        }
+
+        int tail = (this.head + this.size) & (this.frames.length - 1);
+
+        this.views[tail] = view;
+        this.frames[tail] = frame;
+        this.size++;
+        this.bytes += view.remaining();
+
+        if (this.bytes <= this.limit) {
+            return true;
+        }
+
+        if (this.policy == Policy.DISCONNECT) {
+            return false;
+        }
+
+        dropOldest();
+
+        return true;
+    }
+
+    /**
+     * Write as much of the queue as the socket accepts without blocking.
+     * <p>
+     * The frames that piled up since the last flush are copied together, so they usually go out in a single write
+     *
+     * @param socket The socket to write to, or any other channel
+     * @return true if the queue has been completely written
+     * @throws IOException If the write fails
+     */
+    public synchronized boolean writeTo(GatheringByteChannel socket) throws IOException {
+        if (this.compressor == null) {
+            return writeViews(socket, this.size);
+        }
+
+        return writeViews(socket, this.uncompressed) && writeCompressed(socket);
+    }
+
+    /**
+     * Write the frames at the head of the queue as they are, after the bytes already copied out of them
+     *
+     * @param count How many frames to write
+     * @return true if they have been completely written
+     */
+    private boolean writeViews(GatheringByteChannel socket, int count) throws IOException {
+
+        while (true) {
+            if (this.copied != null) {
+                long written = socket.write(this.copied);
+
+                this.bytes -= written;
+
+                if (this.copied.hasRemaining()) {
+                    countWritten(written, 0);
+                    return false;
+                }
+
+                countWritten(written, this.copiedFrames);
+
+                this.pool.release(this.copied);
+                this.copied = null;
+            }
+
+            if (count == 0) {
+                if (this.size == 0) {
+                    shrink();
+                }
+
+                return true;
+            }
+
+            ByteBuffer buffer = this.pool.borrow((int) Math.min(this.bytes, BufferPool.MAX_SIZE));
+
+            if (buffer == null) {
+                return writeGathering(socket, count);
+            }
+
+            this.copiedFrames = copy(buffer, count);
+            this.copied = buffer.flip();
+
+            count -= this.copiedFrames;
+        }
+    }
+
+    /**
+     * Copy the frames at the head of the queue into a buffer, as many as fit, and remove the ones that
+     * have been copied whole. The one that doesn't fit is copied in part, the rest stays at the head
+     *
+     * @param count How many frames can be copied
+     * @return How many have been copied whole
+     */
+    private int copy(ByteBuffer buffer, int count) {
+        int completed = 0;
+
+        while (completed < count && buffer.hasRemaining()) {
+            ByteBuffer view = this.views[this.head];
+
+            int length = Math.min(view.remaining(), buffer.remaining());
+
+            buffer.put(buffer.position(), view, view.position(), length);
+            buffer.position(buffer.position() + length);
+            view.position(view.position() + length);
+
+            if (view.hasRemaining()) {
+                break;
+            }
+
+            this.frames[this.head].release();
+
+            this.views[this.head] = null;
+            this.frames[this.head] = null;
+            this.head = (this.head + 1) & (this.frames.length - 1);
+            this.size--;
+
+            completed++;
+        }
+
+        if (this.compressor != null) {
+            this.uncompressed -= completed;
+        }
+
+        return completed;
+    }
+
+    /**
+     * Write the frames at the head of the queue with a gathering write of their views, when the pool is exhausted
+     *
+     * @param count How many frames to write
+     * @return true if they have been completely written
+     */
+    private boolean writeGathering(GatheringByteChannel socket, int count) throws IOException {
+
+        while (count > 0) {
+            // Up to the end of the ring, whatever wrapped around is written by the next round
+            int length = Math.min(count, this.views.length - this.head);
+
+            long written = socket.write(this.views, this.head, length);
+
+            int completed = 0;
+
+            while (completed < length && !this.views[this.head].hasRemaining()) {
+                this.frames[this.head].release();
+
+                this.views[this.head] = null;
+                this.frames[this.head] = null;
+                this.head = (this.head + 1) & (this.frames.length - 1);
+                this.size--;
+
+                completed++;
+            }
+
+            count -= completed;
+
+            if (this.compressor != null) {
+                this.uncompressed -= completed;
+            }
+
+            this.bytes -= written;
+            countWritten(written, completed);
+
+            if (completed < length) {
+                // The socket send buffer is full
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Write the pending chunk, then compress and write the queued frames, a batch at a time
+     *
+     * @return true if everything has been written
+     */
+    private boolean writeCompressed(GatheringByteChannel socket) throws IOException {
+        ByteBuffer chunk = this.compressor.getChunk();
+
+        while (true) {
+            if (chunk.hasRemaining()) {
+                long written = socket.write(chunk);
+
+                boolean done = !chunk.hasRemaining();
+
+                countWritten(written, done ? this.compressor.getChunkFrames() : 0);
+
+                if (!done) {
+                    return false;
+                }
+            }
+
+            if (this.size == 0) {
+                return true;
+            }
+
+            chunk = compressBatch();
+        }
+    }
+
+    /**
+     * Take the frames at the head of the queue into the next chunk of compressed output
+     *
+     * @return The chunk
+     */
+    private ByteBuffer compressBatch() {
+        while (this.size > 0 && this.compressor.fits(this.views[this.head].remaining())) {
+            this.bytes -= this.views[this.head].remaining();
+
+            this.compressor.add(this.views[this.head]);
+            this.frames[this.head].release();
+
+            this.views[this.head] = null;
+            this.frames[this.head] = null;
+            this.head = (this.head + 1) & (this.frames.length - 1);
+            this.size--;
+        }
+
+        this.compressor.finishBatch();
+
+        return this.compressor.getChunk();
+    }
+
+    /**
+     * Compress everything that is queued from now on, the frames already in the queue are still written as they are
+     *
+     * @param compressor The compressor
+     */
+    public synchronized void startCompression(Compressor compressor) {
+        this.compressor = compressor;
+        this.uncompressed = this.size;
+    }
+
+    /**
+     * Whether the output is compressed
+     *
+     * @return true if compression has started
+     */
+    public synchronized boolean isCompressed() {
+        return this.compressor != null;
+    }
+
+    /**
+     * Take the next chunk of compressed output, for a writer that writes it with a blocking write outside of the
+     * queue's lock. Only called once the frames from before compression started have been taken with {@link #drainTo(ByteBuffer)},
+     * and never again before the previous chunk has been written; it's reused
+     *
+     * @return The chunk, null if the output isn't compressed or nothing is queued
+     */
+    public synchronized ByteBuffer pollChunk() {
+        if (this.compressor == null || this.size == 0) {
+            return null;
+        }
+
+        return compressBatch();
+    }
+
+    /**
+     * Get the amount of frames in the chunk last taken with {@link #pollChunk()}
+     *
+     * @return The amount of frames
+     */
+    public synchronized int getChunkFrames() {
+        return this.compressor == null ? 0 : this.compressor.getChunkFrames();
+    }
+
+    /**
+     * Copy the frames at the head of the queue into a buffer, for a writer that writes it with a blocking
+     * write outside of the queue's lock. Stops before the frames that are to be compressed, see {@link #pollChunk()}
+     *
+     * @param buffer The buffer, what's copied is put at its position
+     * @return How many frames have been copied whole, the buffer may also hold the start of one more
+     */
+    public synchronized int drainTo(ByteBuffer buffer) {
+        int start = buffer.position(), completed = copy(buffer, this.compressor == null ? this.size : this.uncompressed);
+
+        this.bytes -= buffer.position() - start;
+
+        if (this.size == 0) {
+            shrink();
+        }
+
+        return completed;
+    }
+
+    /**
+     * Take the frame at the head of the queue, for a writer that writes it with a blocking write
+     * outside of the queue's lock. The caller writes the view and releases the frame once it's been written
+     *
+     * @param view Where the view of the frame is put, at index 0
+     * @return The frame, null if the queue is empty or the rest is compressed, see {@link #pollChunk()}
+     */
+    public synchronized Frame poll(ByteBuffer[] view) {
+        if (this.size == 0 || (this.compressor != null && this.uncompressed == 0)) {
+            return null;
+        }
+
+        if (this.compressor != null) {
+            this.uncompressed--;
+        }
+
+        Frame frame = this.frames[this.head];
+
+        view[0] = this.views[this.head];
+
+        this.bytes -= this.views[this.head].remaining();
+
+        this.views[this.head] = null;
+        this.frames[this.head] = null;
+        this.head = (this.head + 1) & (this.frames.length - 1);
+        this.size--;
+
+        return frame;
+    }
+
+    /**
+     * Throw away everything that is queued, once the client has been disconnected
+     */
+    public synchronized void clear() {
+        if (this.copied != null) {
+            this.pool.release(this.copied);
+            this.copied = null;
+        }
+
+        if (this.compressor != null) {
+            this.compressor.end();
+            this.compressor = null;
+        }
+
+        while (this.size > 0) {
+            this.frames[this.head].release();
+
+            this.views[this.head] = null;
+            this.frames[this.head] = null;
+            this.head = (this.head + 1) & (this.frames.length - 1);
+            this.size--;
+        }
+
+        this.bytes = 0;
+    }
+
+    private void countWritten(long bytes, int frames) {
+        this.written += bytes;
+        this.metrics.written(bytes, frames);
+    }
+
+    /**
+     * Get the amount of bytes written to the socket by {@link #writeTo(GatheringByteChannel)}
+     *
+     * @return The amount of bytes
+     */
+    public synchronized long getWritten() {
+        return this.written;
+    }
+
+    /**
+     * Get the amount of bytes waiting to be written
+     *
+     * @return The amount of bytes
+     */
+    public synchronized long getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Get the amount of chat messages that have been dropped because the client was too slow
+     *
+     * @return The amount of dropped frames
+     */
+    public synchronized long getDropped() {
+        return this.dropped;
+    }
+
+    public synchronized boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Drop the oldest droppable frames until we're back under the limit, compacting the ring as we go.
+     * <p>
+     * A frame that has been partially written can't be dropped, or the client would get half a line
+     */
+    private void dropOldest() {
+        int mask = this.frames.length - 1, kept = 0, uncompressed = this.uncompressed;
+
+        for (int i = 0; i < this.size; i++) {
+            int index = (this.head + i) & mask;
+
+            ByteBuffer view = this.views[index];
+            Frame frame = this.frames[index];
+
+            boolean partial = i == 0 && view.position() > 0;
+
+            if (this.bytes > this.limit && frame.isDroppable() && !partial) {
+                this.bytes -= view.remaining();
+                this.dropped++;
+                this.metrics.framesDropped(1);
+
+                frame.release();
+
+                if (i < uncompressed) {
+                    this.uncompressed--;
+                }
+
+                this.views[index] = null;
+                this.frames[index] = null;
+                continue;
+            }
+
+            int to = (this.head + kept) & mask;
+
+            if (to != index) {
+                this.views[to] = view;
+                this.frames[to] = frame;
+                this.views[index] = null;
+                this.frames[index] = null;
+            }
+
+            kept++;
+        }
+
+        this.size = kept;
+    }
+
+    /**
+     * Go back to the initial capacity once a burst that grew the ring has been written, the ring is empty
+     */
+    private void shrink() {
+        if (this.frames.length > INITIAL_CAPACITY) {
+            this.views = new ByteBuffer[INITIAL_CAPACITY];
+            this.frames = new Frame[INITIAL_CAPACITY];
+            this.head = 0;
+        }
+    }
+
+    private void grow() {
+        ByteBuffer[] views = new ByteBuffer[this.views.length * 2];
+        Frame[] frames = new Frame[views.length];
+
+        for (int i = 0; i < this.size; i++) {
+            int index = (this.head + i) & (this.frames.length - 1);
+
+            views[i] = this.views[index];
+            frames[i] = this.frames[index];
+        }
+
+        this.views = views;
+        this.frames = frames;
+        this.head = 0;
+    }
+
+}
@@ -0,0 +1,195 @@
+package chat.server;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outgoing link to another node of the federation.
+ * <p>
+ * The reactors only add messages to the link's queue, a background thread connects to the peer, with retries,
+ * and writes whatever has piled up in the queue as a batch with a single flush. A peer that can't keep up
+ * gets its link reset, the node state is sent again once it reconnects
+ */
+final class PeerLink implements Runnable {
+
+    private static final int MAX_QUEUED = 100_000, BATCH_SIZE = 1024;
+
+    private static final long RETRY_MILLIS = 1000;
+
+    private final Federation federation;
+
+    private final InetSocketAddress address;
+
+    private final LinkedBlockingQueue<Federation.Message> queue = new LinkedBlockingQueue<>();
+
+    private final Thread thread;
+
+    // The id of the node on the other end, once the handshake is done
+    private volatile String nodeId;
+
+    // Whether the messages are queued. Only set by resync, under the federation's state lock, so nothing queued
+    // since the snapshot is missed. Cleared without the lock by the link's own threads when the link goes down,
+    // or by a sender that finds the queue full, which only drops messages until the next resync
+    private volatile boolean connected;
+
+    private volatile Socket socket;
+
+    PeerLink(Federation federation, InetSocketAddress address) {
+        this.federation = federation;
+        this.address = address;
+        this.thread = new Thread(this, "peer-" + address.getPort());
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        this.thread.start();
+    }
+
+    String getNodeId() {
+        return this.nodeId;
+    }
+
+    boolean isConnected() {
+        return this.connected;
+    }
+
+    /**
+     * Queue a message to the peer, from any thread. Dropped if the link is down
+     *
+     * @param message The message
+     */
+    void send(Federation.Message message) {
+        if (!this.connected) {
+            return;
+        }
+
+        if (this.queue.size() >= MAX_QUEUED) {
+            Log.warn("Resetting the link to {}, {} messages waiting", this.address, this.queue.size());
+
+            reset();
+            return;
+        }
+
+        this.queue.add(message);
+    }
+
+    /**
+     * Start queueing messages again, once the node state has been queued. Called under the federation's state lock
+     *
+     * @param state The messages that describe this node
+     */
+    void resync(List<Federation.Message> state) {
+        this.queue.clear();
+        this.queue.addAll(state);
+        this.connected = true;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(this.address);
+                socket.setTcpNoDelay(true);
+
+                this.socket = socket;
+
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+                this.federation.writeHello(out);
+                out.flush();
+
+                this.nodeId = this.federation.readHello(in);
+
+                Log.info("Linked to node {} at {}", this.nodeId, this.address);
+
+                this.federation.linked(this);
+
+                // The peer never writes after its HELLO, the end of the stream is how an idle link finds out it's gone
+                Thread.ofVirtual().name("peer-watch-" + this.address.getPort()).start(() -> watch(socket, in));
+
+                writeLoop(out);
+            } catch (IOException e) {
+                if (this.nodeId != null) {
+                    Log.warn("Lost the link to node {} at {}", this.nodeId, this.address);
+                } else {
+                    Log.debug("No link to {}: {}", this.address, e);
+                }
+            } finally {
+                this.connected = false;
+
+                this.federation.unlinked(this);
+            }
+
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void writeLoop(DataOutputStream out) throws IOException {
+        List<Federation.Message> batch = new ArrayList<>(BATCH_SIZE);
+
+        while (this.connected) {
+            Federation.Message first;
+
+            try {
+                first = this.queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (first == null) {
+                continue;
+            }
+
+            batch.add(first);
+            this.queue.drainTo(batch, BATCH_SIZE - 1);
+
+            for (Federation.Message message : batch) {
+                message.write(out);
+            }
+
+            // The whole batch goes out in as few segments as the socket allows
+            out.flush();
+
+            batch.clear();
+        }
+    }
+
+    private void watch(Socket socket, DataInputStream in) {
+        try {
+            while (in.read() >= 0) {
+                // Nothing is expected, keep waiting for the end of the stream
+            }
+        } catch (IOException e) {
+            // Closed by either side
+        }
+
+        // Only if the link didn't reconnect in the meantime
+        if (this.socket == socket) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        this.connected = false;
+
+        Socket socket = this.socket;
+
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+}
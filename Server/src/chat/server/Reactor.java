@@ -0,0 +1,379 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A worker event loop that owns a subset of the connections.
+ * <p>
+ * The acceptor hands every new channel to one of the reactors, after which all the reads
+ * for that channel happen on this reactor's thread
+ */
+public class Reactor implements Runnable, Transport {
+
+    private final ChatServer server;
+
+    private final Selector selector;
+
+    private final Thread thread;
+
+    // Channels accepted by the acceptor that still have to be registered with our selector
+    private final Queue<ClientHandler> pendingRegistrations = new ConcurrentLinkedQueue<>();
+
+    // Clients that got output queued by another thread and have to be flushed by us
+    private final Queue<ClientHandler> pendingFlushes = new ConcurrentLinkedQueue<>();
+
+    // Clients that got output queued by this thread during the current pass, only touched by this reactor's thread
+    private final List<ClientHandler> dirty = new ArrayList<>();
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    // Clients whose reads are paused by the flood control, and when each resumes, only touched by this reactor's thread
+    private final List<ClientHandler> paused = new ArrayList<>();
+
+    private long[] resumeAt = new long[16];
+
+    // A pre-allocated buffer for the received data, only touched by this reactor's thread.
+    // Complete lines are decoded straight out of it, each client only keeps its incomplete line
+    private final ByteBuffer buffer = ByteBuffer.allocate(16384);
+
+    // How many of the pending clients are registered per pass
+    private final int registrationBatch;
+
+    public Reactor(ChatServer server, int id) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, "reactor-" + id);
+        this.registrationBatch = server.getConfig().getAcceptBatch();
+
+        // The acceptor runs on the main thread, if it goes down the reactors go down with it
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        this.thread.start();
+    }
+
+    /**
+     * Get the selector of this reactor
+     *
+     * @return The selector
+     */
+    public Selector getSelector() {
+        return this.selector;
+    }
+
+    /**
+     * Hand a newly accepted client to this reactor.
+     * <p>
+     * Safe to call from any thread, the registration itself is done by the reactor's thread
+     *
+     * @param client The client to register
+     */
+    public void register(ClientHandler client) {
+        this.pendingRegistrations.add(client);
+
+        this.selector.wakeup();
+    }
+
+    /**
+     * Hand a newly accepted client to this reactor without waking it up, for the acceptor to hand over a
+     * whole batch and then {@link #wakeup()} the reactor once
+     *
+     * @param client The client to register
+     */
+    void enqueue(ClientHandler client) {
+        this.pendingRegistrations.add(client);
+    }
+
+    /**
+     * Make the reactor pick up what was handed to it, from any thread
+     */
+    void wakeup() {
+        this.selector.wakeup();
+    }
+
+    /**
+     * Run a task on this reactor's thread
+     *
+     * @param task The task
+     */
+    public void execute(Runnable task) {
+        if (inReactorThread()) {
+            task.run();
+            return;
+        }
+
+        this.tasks.add(task);
+
+        this.selector.wakeup();
+    }
+
+    /**
+     * Flush the output queued for a client.
+     * <p>
+     * The flush happens at the end of the reactor's current pass, at most once per pass, so everything
+     * queued for the client in the meantime goes out in a single write
+     *
+     * @param client The client to flush
+     */
+    @Override
+    public void requestFlush(ClientHandler client) {
+        if (!client.scheduleFlush()) {
+            return;
+        }
+
+        if (inReactorThread()) {
+            this.dirty.add(client);
+            return;
+        }
+
+        this.pendingFlushes.add(client);
+
+        this.selector.wakeup();
+    }
+
+    /**
+     * Check if the current thread is this reactor's thread
+     *
+     * @return true if it is
+     */
+    public boolean inReactorThread() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    @Override
+    public boolean inOwnerThread() {
+        return inReactorThread();
+    }
+
+    @Override
+    public void disconnect(ClientHandler client) {
+        // Queued even on our own thread, the caller may be in the middle of a fan-out or of a join
+        this.tasks.add(() -> this.server.deleteClient(client));
+
+        this.selector.wakeup();
+    }
+
+    @Override
+    public void pauseReads(ClientHandler client, long resumeNanos) {
+        int index = this.paused.indexOf(client);
+
+        if (index < 0) {
+            index = this.paused.size();
+
+            this.paused.add(client);
+
+            if (index == this.resumeAt.length) {
+                this.resumeAt = Arrays.copyOf(this.resumeAt, index * 2);
+            }
+
+            client.setReadPaused(true);
+        }
+
+        this.resumeAt[index] = resumeNanos;
+    }
+
+    @Override
+    public void close(ClientHandler client) {
+        // A last chance for the BYE, whatever doesn't fit in the socket now is lost
+        client.flush();
+
+        try {
+            client.getSocket().close();
+
+            client.getOutbound().clear();
+        } catch (IOException e) {
+            Log.error("Failed to close the connection of {}", e, client.getName());
+        }
+
+        SelectionKey key = client.getKey();
+
+        if (key != null) {
+            key.cancel();
+        }
+    }
+
+    @Override
+    public void run() {
+
+        while (true) {
+            try {
+                if (this.paused.isEmpty()) {
+                    this.selector.select();
+                } else {
+                    this.selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(resumePaused())));
+                }
+
+                registerPending();
+                runTasks();
+
+                Set<SelectionKey> keys = this.selector.selectedKeys();
+                Iterator<SelectionKey> iterator = keys.iterator();
+
+                while (iterator.hasNext()) {
+
+                    SelectionKey key = iterator.next();
+
+                    if (key.isValid() && key.isWritable()) {
+                        ((ClientHandler) key.attachment()).flush();
+                    }
+
+                    if (key.isValid() && key.isReadable()) {
+
+                        SocketChannel channel = (SocketChannel) key.channel();
+
+                        ClientHandler handler = (ClientHandler) key.attachment();
+
+                        boolean ok;
+
+                        try {
+                            ok = processInput(channel, handler);
+                        } catch (IOException e) {
+                            ok = false;
+                        }
+
+                        if (!ok) {
+                            key.cancel();
+
+                            this.server.deleteClient(handler);
+                        }
+
+                    }
+
+                }
+
+                keys.clear();
+
+                flushPending();
+            } catch (IOException e) {
+                Log.error("Reactor loop failed", e);
+            }
+        }
+
+    }
+
+    /**
+     * Resume reading from the paused clients whose time has come
+     *
+     * @return How long until the next one resumes, if there's still one paused
+     */
+    private long resumePaused() {
+        long now = System.nanoTime(), next = Long.MAX_VALUE;
+
+        for (int i = this.paused.size() - 1; i >= 0; i--) {
+            long wait = this.resumeAt[i] - now;
+
+            if (wait > 0) {
+                next = Math.min(next, wait);
+                continue;
+            }
+
+            ClientHandler client = this.paused.get(i);
+
+            // Swap the last one in, the order doesn't matter
+            int last = this.paused.size() - 1;
+
+            this.paused.set(i, this.paused.get(last));
+            this.resumeAt[i] = this.resumeAt[last];
+            this.paused.remove(last);
+
+            client.setReadPaused(false);
+        }
+
+        return this.paused.isEmpty() ? 0 : next;
+    }
+
+    /**
+     * Register the clients handed over by the acceptor, a batch at a time so that a reconnect storm doesn't
+     * hold up the reads of the clients that are already connected
+     */
+    private void registerPending() {
+
+        for (int i = 0; i < this.registrationBatch; i++) {
+            ClientHandler client = this.pendingRegistrations.poll();
+
+            if (client == null) {
+                return;
+            }
+
+            try {
+                // Register it with the selector, for reading, with the client attached to its key
+                client.setKey(client.getSocket().register(this.selector, SelectionKey.OP_READ, client));
+
+                // Anything that was sent before the registration
+                client.flush();
+            } catch (IOException e) {
+                Log.error("Failed to register the connection {}", e, client.getSocket());
+
+                this.server.deleteClient(client);
+            }
+        }
+
+        // The rest on the next pass, after a round of reads
+        if (!this.pendingRegistrations.isEmpty()) {
+            this.selector.wakeup();
+        }
+
+    }
+
+    private void runTasks() {
+
+        Runnable task;
+
+        while ((task = this.tasks.poll()) != null) {
+            task.run();
+        }
+
+    }
+
+    private void flushPending() {
+
+        for (int i = 0; i < this.dirty.size(); i++) {
+            this.dirty.get(i).flush();
+        }
+
+        this.dirty.clear();
+
+        ClientHandler client;
+
+        while ((client = this.pendingFlushes.poll()) != null) {
+            client.flush();
+        }
+
+    }
+
+    private boolean processInput(SocketChannel channel, ClientHandler handler) throws IOException {
+        Tracing.ReadEvent event = Tracing.read();
+
+        this.buffer.clear();
+
+        if (channel.read(this.buffer) < 0) {
+            return false;
+        }
+
+        this.buffer.flip();
+
+        int bytes = this.buffer.remaining();
+
+        if (bytes > 0) {
+            handler.receive(this.buffer);
+        }
+
+        Tracing.commit(event, bytes);
+
+        return true;
+    }
+
+}
@@ -0,0 +1,111 @@
+package chat.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock free queue for many producers and a single consumer.
+ * <p>
+ * Every slot has a sequence number that tells the producers whether the slot is free for the
+ * current lap and the consumer whether it has been filled, so neither side ever waits on a lock.
+ * Offering to a full ring fails right away instead of blocking
+ *
+ * @param <E> The type of the elements
+ */
+public class RingBuffer<E> {
+
+    private final AtomicReferenceArray<E> slots;
+
+    private final AtomicLongArray sequences;
+
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong();
+
+    // Only touched by the consumer
+    private long head;
+
+    /**
+     * @param capacity The capacity, rounded up to a power of two
+     */
+    public RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+
+        for (int i = 0; i < size; i++) {
+            this.sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Add an element, from any thread
+     *
+     * @param element The element
+     * @return false if the ring is full
+     */
+    public boolean offer(E element) {
+        long position;
+        int index;
+
+        while (true) {
+            position = this.tail.get();
+            index = (int) position & this.mask;
+
+            long sequence = this.sequences.get(index);
+
+            if (sequence == position) {
+                if (this.tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                // The consumer hasn't freed this slot from the previous lap yet
+                return false;
+            }
+        }
+
+        this.slots.lazySet(index, element);
+        this.sequences.set(index, position + 1);
+
+        return true;
+    }
+
+    /**
+     * Take the oldest element, only from the consumer thread
+     *
+     * @return The element, null if the ring is empty
+     */
+    public E poll() {
+        int index = (int) this.head & this.mask;
+
+        if (this.sequences.get(index) != this.head + 1) {
+            return null;
+        }
+
+        E element = this.slots.get(index);
+
+        this.slots.lazySet(index, null);
+        this.sequences.set(index, this.head + this.mask + 1);
+
+        this.head++;
+
+        return element;
+    }
+
+    /**
+     * Get an estimate of the amount of queued elements
+     *
+     * @return The amount of elements
+     */
+    public int size() {
+        return (int) Math.max(0, this.tail.get() - this.head);
+    }
+
+    public int capacity() {
+        return this.mask + 1;
+    }
+
+}
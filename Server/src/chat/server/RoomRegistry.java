@@ -0,0 +1,335 @@
+package chat.server;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The chat rooms, their members and the backlog of recent messages that is replayed to the clients that join.
+ * <p>
+ * A room only exists while it has members, it's created by the first join and removed, with its backlog,
+ * by the last leave. Joins and leaves are constant time and the fan-out iterates a plain array, which is
+ * only copied again by the first fan-out after the membership changed.
+ * <p>
+ * Not thread safe, the rooms are only touched by the {@link RoomShard} that owns them. The sizes can be
+ * read from other threads, as estimates
+ */
+public class RoomRegistry {
+
+    /**
+     * Told about the rooms that are created and removed, in the order it happens for each room
+     */
+    public interface Listener {
+
+        void roomOpened(String room);
+
+        void roomClosed(String room);
+
+    }
+
+    private static final ClientHandler[] EMPTY = new ClientHandler[0];
+
+    private final Map<String, Room> rooms = new HashMap<>();
+
+    // The rooms that have a backlog, the least recently published to first
+    private final LinkedHashMap<String, Room> backlogs = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final int backlogMessages, backlogBytes;
+
+    private final long backlogBudget;
+
+    // Bytes held by the backlogs of all the rooms, only written by the owner
+    private volatile long backlogSize;
+
+    private Listener listener;
+
+    /**
+     * @param backlogMessages The amount of messages each room keeps, 0 for no backlog
+     * @param backlogBytes    The maximum size of the backlog of a room
+     * @param backlogBudget   The maximum size of the backlogs of all the rooms of this registry together
+     */
+    public RoomRegistry(int backlogMessages, int backlogBytes, long backlogBudget) {
+        this.backlogMessages = backlogMessages;
+        this.backlogBytes = backlogBytes;
+        this.backlogBudget = backlogBudget;
+    }
+
+    /**
+     * Add a client to a room, creating the room if it doesn't exist, and queue the room's backlog to the client.
+     * <p>
+     * The backlog is queued together with the join, so the client gets every message exactly once, and in order.
+     * A client can only be in one room at a time, it has to leave its previous room first
+     *
+     * @param name   The name of the room
+     * @param client The client
+     */
+    public void join(String name, ClientHandler client) {
+        this.rooms.compute(name, (key, room) -> {
+            if (room == null) {
+                room = new Room();
+
+                if (this.listener != null) {
+                    this.listener.roomOpened(key);
+                }
+            }
+
+            room.add(client);
+
+            return room;
+        });
+    }
+
+    /**
+     * Remove a client from a room, removing the room if it was the last member
+     *
+     * @param name   The name of the room
+     * @param client The client
+     */
+    public void leave(String name, ClientHandler client) {
+        this.rooms.computeIfPresent(name, (key, room) -> {
+            room.remove(client);
+
+            if (!room.isEmpty()) {
+                return room;
+            }
+
+            this.backlogSize -= room.clearBacklog();
+            this.backlogs.remove(key);
+
+            if (this.listener != null) {
+                this.listener.roomClosed(key);
+            }
+
+            return null;
+        });
+    }
+
+    /**
+     * Get the members of a room, to send them a message
+     *
+     * @param name The name of the room
+     * @return The members when the membership last changed, this array is shared and must not be modified
+     */
+    public ClientHandler[] getMembers(String name) {
+        Room room = this.rooms.get(name);
+
+        return room == null ? EMPTY : room.snapshot();
+    }
+
+    /**
+     * Add a chat message to the backlog of a room and get the members to send it to
+     *
+     * @param name  The name of the room
+     * @param frame The message
+     * @return The members when the message was added, this array is shared and must not be modified
+     */
+    public ClientHandler[] publish(String name, Frame frame) {
+        Room room = this.rooms.get(name);
+
+        if (room == null) {
+            return EMPTY;
+        }
+
+        if (this.backlogMessages == 0) {
+            return room.snapshot();
+        }
+
+        this.backlogSize += room.publish(frame.untracked(), this.backlogMessages, this.backlogBytes);
+
+        // Moves it to the end, the rooms that go first are found at the start without sorting them
+        this.backlogs.put(name, room);
+
+        if (this.backlogSize > this.backlogBudget) {
+            evict();
+        }
+
+        return room.snapshot();
+    }
+
+    /**
+     * Set who is told about the rooms that are created and removed
+     *
+     * @param listener The listener
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * The amount of rooms that have members
+     *
+     * @return The amount
+     */
+    public int size() {
+        return this.rooms.size();
+    }
+
+    /**
+     * The bytes held by the backlogs of all the rooms
+     *
+     * @return The size in bytes
+     */
+    public long getBacklogSize() {
+        return this.backlogSize;
+    }
+
+    /**
+     * Throw away the backlogs of the rooms published to the longest ago until we're 10% under the budget
+     */
+    private void evict() {
+        long target = this.backlogBudget - this.backlogBudget / 10;
+
+        Iterator<Room> rooms = this.backlogs.values().iterator();
+
+        while (this.backlogSize > target && rooms.hasNext()) {
+            this.backlogSize -= rooms.next().clearBacklog();
+
+            rooms.remove();
+        }
+
+        Log.debug("Evicted room backlogs, {} bytes left", this.backlogSize);
+    }
+
+    private static final class Room {
+
+        // Every member remembers its slot, so it can be swapped out with the last one
+        private ClientHandler[] members = new ClientHandler[4];
+
+        private int size;
+
+        // The members as of the last change, null until the next fan-out copies them
+        private ClientHandler[] snapshot;
+
+        // Ring of the most recent messages, allocated by the first one
+        private Frame[] backlog;
+
+        private int backlogHead, backlogCount, backlogBytes;
+
+        void add(ClientHandler client) {
+            if (this.size == this.members.length) {
+                this.members = Arrays.copyOf(this.members, this.size * 2);
+            }
+
+            client.setRoomSlot(this.size);
+
+            this.members[this.size++] = client;
+            this.snapshot = null;
+
+            for (int i = 0; i < this.backlogCount; i++) {
+                client.sendMessage(this.backlog[(this.backlogHead + i) % this.backlog.length]);
+            }
+        }
+
+        void remove(ClientHandler client) {
+            int slot = client.getRoomSlot();
+
+            if (slot >= this.size || this.members[slot] != client) {
+                // The slot is only a hint: the shard of the next room may have joined the client already
+                slot = indexOf(client);
+
+                if (slot < 0) {
+                    return;
+                }
+            }
+
+            ClientHandler last = this.members[--this.size];
+
+            this.members[slot] = last;
+            last.setRoomSlot(slot);
+
+            this.members[this.size] = null;
+            this.snapshot = null;
+
+            if (this.members.length > 16 && this.size < this.members.length / 4) {
+                this.members = Arrays.copyOf(this.members, this.members.length / 2);
+            }
+        }
+
+        private int indexOf(ClientHandler client) {
+            for (int i = 0; i < this.size; i++) {
+                if (this.members[i] == client) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        boolean isEmpty() {
+            return this.size == 0;
+        }
+
+        /**
+         * Add a message to the backlog, dropping the oldest ones to stay under the limits
+         *
+         * @return How much the backlog grew, in bytes
+         */
+        long publish(Frame frame, int maxMessages, int maxBytes) {
+            if (frame.size() > maxBytes) {
+                return 0;
+            }
+
+            if (this.backlog == null) {
+                this.backlog = new Frame[Math.min(maxMessages, 8)];
+            } else if (this.backlogCount == this.backlog.length && this.backlog.length < maxMessages) {
+                Frame[] backlog = new Frame[Math.min(maxMessages, this.backlog.length * 2)];
+
+                for (int i = 0; i < this.backlogCount; i++) {
+                    backlog[i] = this.backlog[(this.backlogHead + i) % this.backlog.length];
+                }
+
+                this.backlog = backlog;
+                this.backlogHead = 0;
+            }
+
+            long freed = 0;
+
+            while (this.backlogCount > 0 && (this.backlogCount == this.backlog.length || this.backlogBytes + frame.size() > maxBytes)) {
+                freed += dropOldest();
+            }
+
+            this.backlog[(this.backlogHead + this.backlogCount) % this.backlog.length] = frame;
+            this.backlogCount++;
+            this.backlogBytes += frame.size();
+
+            return frame.size() - freed;
+        }
+
+        /**
+         * Throw the backlog away
+         *
+         * @return The bytes it held
+         */
+        int clearBacklog() {
+            int bytes = this.backlogBytes;
+
+            this.backlog = null;
+            this.backlogHead = this.backlogCount = this.backlogBytes = 0;
+
+            return bytes;
+        }
+
+        ClientHandler[] snapshot() {
+            if (this.snapshot == null) {
+                this.snapshot = Arrays.copyOf(this.members, this.size);
+            }
+
+            return this.snapshot;
+        }
+
+        private int dropOldest() {
+            Frame oldest = this.backlog[this.backlogHead];
+
+            this.backlog[this.backlogHead] = null;
+            this.backlogHead = (this.backlogHead + 1) % this.backlog.length;
+            this.backlogCount--;
+            this.backlogBytes -= oldest.size();
+
+            return oldest.size();
+        }
+
+    }
+
+}
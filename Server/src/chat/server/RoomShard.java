@@ -0,0 +1,142 @@
+package chat.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * A thread that owns some of the rooms, so the busy rooms are handled on as many cores as there are shards
+ * instead of on the I/O thread of whoever sent to them.
+ * <p>
+ * Every room is hashed to one shard, and everything that touches the room (joins, leaves, messages and their
+ * fan-out) is a command handed to that shard through its mailbox, a {@link RingBuffer}. The commands of a room
+ * run one at a time and in the order they were handed over, so the room's {@link RoomRegistry} needs no locks.
+ * The frames are encoded by the I/O threads before they're handed over, the shard only queues them to the
+ * members, whose transports write them.
+ * <p>
+ * Until the shard is started, e.g. in the benchmarks, the commands run right away on the caller's thread
+ */
+public final class RoomShard implements Runnable {
+
+    // How long a caller waits for room in a full mailbox before it looks again
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    // The shard that runs on the current thread, if any
+    private static final ThreadLocal<RoomShard> CURRENT = new ThreadLocal<>();
+
+    private final RoomRegistry rooms;
+
+    private final RingBuffer<Consumer<RoomRegistry>> mailbox;
+
+    private final Metrics metrics;
+
+    private final String name;
+
+    // Null until started
+    private volatile Thread thread;
+
+    // Set while the shard is parked, or about to be, so the next command wakes it up
+    private volatile boolean sleeping;
+
+    /**
+     * @param id       The number of the shard
+     * @param rooms    The rooms it owns
+     * @param capacity The capacity of the mailbox
+     * @param metrics  Where the full mailboxes are counted
+     */
+    public RoomShard(int id, RoomRegistry rooms, int capacity, Metrics metrics) {
+        this.rooms = rooms;
+        this.mailbox = new RingBuffer<>(capacity);
+        this.metrics = metrics;
+        this.name = "room-shard-" + id;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, this.name);
+
+        thread.setDaemon(true);
+
+        this.thread = thread;
+        thread.start();
+    }
+
+    /**
+     * Hand a command to the shard, from any thread but the shards'.
+     * <p>
+     * If the mailbox is full the caller waits until there's room, which holds the clients of the
+     * caller back until the shard catches up. A shard can't wait, it gets an IllegalStateException
+     *
+     * @param command The command, given the rooms of the shard
+     */
+    public void execute(Consumer<RoomRegistry> command) {
+        Thread thread = this.thread;
+
+        if (thread == null) {
+            command.accept(this.rooms);
+            return;
+        }
+
+        if (!this.mailbox.offer(command)) {
+            this.metrics.mailboxFull();
+
+            // A shard waiting on a mailbox, its own or another that may be waiting on its own, would never wake up
+            if (CURRENT.get() != null) {
+                throw new IllegalStateException("A room shard can't wait for room in a mailbox");
+            }
+
+            do {
+                LockSupport.unpark(thread);
+                LockSupport.parkNanos(this, FULL_PARK_NANOS);
+            } while (!this.mailbox.offer(command));
+        }
+
+        if (this.sleeping) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public void run() {
+        CURRENT.set(this);
+
+        while (true) {
+            Consumer<RoomRegistry> command;
+
+            while ((command = this.mailbox.poll()) != null) {
+                try {
+                    command.accept(this.rooms);
+                } catch (RuntimeException e) {
+                    Log.error("A room command failed", e);
+                }
+            }
+
+            // Checked again once the flag is visible, a command offered in between either sees the flag or is seen here
+            this.sleeping = true;
+
+            if (this.mailbox.size() == 0) {
+                LockSupport.park(this);
+            }
+
+            this.sleeping = false;
+        }
+    }
+
+    /**
+     * Get the rooms of this shard, only from the commands, or before the shard is started
+     *
+     * @return The rooms
+     */
+    public RoomRegistry getRooms() {
+        return this.rooms;
+    }
+
+    /**
+     * Get an estimate of the amount of commands waiting in the mailbox
+     *
+     * @return The amount of commands
+     */
+    public int getQueued() {
+        return this.mailbox.size();
+    }
+
+}
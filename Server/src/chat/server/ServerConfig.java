@@ -0,0 +1,780 @@
+package chat.server;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup configuration of the chat server.
+ * <p>
+ * Every value can be overridden with a system property, for example
+ * {@code java -Dchat.reactors=8 -jar chat-server.jar 8000}
+ */
+public class ServerConfig {
+
+    private final int port;
+
+    private ChatServer.IoMode ioMode = ChatServer.IoMode.REACTOR;
+
+    private int reactors;
+
+    private int roomShards;
+
+    private int roomMailbox = 16384;
+
+    private long outboundLimit = 1024 * 1024;
+
+    private long bufferPoolLimit = 64 * 1024 * 1024;
+
+    private int acceptBacklog = 4096;
+
+    private int acceptBatch = 256;
+
+    private int maxConnections;
+
+    private int maxConnectionsPerAddress;
+
+    private OutboundQueue.Policy slowConsumerPolicy = OutboundQueue.Policy.DROP_OLDEST;
+
+    private int maxLineLength = 8192;
+
+    private Log.Level logLevel = Log.Level.INFO;
+
+    private String logFile;
+
+    private int logBuffer = 65536;
+
+    private int adminPort;
+
+    private int backlogMessages = 50;
+
+    private int backlogBytes = 16 * 1024;
+
+    private long backlogBudget = 64 * 1024 * 1024;
+
+    private String historyDirectory;
+
+    private int historySegmentSize = 64 * 1024 * 1024;
+
+    private long historySyncMillis = 100;
+
+    private long historyRetentionBytes = 1024L * 1024 * 1024;
+
+    private long historyRetentionMillis = TimeUnit.DAYS.toMillis(7);
+
+    private int compressionLevel = 1;
+
+    private int compressionThreshold = 32;
+
+    private long idleTimeoutMillis = TimeUnit.MINUTES.toMillis(5);
+
+    private long idleTickMillis = 1000;
+
+    private int traceSampleRate = 100;
+
+    private int floodLineRate = 50, floodLineBurst = 100;
+
+    private int floodChurnRate = 5, floodChurnBurst = 10;
+
+    private int floodPrivateRate = 20, floodPrivateBurst = 40;
+
+    private FloodControl.Policy floodPolicy = FloodControl.Policy.ERROR;
+
+    private String nodeId;
+
+    private int federationPort;
+
+    private String federationBindAddress;
+
+    private String federationSecret;
+
+    private List<InetSocketAddress> peers = List.of();
+
+    public ServerConfig(int port) {
+        this.port = port;
+        this.nodeId = "node-" + port;
+        this.reactors = Runtime.getRuntime().availableProcessors();
+        this.roomShards = Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Build a configuration for the given port, reading the overrides from the system properties
+     *
+     * @param port The port to listen on
+     * @return The configuration
+     */
+    public static ServerConfig fromSystemProperties(int port) {
+        ServerConfig config = new ServerConfig(port);
+
+        String ioMode = System.getProperty("chat.io");
+
+        if (ioMode != null) {
+            config.setIoMode(ChatServer.IoMode.valueOf(ioMode.toUpperCase(Locale.ROOT)));
+        }
+
+        config.setReactors(Integer.getInteger("chat.reactors", config.getReactors()));
+        config.setRoomShards(Integer.getInteger("chat.room.shards", config.getRoomShards()));
+        config.setRoomMailbox(Integer.getInteger("chat.room.mailbox", config.getRoomMailbox()));
+        config.setOutboundLimit(Long.getLong("chat.outbound.limit", config.getOutboundLimit()));
+        config.setBufferPoolLimit(Long.getLong("chat.pool.limit", config.getBufferPoolLimit()));
+
+        config.setAcceptBacklog(Integer.getInteger("chat.accept.backlog", config.getAcceptBacklog()));
+        config.setAcceptBatch(Integer.getInteger("chat.accept.batch", config.getAcceptBatch()));
+        config.setMaxConnections(Integer.getInteger("chat.connections.max", config.getMaxConnections()));
+        config.setMaxConnectionsPerAddress(Integer.getInteger("chat.connections.address.max", config.getMaxConnectionsPerAddress()));
+
+        config.setMaxLineLength(Integer.getInteger("chat.line.max", config.getMaxLineLength()));
+
+        String policy = System.getProperty("chat.outbound.policy");
+
+        if (policy != null) {
+            config.setSlowConsumerPolicy(OutboundQueue.Policy.valueOf(policy.toUpperCase(Locale.ROOT)));
+        }
+
+        config.setFloodLineRate(Integer.getInteger("chat.flood.lines", config.getFloodLineRate()));
+        config.setFloodLineBurst(Integer.getInteger("chat.flood.lines.burst", config.getFloodLineBurst()));
+        config.setFloodChurnRate(Integer.getInteger("chat.flood.churn", config.getFloodChurnRate()));
+        config.setFloodChurnBurst(Integer.getInteger("chat.flood.churn.burst", config.getFloodChurnBurst()));
+        config.setFloodPrivateRate(Integer.getInteger("chat.flood.priv", config.getFloodPrivateRate()));
+        config.setFloodPrivateBurst(Integer.getInteger("chat.flood.priv.burst", config.getFloodPrivateBurst()));
+
+        String floodPolicy = System.getProperty("chat.flood.policy");
+
+        if (floodPolicy != null) {
+            config.setFloodPolicy(FloodControl.Policy.valueOf(floodPolicy.toUpperCase(Locale.ROOT)));
+        }
+
+        String logLevel = System.getProperty("chat.log.level");
+
+        if (logLevel != null) {
+            config.setLogLevel(Log.Level.valueOf(logLevel.toUpperCase(Locale.ROOT)));
+        }
+
+        config.setLogFile(System.getProperty("chat.log.file", config.getLogFile()));
+        config.setLogBuffer(Integer.getInteger("chat.log.buffer", config.getLogBuffer()));
+        config.setAdminPort(Integer.getInteger("chat.admin.port", config.getAdminPort()));
+
+        config.setBacklogMessages(Integer.getInteger("chat.backlog.messages", config.getBacklogMessages()));
+        config.setBacklogBytes(Integer.getInteger("chat.backlog.bytes", config.getBacklogBytes()));
+        config.setBacklogBudget(Long.getLong("chat.backlog.budget", config.getBacklogBudget()));
+
+        config.setHistoryDirectory(System.getProperty("chat.history.dir", config.getHistoryDirectory()));
+        config.setHistorySegmentSize(Integer.getInteger("chat.history.segment", config.getHistorySegmentSize()));
+        config.setHistorySyncMillis(Long.getLong("chat.history.sync", config.getHistorySyncMillis()));
+        config.setHistoryRetentionBytes(Long.getLong("chat.history.retention.bytes", config.getHistoryRetentionBytes()));
+        config.setHistoryRetentionMillis(TimeUnit.HOURS.toMillis(
+                Long.getLong("chat.history.retention.hours", TimeUnit.MILLISECONDS.toHours(config.getHistoryRetentionMillis()))));
+
+        config.setCompressionLevel(Integer.getInteger("chat.compression.level", config.getCompressionLevel()));
+        config.setCompressionThreshold(Integer.getInteger("chat.compression.threshold", config.getCompressionThreshold()));
+
+        // The tick first, the timeout is checked against it
+        config.setIdleTickMillis(Long.getLong("chat.idle.tick", config.getIdleTickMillis()));
+        config.setIdleTimeoutMillis(TimeUnit.SECONDS.toMillis(
+                Long.getLong("chat.idle.timeout", TimeUnit.MILLISECONDS.toSeconds(config.getIdleTimeoutMillis()))));
+        config.setTraceSampleRate(Integer.getInteger("chat.trace.sample", config.getTraceSampleRate()));
+
+        config.setNodeId(System.getProperty("chat.node", config.getNodeId()));
+        config.setFederationPort(Integer.getInteger("chat.federation.port", config.getFederationPort()));
+        config.setFederationBindAddress(System.getProperty("chat.federation.bind", config.getFederationBindAddress()));
+        config.setFederationSecret(System.getProperty("chat.federation.secret", config.getFederationSecret()));
+
+        String peers = System.getProperty("chat.federation.peers");
+
+        if (peers != null && !peers.isBlank()) {
+            List<InetSocketAddress> addresses = new ArrayList<>();
+
+            for (String peer : peers.split(",")) {
+                int colon = peer.lastIndexOf(':');
+
+                addresses.add(new InetSocketAddress(peer.substring(0, colon).trim(), Integer.parseInt(peer.substring(colon + 1).trim())));
+            }
+
+            config.setPeers(addresses);
+        }
+
+        return config;
+    }
+
+    /**
+     * Get the port the server listens on
+     *
+     * @return The port
+     */
+    public int getPort() {
+        return this.port;
+    }
+
+    /**
+     * Get how the connections are driven, reactors or a virtual thread per connection
+     *
+     * @return The mode
+     */
+    public ChatServer.IoMode getIoMode() {
+        return this.ioMode;
+    }
+
+    public void setIoMode(ChatServer.IoMode ioMode) {
+        this.ioMode = ioMode;
+    }
+
+    /**
+     * Get the amount of worker reactors (selector threads) the connections are spread across
+     *
+     * @return The amount of reactors
+     */
+    public int getReactors() {
+        return this.reactors;
+    }
+
+    public void setReactors(int reactors) {
+        if (reactors < 1) {
+            throw new IllegalArgumentException("At least one reactor is required");
+        }
+
+        this.reactors = reactors;
+    }
+
+    /**
+     * Get how many connections the kernel may queue until they're accepted, it caps it to its own limit
+     * ({@code net.core.somaxconn} on Linux). Past it, new connections wait for their SYN to be retried
+     *
+     * @return The length of the listen backlog
+     */
+    public int getAcceptBacklog() {
+        return this.acceptBacklog;
+    }
+
+    public void setAcceptBacklog(int acceptBacklog) {
+        this.acceptBacklog = acceptBacklog;
+    }
+
+    /**
+     * Get how many connections are accepted in a row before they're handed to the reactors, and how many
+     * a reactor registers between two rounds of reads
+     *
+     * @return The size of a batch
+     */
+    public int getAcceptBatch() {
+        return this.acceptBatch;
+    }
+
+    public void setAcceptBatch(int acceptBatch) {
+        if (acceptBatch < 1) {
+            throw new IllegalArgumentException("The accept batch can't be empty");
+        }
+
+        this.acceptBatch = acceptBatch;
+    }
+
+    /**
+     * Get how many clients may be connected at once, past it new connections are reset, see {@link Admission}
+     *
+     * @return The amount, 0 if it's unlimited
+     */
+    public int getMaxConnections() {
+        return this.maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Get how many clients may be connected at once from the same IP address
+     *
+     * @return The amount, 0 if it's unlimited
+     */
+    public int getMaxConnectionsPerAddress() {
+        return this.maxConnectionsPerAddress;
+    }
+
+    public void setMaxConnectionsPerAddress(int maxConnectionsPerAddress) {
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+    }
+
+    /**
+     * Get the amount of threads the rooms are spread across, see {@link RoomShard}
+     *
+     * @return The amount of shards
+     */
+    public int getRoomShards() {
+        return this.roomShards;
+    }
+
+    public void setRoomShards(int roomShards) {
+        if (roomShards < 1) {
+            throw new IllegalArgumentException("At least one room shard is required");
+        }
+
+        this.roomShards = roomShards;
+    }
+
+    /**
+     * Get the amount of commands that can wait for a room shard, past it the I/O threads wait for the shard
+     *
+     * @return The capacity of the mailbox of each shard
+     */
+    public int getRoomMailbox() {
+        return this.roomMailbox;
+    }
+
+    public void setRoomMailbox(int roomMailbox) {
+        this.roomMailbox = roomMailbox;
+    }
+
+    /**
+     * Get the maximum amount of bytes that can be waiting to be written to a single client
+     *
+     * @return The limit in bytes
+     */
+    public long getOutboundLimit() {
+        return this.outboundLimit;
+    }
+
+    public void setOutboundLimit(long outboundLimit) {
+        this.outboundLimit = outboundLimit;
+    }
+
+    /**
+     * Get the most direct memory the pool of write buffers takes, past it the output is written from the heap
+     *
+     * @return The limit in bytes, 0 for no pool
+     */
+    public long getBufferPoolLimit() {
+        return this.bufferPoolLimit;
+    }
+
+    public void setBufferPoolLimit(long bufferPoolLimit) {
+        this.bufferPoolLimit = bufferPoolLimit;
+    }
+
+    /**
+     * Get what to do with the clients that go over the outbound limit
+     *
+     * @return The policy
+     */
+    public OutboundQueue.Policy getSlowConsumerPolicy() {
+        return this.slowConsumerPolicy;
+    }
+
+    public void setSlowConsumerPolicy(OutboundQueue.Policy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    /**
+     * Get the maximum length of a line sent by a client, longer lines are rejected with an ERROR
+     *
+     * @return The maximum length in bytes, not counting the line feed
+     */
+    public int getMaxLineLength() {
+        return this.maxLineLength;
+    }
+
+    public void setMaxLineLength(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Get the lowest level that is logged, the per message records are TRACE
+     *
+     * @return The level
+     */
+    public Log.Level getLogLevel() {
+        return this.logLevel;
+    }
+
+    public void setLogLevel(Log.Level logLevel) {
+        this.logLevel = logLevel;
+    }
+
+    /**
+     * Get the file the log is appended to
+     *
+     * @return The file, null for the standard output
+     */
+    public String getLogFile() {
+        return this.logFile;
+    }
+
+    public void setLogFile(String logFile) {
+        this.logFile = logFile;
+    }
+
+    /**
+     * Get the amount of log records that can be waiting for the writer before new ones are dropped
+     *
+     * @return The amount of records
+     */
+    public int getLogBuffer() {
+        return this.logBuffer;
+    }
+
+    public void setLogBuffer(int logBuffer) {
+        this.logBuffer = logBuffer;
+    }
+
+    /**
+     * Get the local port of the plain text metrics endpoint
+     *
+     * @return The port, 0 if the endpoint is disabled
+     */
+    public int getAdminPort() {
+        return this.adminPort;
+    }
+
+    public void setAdminPort(int adminPort) {
+        this.adminPort = adminPort;
+    }
+
+    /**
+     * Get the amount of recent messages each room keeps for the clients that join it
+     *
+     * @return The amount of messages, 0 if the rooms keep no backlog
+     */
+    public int getBacklogMessages() {
+        return this.backlogMessages;
+    }
+
+    public void setBacklogMessages(int backlogMessages) {
+        this.backlogMessages = backlogMessages;
+    }
+
+    /**
+     * Get the maximum size of the backlog of a single room
+     *
+     * @return The size in bytes
+     */
+    public int getBacklogBytes() {
+        return this.backlogBytes;
+    }
+
+    public void setBacklogBytes(int backlogBytes) {
+        this.backlogBytes = backlogBytes;
+    }
+
+    /**
+     * Get the maximum size of the backlogs of all the rooms together, the least active rooms lose theirs first.
+     * Every room shard gets an equal part of it
+     *
+     * @return The size in bytes
+     */
+    public long getBacklogBudget() {
+        return this.backlogBudget;
+    }
+
+    public void setBacklogBudget(long backlogBudget) {
+        this.backlogBudget = backlogBudget;
+    }
+
+    /**
+     * Get the directory of the durable message log
+     *
+     * @return The directory, null if the messages aren't logged
+     */
+    public String getHistoryDirectory() {
+        return this.historyDirectory;
+    }
+
+    public void setHistoryDirectory(String historyDirectory) {
+        this.historyDirectory = historyDirectory;
+    }
+
+    /**
+     * Get the size of each segment file of the message log
+     *
+     * @return The size in bytes
+     */
+    public int getHistorySegmentSize() {
+        return this.historySegmentSize;
+    }
+
+    public void setHistorySegmentSize(int historySegmentSize) {
+        if (historySegmentSize < 64 * 1024) {
+            throw new IllegalArgumentException("The message log segments have to be at least 64 KiB");
+        }
+
+        this.historySegmentSize = historySegmentSize;
+    }
+
+    /**
+     * Get the longest time a logged message waits to be forced to disk
+     *
+     * @return The time in milliseconds
+     */
+    public long getHistorySyncMillis() {
+        return this.historySyncMillis;
+    }
+
+    public void setHistorySyncMillis(long historySyncMillis) {
+        this.historySyncMillis = historySyncMillis;
+    }
+
+    /**
+     * Get the size of the message log over which the oldest segments are deleted
+     *
+     * @return The size in bytes
+     */
+    public long getHistoryRetentionBytes() {
+        return this.historyRetentionBytes;
+    }
+
+    public void setHistoryRetentionBytes(long historyRetentionBytes) {
+        this.historyRetentionBytes = historyRetentionBytes;
+    }
+
+    /**
+     * Get the age after which a segment of the message log is deleted
+     *
+     * @return The age in milliseconds
+     */
+    public long getHistoryRetentionMillis() {
+        return this.historyRetentionMillis;
+    }
+
+    public void setHistoryRetentionMillis(long historyRetentionMillis) {
+        this.historyRetentionMillis = historyRetentionMillis;
+    }
+
+    /**
+     * Get the deflate level of the clients that ask for compression, the fastest by default since every
+     * client compresses its own copy of every broadcast
+     *
+     * @return The level, 1 to 9, 0 if clients can't ask for compression
+     */
+    public int getCompressionLevel() {
+        return this.compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Get the size under which the output that piled up for a compressed client is sent without deflating it
+     *
+     * @return The size in bytes
+     */
+    public int getCompressionThreshold() {
+        return this.compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Get how long a client may go without sending anything, a /ping included, before it's disconnected
+     *
+     * @return The timeout in milliseconds, 0 if silent clients are kept forever
+     */
+    public long getIdleTimeoutMillis() {
+        return this.idleTimeoutMillis;
+    }
+
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        checkIdleTicks(idleTimeoutMillis, this.idleTickMillis);
+
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Get how often the silent clients are looked for, how late past the timeout they can be disconnected
+     *
+     * @return The period in milliseconds
+     */
+    public long getIdleTickMillis() {
+        return this.idleTickMillis;
+    }
+
+    public void setIdleTickMillis(long idleTickMillis) {
+        if (idleTickMillis < 1) {
+            throw new IllegalArgumentException("The idle tick has to be at least 1 ms");
+        }
+
+        checkIdleTicks(this.idleTimeoutMillis, idleTickMillis);
+
+        this.idleTickMillis = idleTickMillis;
+    }
+
+    private static void checkIdleTicks(long timeoutMillis, long tickMillis) {
+        // The idle wheel has a slot per tick of the timeout, rounded up to a power of two
+        if (timeoutMillis / tickMillis > IdleWheel.MAX_TICKS) {
+            throw new IllegalArgumentException("The idle timeout can be at most " + IdleWheel.MAX_TICKS + " ticks");
+        }
+    }
+
+    /**
+     * Get how many of the stages of the messages are recorded in a flight recording, see {@link Tracing}
+     *
+     * @return One in that many, 1 for all of them
+     */
+    public int getTraceSampleRate() {
+        return this.traceSampleRate;
+    }
+
+    public void setTraceSampleRate(int traceSampleRate) {
+        this.traceSampleRate = traceSampleRate;
+    }
+
+    /**
+     * Get how many chat messages a client may send per second, on average
+     *
+     * @return The rate, 0 if it's unlimited
+     */
+    public int getFloodLineRate() {
+        return this.floodLineRate;
+    }
+
+    public void setFloodLineRate(int floodLineRate) {
+        this.floodLineRate = floodLineRate;
+    }
+
+    /**
+     * Get how many chat messages a client may send at once, after having been quiet
+     *
+     * @return The burst
+     */
+    public int getFloodLineBurst() {
+        return this.floodLineBurst;
+    }
+
+    public void setFloodLineBurst(int floodLineBurst) {
+        this.floodLineBurst = floodLineBurst;
+    }
+
+    /**
+     * Get how many /join and /nick a client may send per second, on average. Every one of them is announced
+     * to a whole room
+     *
+     * @return The rate, 0 if it's unlimited
+     */
+    public int getFloodChurnRate() {
+        return this.floodChurnRate;
+    }
+
+    public void setFloodChurnRate(int floodChurnRate) {
+        this.floodChurnRate = floodChurnRate;
+    }
+
+    /**
+     * Get how many /join and /nick a client may send at once
+     *
+     * @return The burst
+     */
+    public int getFloodChurnBurst() {
+        return this.floodChurnBurst;
+    }
+
+    public void setFloodChurnBurst(int floodChurnBurst) {
+        this.floodChurnBurst = floodChurnBurst;
+    }
+
+    /**
+     * Get how many private messages a client may send per second, on average
+     *
+     * @return The rate, 0 if it's unlimited
+     */
+    public int getFloodPrivateRate() {
+        return this.floodPrivateRate;
+    }
+
+    public void setFloodPrivateRate(int floodPrivateRate) {
+        this.floodPrivateRate = floodPrivateRate;
+    }
+
+    /**
+     * Get how many private messages a client may send at once
+     *
+     * @return The burst
+     */
+    public int getFloodPrivateBurst() {
+        return this.floodPrivateBurst;
+    }
+
+    public void setFloodPrivateBurst(int floodPrivateBurst) {
+        this.floodPrivateBurst = floodPrivateBurst;
+    }
+
+    /**
+     * Get what happens to a line over the flood control limits
+     *
+     * @return The policy
+     */
+    public FloodControl.Policy getFloodPolicy() {
+        return this.floodPolicy;
+    }
+
+    public void setFloodPolicy(FloodControl.Policy floodPolicy) {
+        this.floodPolicy = floodPolicy;
+    }
+
+    /**
+     * Get the id of this server in the federation
+     *
+     * @return The id, unique among the linked servers
+     */
+    public String getNodeId() {
+        return this.nodeId;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Get the port the other servers of the federation connect to
+     *
+     * @return The port, 0 if this server isn't linked to others
+     */
+    public int getFederationPort() {
+        return this.federationPort;
+    }
+
+    public void setFederationPort(int federationPort) {
+        this.federationPort = federationPort;
+    }
+
+    /**
+     * Get the local address the federation port is bound to. The nodes on other hosts can only link to this one
+     * if it's set to an address they can reach
+     *
+     * @return The host name or address, null for the loopback address
+     */
+    public String getFederationBindAddress() {
+        return this.federationBindAddress;
+    }
+
+    public void setFederationBindAddress(String federationBindAddress) {
+        this.federationBindAddress = federationBindAddress;
+    }
+
+    /**
+     * Get the secret the nodes of the federation share, a peer that doesn't know it isn't linked to
+     *
+     * @return The secret, required when the federation port is set
+     */
+    public String getFederationSecret() {
+        return this.federationSecret;
+    }
+
+    public void setFederationSecret(String federationSecret) {
+        this.federationSecret = federationSecret;
+    }
+
+    /**
+     * Get the federation ports of the other servers this one links to
+     *
+     * @return The addresses
+     */
+    public List<InetSocketAddress> getPeers() {
+        return this.peers;
+    }
+
+    public void setPeers(List<InetSocketAddress> peers) {
+        this.peers = peers;
+    }
+
+}
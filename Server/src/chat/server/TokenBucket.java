@@ -0,0 +1,60 @@
+package chat.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket, refilled at a steady rate up to its burst.
+ * <p>
+ * Kept as the time at which the bucket would be back to full (the theoretical arrival time of GCRA) rather
+ * than as a count of tokens, so taking a token is a comparison and an addition. Not thread safe, a bucket
+ * belongs to whatever thread handles the lines it limits
+ */
+public final class TokenBucket {
+
+    // The time one token takes to come back
+    private final long interval;
+
+    // How far ahead of the present the full time can get, the burst minus the token that is being taken
+    private final long tolerance;
+
+    private long full = Long.MIN_VALUE;
+
+    /**
+     * @param rate  Tokens per second
+     * @param burst Tokens the bucket holds
+     */
+    public TokenBucket(int rate, int burst) {
+        this.interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        this.tolerance = this.interval * (Math.max(burst, 1) - 1);
+    }
+
+    /**
+     * Take a token if there's one
+     *
+     * @param now The current {@link System#nanoTime()}
+     * @return true if a token was taken
+     */
+    public boolean tryTake(long now) {
+        long full = this.full == Long.MIN_VALUE ? now : Math.max(this.full, now);
+
+        if (full - now > this.tolerance) {
+            return false;
+        }
+
+        this.full = full + this.interval;
+        return true;
+    }
+
+    /**
+     * Take a token even if there's none, putting the bucket in debt
+     *
+     * @param now The current {@link System#nanoTime()}
+     * @return How long until the bucket has a token again
+     */
+    public long borrow(long now) {
+        this.full = (this.full == Long.MIN_VALUE ? now : Math.max(this.full, now)) + this.interval;
+
+        return Math.max(0, this.full - now - this.tolerance);
+    }
+
+}
@@ -0,0 +1,279 @@
+package chat.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Flight Recorder events for the stages a message goes through, to tell where the time went when the
+ * delivery gets slow: {@code java -XX:StartFlightRecording=filename=chat.jfr -jar chat-server.jar 8000}
+ * <p>
+ * A sampled line is followed through the server: its {@link ParseEvent}, the {@link FanOutEvent} of the frame
+ * it turned into and the {@link DeliveryEvent} of that frame's last copy share a trace id. The {@link ReadEvent}s
+ * and {@link WriteEvent}s are sampled on their own, each covers whatever was read or written at once. One in
+ * {@code chat.trace.sample} of each is recorded.
+ * <p>
+ * Without a recording, or with the events disabled, a stage costs a check of {@link Event#isEnabled()} on an
+ * event that the JIT never allocates
+ */
+public final class Tracing {
+
+    @Name("chat.Read")
+    @Label("Read")
+    @Category({"Chat", "Stages"})
+    @Description("A read from a client's socket and the handling of every line in it")
+    @StackTrace(false)
+    public static final class ReadEvent extends Event {
+
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+
+    }
+
+    @Name("chat.Parse")
+    @Label("Parse")
+    @Category({"Chat", "Stages"})
+    @Description("The decoding and handling of a line, up to handing it to its room")
+    @StackTrace(false)
+    public static final class ParseEvent extends Event {
+
+        @Label("Trace Id")
+        long traceId;
+
+        @Label("Command")
+        @Description("The command, or message for a chat line")
+        String command;
+
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+
+    }
+
+    @Name("chat.FanOut")
+    @Label("Fan-out")
+    @Category({"Chat", "Stages"})
+    @Description("The queueing of a message to the members of its room, by the room's shard")
+    @StackTrace(false)
+    public static final class FanOutEvent extends Event {
+
+        @Label("Trace Id")
+        long traceId;
+
+        @Label("Room")
+        String room;
+
+        @Label("Recipients")
+        int recipients;
+
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+
+        @Label("Queue Time")
+        @Description("How long the message waited in the mailbox of the shard")
+        @Timespan
+        long queueTime;
+
+    }
+
+    @Name("chat.Write")
+    @Label("Write")
+    @Category({"Chat", "Stages"})
+    @Description("A flush of a client's queued output to its socket")
+    @StackTrace(false)
+    public static final class WriteEvent extends Event {
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+    }
+
+    @Name("chat.Delivery")
+    @Label("Delivery")
+    @Category({"Chat", "Stages"})
+    @Description("The last copy of a traced message was written")
+    @StackTrace(false)
+    public static final class DeliveryEvent extends Event {
+
+        @Label("Trace Id")
+        long traceId;
+
+        @Label("Latency")
+        @Description("From reading the line to writing the last copy of the message")
+        @Timespan
+        long latency;
+
+    }
+
+    private static final AtomicLong traceIds = new AtomicLong();
+
+    private static int sampleRate = 100;
+
+    private Tracing() {
+    }
+
+    /**
+     * Set how many of each event are recorded, before the server starts
+     *
+     * @param rate One in that many, 1 for every one
+     */
+    public static void setSampleRate(int rate) {
+        sampleRate = Math.max(1, rate);
+    }
+
+    private static boolean sampled() {
+        return sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+    }
+
+    /**
+     * Start timing a read
+     *
+     * @return The event, null if it isn't recorded
+     */
+    static ReadEvent read() {
+        ReadEvent event = new ReadEvent();
+
+        if (!event.isEnabled() || !sampled()) {
+            return null;
+        }
+
+        event.begin();
+        return event;
+    }
+
+    static void commit(ReadEvent event, int bytes) {
+        if (event != null) {
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * Start timing a line, the frames the client sends for it until the commit are traced
+     *
+     * @param client The client that sent it
+     * @return The event, null if it isn't recorded
+     */
+    static ParseEvent parse(ClientHandler client) {
+        ParseEvent event = new ParseEvent();
+
+        if (!event.isEnabled() || !sampled()) {
+            return null;
+        }
+
+        event.traceId = traceIds.incrementAndGet();
+        client.setTraceId(event.traceId);
+
+        event.begin();
+        return event;
+    }
+
+    static void commit(ParseEvent event, ClientHandler client, String command, int bytes) {
+        if (event != null) {
+            client.setTraceId(0);
+
+            event.command = command;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * Finish timing a line of the text protocol
+     *
+     * @param line    The line
+     * @param command Whether it was handled as a command
+     */
+    static void commit(ParseEvent event, ClientHandler client, String line, boolean command) {
+        if (event != null) {
+            commit(event, client, command ? command(line) : "message", line.getBytes(ChatServer.charset).length);
+        }
+    }
+
+    /**
+     * Start timing the fan-out of a frame, once its shard gets to it
+     *
+     * @param frame       The frame
+     * @param handedNanos When it was handed to the shard
+     * @return The event, null if the frame isn't traced
+     */
+    static FanOutEvent fanOut(Frame frame, long handedNanos) {
+        if (frame.getTraceId() == 0) {
+            return null;
+        }
+
+        FanOutEvent event = new FanOutEvent();
+
+        event.traceId = frame.getTraceId();
+        event.queueTime = System.nanoTime() - handedNanos;
+        event.begin();
+        return event;
+    }
+
+    static void commit(FanOutEvent event, String room, int recipients, int bytes) {
+        if (event != null) {
+            event.room = room;
+            event.recipients = recipients;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * Start timing a write
+     *
+     * @return The event, null if it isn't recorded
+     */
+    static WriteEvent write() {
+        WriteEvent event = new WriteEvent();
+
+        if (!event.isEnabled() || !sampled()) {
+            return null;
+        }
+
+        event.begin();
+        return event;
+    }
+
+    static void commit(WriteEvent event, long bytes) {
+        if (event != null) {
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * Record that the last copy of a traced frame was written
+     *
+     * @param traceId      The trace id of the frame
+     * @param arrivalNanos When the line was read
+     */
+    static void delivered(long traceId, long arrivalNanos) {
+        DeliveryEvent event = new DeliveryEvent();
+
+        // The start is when it was written, the commit can come a lot later if the thread gets preempted
+        event.begin();
+
+        event.traceId = traceId;
+        event.latency = System.nanoTime() - arrivalNanos;
+        event.commit();
+    }
+
+    private static String command(String line) {
+        int end = line.indexOf(' ');
+
+        return line.substring(1, end < 0 ? line.length() : end);
+    }
+
+}
@@ -0,0 +1,51 @@
+package chat.server;
+
+/**
+ * Moves the bytes of the clients it owns, either a {@link Reactor} multiplexing many clients on a selector
+ * or a {@link BlockingConnection} doing blocking reads and writes for a single client.
+ * <p>
+ * Every line a client sends is handled, and the client is torn down, on the thread that owns it.
+ * Any other thread can only queue output to the client
+ */
+public interface Transport {
+
+    /**
+     * Check if the current thread is the one that owns the clients of this transport
+     *
+     * @return true if it is
+     */
+    boolean inOwnerThread();
+
+    /**
+     * Have the owner thread tear a client down later, never before this returns
+     *
+     * @param client The client
+     */
+    void disconnect(ClientHandler client);
+
+    /**
+     * Write the output queued for a client, now or as soon as the owner of its socket gets to it
+     *
+     * @param client The client
+     */
+    void requestFlush(ClientHandler client);
+
+    /**
+     * Stop reading from a client until the given time, called from the owner thread once the flood control
+     * let the client run over its limit. Output to the client carries on
+     *
+     * @param client      The client
+     * @param resumeNanos The {@link System#nanoTime()} to resume reading at
+     */
+    void pauseReads(ClientHandler client, long resumeNanos);
+
+    /**
+     * Close the connection of a client that has been removed from the server, called from the owner thread.
+     * <p>
+     * Whatever is still queued for the client gets a last chance to be written
+     *
+     * @param client The client
+     */
+    void close(ClientHandler client);
+
+}
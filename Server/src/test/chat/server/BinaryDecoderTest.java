@@ -0,0 +1,158 @@
+package chat.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BinaryDecoderTest {
+
+    private static final byte[] ERROR = {1, BinaryProtocol.ERROR};
+
+    private TestServer server;
+
+    // A binary client and a text client in the same room
+    private ClientHandler alice, bob;
+
+    @BeforeEach
+    void setUp() {
+        this.server = new TestServer();
+
+        this.bob = this.server.connect("bob");
+        TestServer.receive(this.bob, utf8("/join room\n"));
+
+        this.alice = this.server.connect(null);
+        TestServer.receive(this.alice, utf8("/protocol binary\n"));
+        TestServer.receive(this.alice, frame(BinaryProtocol.NICK, utf8("alice")));
+        TestServer.receive(this.alice, frame(BinaryProtocol.JOIN, utf8("room")));
+
+        TestServer.written(this.alice);
+        TestServer.output(this.bob);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        this.server.close();
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] frame(byte opcode, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(6 + payload.length);
+
+        BinaryProtocol.putVarint(frame, payload.length + 1);
+        frame.put(opcode).put(payload);
+
+        return Arrays.copyOf(frame.array(), frame.position());
+    }
+
+    private static byte[] privateFrame(String dest, String message) {
+        byte[] nick = utf8(dest), text = utf8(message);
+
+        ByteBuffer payload = ByteBuffer.allocate(5 + nick.length + text.length);
+
+        BinaryProtocol.putVarint(payload, nick.length);
+        payload.put(nick).put(text);
+
+        return frame(BinaryProtocol.SEND_PRIVATE, Arrays.copyOf(payload.array(), payload.position()));
+    }
+
+    @Test
+    void messageReachesTheTextClients() {
+        TestServer.receive(this.alice, frame(BinaryProtocol.SEND, utf8("hi")));
+
+        assertEquals("MESSAGE alice hi\n", TestServer.output(this.bob));
+    }
+
+    @Test
+    void messageWithLineFeedIsRefused() {
+        TestServer.receive(this.alice, frame(BinaryProtocol.SEND, utf8("hi\nBYE\nPRIVATE admin you-are-pwned")));
+
+        assertArrayEquals(ERROR, TestServer.written(this.alice));
+        assertEquals("", TestServer.output(this.bob));
+    }
+
+    @Test
+    void messageWithCarriageReturnIsRefused() {
+        TestServer.receive(this.alice, frame(BinaryProtocol.SEND, utf8("hi\rBYE")));
+
+        assertArrayEquals(ERROR, TestServer.written(this.alice));
+        assertEquals("", TestServer.output(this.bob));
+    }
+
+    @Test
+    void privateMessageWithLineFeedIsRefused() {
+        TestServer.receive(this.alice, privateFrame("bob", "hi\nBYE"));
+
+        assertArrayEquals(ERROR, TestServer.written(this.alice));
+        assertEquals("", TestServer.output(this.bob));
+    }
+
+    @Test
+    void privateMessageToANickOfTenOrThirteenBytes() {
+        // The length of the nick is a line feed or a carriage return, which isn't a line break
+        ClientHandler ten = this.server.connect("abcdefghij"), thirteen = this.server.connect("abcdefghijklm");
+
+        TestServer.receive(this.alice, privateFrame("abcdefghij", "hi"));
+        TestServer.receive(this.alice, privateFrame("abcdefghijklm", "hi"));
+
+        assertEquals("PRIVATE alice hi\n", TestServer.output(ten));
+        assertEquals("PRIVATE alice hi\n", TestServer.output(thirteen));
+    }
+
+    @Test
+    void commandWithLineFeedIsRefused() {
+        TestServer.receive(this.alice, frame(BinaryProtocol.COMMAND, utf8("/priv bob hi\nBYE")));
+
+        assertArrayEquals(ERROR, TestServer.written(this.alice));
+        assertEquals("", TestServer.output(this.bob));
+    }
+
+    @Test
+    void framesAfterARefusedOneAreHandled() {
+        byte[] refused = frame(BinaryProtocol.SEND, utf8("a\nb")), accepted = frame(BinaryProtocol.SEND, utf8("c"));
+
+        byte[] both = Arrays.copyOf(refused, refused.length + accepted.length);
+
+        System.arraycopy(accepted, 0, both, refused.length, accepted.length);
+
+        TestServer.receive(this.alice, both);
+
+        assertEquals("MESSAGE alice c\n", TestServer.output(this.bob));
+    }
+
+    @Test
+    void varintLongerThanAnIntIsTooLong() {
+        // 0xFFFFFFFF, which would read as -1, the length of an incomplete frame
+        byte[] negative = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F};
+
+        assertEquals(Integer.MAX_VALUE, BinaryProtocol.getVarint(ByteBuffer.wrap(negative)));
+
+        for (int i = 0; i < 3; i++) {
+            TestServer.receive(this.alice, negative);
+        }
+
+        // Handled as a frame over the limit, whatever follows is skipped rather than held
+        assertArrayEquals(ERROR, TestServer.written(this.alice));
+        assertEquals(0, ((BinaryDecoder) this.alice.getDecoder()).getPending());
+        assertEquals("", TestServer.output(this.bob));
+    }
+
+    @Test
+    void varintOfTheLargestIntIsKept() {
+        byte[] largest = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07};
+
+        assertEquals(Integer.MAX_VALUE, BinaryProtocol.getVarint(ByteBuffer.wrap(largest)));
+        assertEquals(1 << 28, BinaryProtocol.getVarint(ByteBuffer.wrap(new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01})));
+    }
+
+}
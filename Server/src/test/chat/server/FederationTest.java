@@ -0,0 +1,80 @@
+package chat.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FederationTest {
+
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+    private TestServer server;
+
+    @BeforeEach
+    void setUp() {
+        this.server = new TestServer();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        this.server.close();
+    }
+
+    private Federation node(String nodeId, String secret) {
+        return new Federation(this.server.server, nodeId, ADDRESS, secret, List.of());
+    }
+
+    private static String handshake(Federation from, Federation to) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        from.writeHello(new DataOutputStream(bytes));
+
+        return to.readHello(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test
+    void peerWithTheSecretIsLinked() throws IOException {
+        assertEquals("a", handshake(node("a", "s3cret"), node("b", "s3cret")));
+    }
+
+    @Test
+    void peerWithAnotherSecretIsRefused() {
+        assertThrows(IOException.class, () -> handshake(node("a", "guess"), node("b", "s3cret")));
+        assertThrows(IOException.class, () -> handshake(node("a", "s3cret-and-more"), node("b", "s3cret")));
+    }
+
+    @Test
+    void helloWithoutASecretIsRefused() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(Federation.HELLO);
+            out.writeUTF("a");
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+
+        Federation node = node("b", "s3cret");
+
+        assertThrows(IOException.class, () -> node.readHello(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+    }
+
+    @Test
+    void federationNeedsASecret() {
+        assertThrows(IllegalArgumentException.class, () -> node("a", null));
+        assertThrows(IllegalArgumentException.class, () -> node("a", ""));
+    }
+
+}
@@ -0,0 +1,123 @@
+package chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FloodControlTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final long T0 = 1_000_000 * MS;
+
+    private final Metrics metrics = new Metrics();
+
+    /**
+     * 10 lines a second with a burst of 2, 100 /priv a second with no burst, /join and /nick unlimited
+     */
+    private FloodControl floodControl(FloodControl.Policy policy) {
+        ServerConfig config = new ServerConfig(0);
+
+        config.setFloodPolicy(policy);
+        config.setFloodLineRate(10);
+        config.setFloodLineBurst(2);
+        config.setFloodPrivateRate(100);
+        config.setFloodPrivateBurst(1);
+        config.setFloodChurnRate(0);
+
+        return new FloodControl(config, this.metrics);
+    }
+
+    @Test
+    void lineOverTheLimitIsRefused() {
+        FloodControl flood = floodControl(FloodControl.Policy.ERROR);
+
+        assertTrue(flood.allow(FloodControl.Kind.LINE, T0));
+        assertTrue(flood.allow(FloodControl.Kind.LINE, T0));
+        assertFalse(flood.allow(FloodControl.Kind.LINE, T0));
+        assertFalse(flood.allow(FloodControl.Kind.LINE, T0 + 99 * MS));
+
+        assertFalse(flood.isPaused());
+        assertEquals(2, this.metrics.getFloodRefused(FloodControl.Kind.LINE));
+        assertEquals(0, this.metrics.getFloodPaused(FloodControl.Kind.LINE));
+
+        // A refused line doesn't take a token
+        assertTrue(flood.allow(FloodControl.Kind.LINE, T0 + 100 * MS));
+        assertFalse(flood.allow(FloodControl.Kind.LINE, T0 + 100 * MS));
+    }
+
+    @Test
+    void kindsAreLimitedSeparately() {
+        FloodControl flood = floodControl(FloodControl.Policy.ERROR);
+
+        flood.allow(FloodControl.Kind.LINE, T0);
+        flood.allow(FloodControl.Kind.LINE, T0);
+
+        assertTrue(flood.allow(FloodControl.Kind.PRIVATE, T0));
+        assertFalse(flood.allow(FloodControl.Kind.PRIVATE, T0));
+        assertTrue(flood.allow(FloodControl.Kind.PRIVATE, T0 + 10 * MS));
+
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(flood.allow(FloodControl.Kind.CHURN, T0));
+        }
+
+        assertEquals(1, this.metrics.getFloodRefused(FloodControl.Kind.PRIVATE));
+        assertEquals(0, this.metrics.getFloodRefused(FloodControl.Kind.LINE));
+    }
+
+    @Test
+    void lineOverTheLimitPausesTheReads() {
+        FloodControl flood = floodControl(FloodControl.Policy.PAUSE);
+
+        assertTrue(flood.allow(FloodControl.Kind.LINE, T0));
+        assertTrue(flood.allow(FloodControl.Kind.LINE, T0));
+        assertFalse(flood.isPaused());
+
+        // Handled, but the bucket is a token in debt
+        assertTrue(flood.allow(FloodControl.Kind.LINE, T0));
+        assertTrue(flood.isPaused());
+
+        // Another one read in the same batch makes the pause longer, it's still a single pause
+        assertTrue(flood.allow(FloodControl.Kind.LINE, T0 + 50 * MS));
+
+        assertEquals(1, this.metrics.getFloodPaused(FloodControl.Kind.LINE));
+        assertEquals(0, this.metrics.getFloodRefused(FloodControl.Kind.LINE));
+
+        assertEquals(T0 + 300 * MS, flood.resume());
+        assertFalse(flood.isPaused());
+
+        // Out of debt once resumed
+        assertTrue(flood.allow(FloodControl.Kind.LINE, T0 + 300 * MS));
+        assertFalse(flood.isPaused());
+    }
+
+    @Test
+    void pauseLastsUntilTheLatestBucketIsOutOfDebt() {
+        FloodControl flood = floodControl(FloodControl.Policy.PAUSE);
+
+        for (int i = 0; i < 3; i++) {
+            flood.allow(FloodControl.Kind.LINE, T0);
+        }
+
+        // A shorter debt on another bucket doesn't shorten the pause
+        flood.allow(FloodControl.Kind.PRIVATE, T0);
+        flood.allow(FloodControl.Kind.PRIVATE, T0);
+
+        assertEquals(T0 + 200 * MS, flood.resume());
+
+        // The next pause is counted from scratch
+        flood.allow(FloodControl.Kind.PRIVATE, T0 + 200 * MS);
+        assertFalse(flood.isPaused());
+
+        flood.allow(FloodControl.Kind.PRIVATE, T0 + 200 * MS);
+
+        assertTrue(flood.isPaused());
+        assertEquals(T0 + 220 * MS, flood.resume());
+        assertEquals(2, this.metrics.getFloodPaused(FloodControl.Kind.LINE) + this.metrics.getFloodPaused(FloodControl.Kind.PRIVATE));
+    }
+
+}
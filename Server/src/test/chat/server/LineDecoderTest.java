@@ -0,0 +1,169 @@
+package chat.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LineDecoderTest {
+
+    /**
+     * A client that only records the lines it's handed by the decoder under test
+     */
+    private static final class Recorder extends ClientHandler {
+
+        final List<String> lines = new ArrayList<>();
+
+        final LineDecoder decoder;
+
+        int tooLong;
+
+        Recorder(TestServer server, int maxLineLength) {
+            super(server.getSocket(), new TestServer.TestTransport());
+
+            this.decoder = new LineDecoder(maxLineLength);
+        }
+
+        @Override
+        Decoder getDecoder() {
+            return this.decoder;
+        }
+
+        @Override
+        void receiveFinalMessage(String line) {
+            this.lines.add(line);
+        }
+
+        @Override
+        void lineTooLong() {
+            this.tooLong++;
+        }
+
+    }
+
+    private TestServer server;
+
+    @BeforeEach
+    void setUp() {
+        this.server = new TestServer();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        this.server.close();
+    }
+
+    private static void decode(Recorder client, byte[]... reads) {
+        for (byte[] read : reads) {
+            client.decoder.decode(ByteBuffer.wrap(read), client);
+        }
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void multiByteCharacterSplitAcrossReads() {
+        Recorder client = new Recorder(this.server, 64);
+
+        byte[] line = utf8("café €\n");
+
+        // The 2 bytes of the é, then the 3 of the €, each cut in the middle
+        decode(client, Arrays.copyOfRange(line, 0, 4), Arrays.copyOfRange(line, 4, 7),
+                Arrays.copyOfRange(line, 7, line.length));
+
+        assertEquals(List.of("café €"), client.lines);
+        assertEquals(0, client.decoder.getPending());
+    }
+
+    @Test
+    void multiByteCharactersOneByteAtATime() {
+        Recorder client = new Recorder(this.server, 64);
+
+        for (byte b : utf8("über\n日本\n")) {
+            decode(client, new byte[]{b});
+        }
+
+        assertEquals(List.of("über", "日本"), client.lines);
+    }
+
+    @Test
+    void lineOfTheMaximumLengthIsKept() {
+        Recorder client = new Recorder(this.server, 8);
+
+        decode(client, utf8("12345678\n"), utf8("1234"), utf8("5678\n"));
+
+        assertEquals(List.of("12345678", "12345678"), client.lines);
+        assertEquals(0, client.tooLong);
+    }
+
+    @Test
+    void lineOverTheMaximumLengthIsDropped() {
+        Recorder client = new Recorder(this.server, 8);
+
+        decode(client, utf8("123456789\nok\n"));
+
+        assertEquals(List.of("ok"), client.lines);
+        assertEquals(1, client.tooLong);
+    }
+
+    @Test
+    void lineOverTheMaximumLengthAcrossReadsIsDroppedOnce() {
+        Recorder client = new Recorder(this.server, 8);
+
+        // Goes over the limit in the second read, the rest of it is skipped up to its end
+        decode(client, utf8("12345"), utf8("6789"), utf8("0123456789"), utf8("0\nok\n"));
+
+        assertEquals(List.of("ok"), client.lines);
+        assertEquals(1, client.tooLong);
+        assertEquals(0, client.decoder.getPending());
+    }
+
+    @Test
+    void maximumLengthCountsBytesNotCharacters() {
+        Recorder client = new Recorder(this.server, 8);
+
+        // 4 characters, 12 bytes
+        decode(client, utf8("€€€€\n"));
+
+        assertTrue(client.lines.isEmpty());
+        assertEquals(1, client.tooLong);
+    }
+
+    @Test
+    void inputAfterByeIsIgnored() {
+        ClientHandler alice = this.server.connect("alice");
+
+        TestServer.receive(alice, utf8("/bye\n/nick late\nhello\n"));
+
+        assertTrue(alice.isClosed());
+        assertEquals("BYE\n", TestServer.output(alice));
+        assertFalse(this.server.server.getClients().isNameTaken("late"));
+        assertEquals(0, this.server.server.getClients().size());
+    }
+
+    @Test
+    void inputAfterByeSplitAcrossReadsIsIgnored() {
+        ClientHandler alice = this.server.connect("alice");
+
+        TestServer.receive(alice, utf8("/by"));
+        TestServer.receive(alice, utf8("e\n/nick la"));
+
+        assertTrue(alice.isClosed());
+        assertEquals("BYE\n", TestServer.output(alice));
+        assertFalse(this.server.server.getClients().isNameTaken("la"));
+        assertEquals(0, ((LineDecoder) alice.getDecoder()).getPending());
+    }
+
+}
@@ -0,0 +1,39 @@
+package chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogTest {
+
+    @Test
+    void idleWriterWakesUpForEveryRecord() throws Exception {
+        File file = File.createTempFile("chat-log", ".log");
+        file.deleteOnExit();
+
+        // The logger can only be started once, no other test does
+        Log.start(Log.Level.INFO, file.getPath(), 1024);
+
+        for (int i = 0; i < 3; i++) {
+            // Long enough for the writer to go back to sleep
+            Thread.sleep(50);
+
+            Log.info("Record {}", i);
+
+            String expected = "msg=\"Record " + i + "\"";
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+            while (!Files.readString(file.toPath(), StandardCharsets.UTF_8).contains(expected)) {
+                assertTrue(System.nanoTime() - deadline < 0, "Record " + i + " wasn't written");
+
+                Thread.sleep(1);
+            }
+        }
+    }
+
+}
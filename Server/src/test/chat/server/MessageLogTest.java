@@ -0,0 +1,147 @@
+package chat.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageLogTest {
+
+    /**
+     * A client that keeps the lines it's sent, from any thread
+     */
+    private static final class Recorder extends ClientHandler {
+
+        final LinkedBlockingQueue<String> lines = new LinkedBlockingQueue<>();
+
+        Recorder(TestServer server) {
+            super(server.getSocket(), new TestServer.TestTransport());
+        }
+
+        @Override
+        public void sendMessage(Frame frame) {
+            this.lines.add(frame.getLine());
+        }
+
+        String next() throws InterruptedException {
+            return this.lines.poll(5, TimeUnit.SECONDS);
+        }
+
+    }
+
+    @TempDir
+    Path directory;
+
+    private TestServer server;
+
+    @BeforeEach
+    void setUp() {
+        this.server = new TestServer();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        this.server.close();
+    }
+
+    @Test
+    void idleWriterWakesUpForEveryRequest() throws Exception {
+        // Synced once a minute, so the writer has nothing to wake up for by itself
+        MessageLog log = new MessageLog(this.directory, 64 * 1024, TimeUnit.MINUTES.toMillis(1), Long.MAX_VALUE,
+                Long.MAX_VALUE, 1024);
+
+        log.start();
+
+        Recorder client = new Recorder(this.server);
+
+        for (int i = 0; i < 3; i++) {
+            // Long enough for the writer to go back to sleep
+            Thread.sleep(50);
+
+            log.appendRoomMessage("room", Frame.chat("MESSAGE bob " + i + "\n"));
+            log.requestHistory(client, "room", 1);
+
+            assertEquals("MESSAGE bob " + i + "\n", client.next());
+            assertEquals("OK\n", client.next());
+        }
+
+        assertEquals(0, log.getDropped());
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(this.directory)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    void oldSegmentsAreDeleted() throws Exception {
+        // Synced, and so trimmed, on every batch, down to two segments
+        MessageLog log = new MessageLog(this.directory, 64 * 1024, 0, 2 * 64 * 1024, Long.MAX_VALUE, 1024);
+
+        log.start();
+
+        Recorder client = new Recorder(this.server);
+
+        String text = "x".repeat(1000);
+
+        // About 60 messages a segment
+        for (int i = 0; i < 400; i++) {
+            log.appendRoomMessage("room", Frame.chat("MESSAGE bob " + i + " " + text + "\n"));
+
+            if (i % 100 == 99) {
+                // Let the writer catch up, the ring only holds 1024 requests
+                log.requestHistory(client, "room", 1);
+
+                assertEquals("MESSAGE bob " + i + " " + text + "\n", client.next());
+                assertEquals("OK\n", client.next());
+            }
+        }
+
+        assertTrue(segmentFiles() <= 2, segmentFiles() + " segments left");
+
+        // The messages of the deleted segments are gone, the others are still read from the mapped segments
+        log.requestHistory(client, "room", MessageLog.MAX_HISTORY);
+
+        int read = 0;
+        String line;
+
+        while (!(line = client.next()).equals("OK\n")) {
+            assertTrue(line.startsWith("MESSAGE bob "));
+            read++;
+        }
+
+        assertTrue(read > 0 && read < MessageLog.MAX_HISTORY, read + " messages read");
+        assertEquals(0, log.getDropped());
+    }
+
+    @Test
+    void segmentIdsPastTheRangeOfAnInt() throws Exception {
+        // As if the log had already gone through that many segments
+        Files.createFile(this.directory.resolve(String.format("segment-%020d.log", 3_000_000_000L)));
+
+        MessageLog log = new MessageLog(this.directory, 64 * 1024, TimeUnit.MINUTES.toMillis(1), Long.MAX_VALUE,
+                Long.MAX_VALUE, 1024);
+
+        log.start();
+
+        Recorder client = new Recorder(this.server);
+
+        log.appendRoomMessage("room", Frame.chat("MESSAGE bob hi\n"));
+        log.requestHistory(client, "room", 1);
+
+        assertEquals("MESSAGE bob hi\n", client.next());
+        assertEquals("OK\n", client.next());
+    }
+
+}
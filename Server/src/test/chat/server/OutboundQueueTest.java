@@ -0,0 +1,230 @@
+package chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboundQueueTest {
+
+    /**
+     * A socket that takes at most a given amount of bytes per write, and keeps them
+     */
+    private static final class SlowSocket implements GatheringByteChannel {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        int allowance;
+
+        SlowSocket(int allowance) {
+            this.allowance = allowance;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[]{src}, 0, 1);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long written = 0;
+
+            for (int i = offset; i < offset + length && written < this.allowance; i++) {
+                while (srcs[i].hasRemaining() && written < this.allowance) {
+                    this.bytes.write(srcs[i].get());
+                    written++;
+                }
+            }
+
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        String text() {
+            return this.bytes.toString(ChatServer.charset);
+        }
+
+    }
+
+    private final Metrics metrics = new Metrics();
+
+    private static String line(int number, int size) {
+        String prefix = "MESSAGE bob " + number + " ";
+
+        return prefix + "x".repeat(size - prefix.length() - 1) + "\n";
+    }
+
+    private static boolean offer(OutboundQueue queue, Frame frame) {
+        return queue.offer(frame, frame.view());
+    }
+
+    /**
+     * Check that what was written is made of whole lines, and return them
+     */
+    private static String[] wholeLines(String written, int size) {
+        assertTrue(written.endsWith("\n"), "ends in the middle of a line");
+
+        String[] lines = written.split("\n");
+
+        for (String line : lines) {
+            assertEquals(size - 1, line.length(), "cut line: " + line);
+        }
+
+        return lines;
+    }
+
+    @Test
+    void dropOldestKeepsThePartiallyWrittenFrame() throws IOException {
+        // No pool, the views are written with gathering writes
+        OutboundQueue queue = new OutboundQueue(100, OutboundQueue.Policy.DROP_OLDEST, this.metrics, new BufferPool(0));
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(offer(queue, Frame.chat(line(i, 30))));
+        }
+
+        SlowSocket socket = new SlowSocket(10);
+
+        assertFalse(queue.writeTo(socket));
+        assertEquals(80, queue.getBytes());
+
+        // 110 bytes, over the limit: the oldest whole frame goes, not the one that is being written
+        assertTrue(offer(queue, Frame.chat(line(3, 30))));
+
+        assertEquals(1, queue.getDropped());
+        assertEquals(80, queue.getBytes());
+
+        socket.allowance = Integer.MAX_VALUE;
+
+        assertTrue(queue.writeTo(socket));
+        assertEquals(0, queue.getBytes());
+        assertEquals(120 - 30, queue.getWritten());
+
+        String[] lines = wholeLines(socket.text(), 30);
+
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].startsWith("MESSAGE bob 0 "));
+        assertTrue(lines[1].startsWith("MESSAGE bob 2 "));
+        assertTrue(lines[2].startsWith("MESSAGE bob 3 "));
+    }
+
+    @Test
+    void dropOldestKeepsAFramePartlyCopiedToThePool() throws IOException {
+        OutboundQueue queue = new OutboundQueue(200 * 1024, OutboundQueue.Policy.DROP_OLDEST, this.metrics,
+                new BufferPool(4 * 1024 * 1024));
+
+        int big = 100 * 1024;
+
+        // Bigger than the biggest buffer of the pool, so only its start is copied
+        assertTrue(offer(queue, Frame.chat(line(0, big))));
+
+        SlowSocket socket = new SlowSocket(0);
+
+        assertFalse(queue.writeTo(socket));
+        assertEquals(big, queue.getBytes());
+
+        // Over the limit: the frames after it go, the one that is being copied can't
+        assertTrue(offer(queue, Frame.chat(line(1, big))));
+        assertTrue(offer(queue, Frame.chat(line(2, big))));
+
+        assertEquals(1, queue.getDropped());
+        assertEquals(2 * big, queue.getBytes());
+
+        socket.allowance = Integer.MAX_VALUE;
+
+        assertTrue(queue.writeTo(socket));
+        assertEquals(0, queue.getBytes());
+
+        String[] lines = wholeLines(socket.text(), big);
+
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith("MESSAGE bob 0 "));
+        assertTrue(lines[1].startsWith("MESSAGE bob 2 "));
+    }
+
+    @Test
+    void controlRepliesAreNeverDropped() throws IOException {
+        OutboundQueue queue = new OutboundQueue(10, OutboundQueue.Policy.DROP_OLDEST, this.metrics, new BufferPool(0));
+
+        assertTrue(offer(queue, Frame.chat(line(0, 20))));
+        assertTrue(offer(queue, Frame.control("OK\n")));
+        assertTrue(offer(queue, Frame.control("ERROR\n")));
+
+        // The chat message went, the replies stay even though they're still over the limit
+        assertEquals(1, queue.getDropped());
+        assertEquals(1, this.metrics.getDroppedFrames());
+        assertEquals(9, queue.getBytes());
+
+        assertTrue(offer(queue, Frame.control("BYE\n")));
+
+        assertEquals(13, queue.getBytes());
+
+        SlowSocket socket = new SlowSocket(Integer.MAX_VALUE);
+
+        assertTrue(queue.writeTo(socket));
+        assertEquals("OK\nERROR\nBYE\n", socket.text());
+        assertEquals(0, queue.getBytes());
+    }
+
+    @Test
+    void disconnectOnceOverTheLimit() throws IOException {
+        OutboundQueue queue = new OutboundQueue(100, OutboundQueue.Policy.DISCONNECT, this.metrics, new BufferPool(0));
+
+        // Up to the limit itself is fine
+        for (int i = 0; i < 4; i++) {
+            assertTrue(offer(queue, Frame.chat(line(i, 25))));
+        }
+
+        assertEquals(100, queue.getBytes());
+
+        assertFalse(offer(queue, Frame.chat(line(4, 25))));
+        assertEquals(0, queue.getDropped());
+        assertEquals(125, queue.getBytes());
+    }
+
+    @Test
+    void disconnectCountsWhatIsWritten() throws IOException {
+        OutboundQueue queue = new OutboundQueue(100, OutboundQueue.Policy.DISCONNECT, this.metrics,
+                new BufferPool(4 * 1024 * 1024));
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(offer(queue, Frame.chat(line(i, 25))));
+        }
+
+        SlowSocket socket = new SlowSocket(30);
+
+        assertFalse(queue.writeTo(socket));
+        assertEquals(70, queue.getBytes());
+        assertEquals(30, queue.getWritten());
+
+        // Back under the limit once written, in part
+        assertTrue(offer(queue, Frame.chat(line(4, 25))));
+        assertEquals(95, queue.getBytes());
+
+        socket.allowance = Integer.MAX_VALUE;
+
+        assertTrue(queue.writeTo(socket));
+        assertEquals(0, queue.getBytes());
+        assertEquals(125, queue.getWritten());
+        assertEquals(5, wholeLines(socket.text(), 25).length);
+    }
+
+}
@@ -0,0 +1,109 @@
+package chat.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RoomRegistryTest {
+
+    private TestServer server;
+
+    @BeforeEach
+    void setUp() {
+        this.server = new TestServer();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        this.server.close();
+    }
+
+    // 100 bytes
+    private static Frame message(String room, int number) {
+        String prefix = "MESSAGE " + room + " " + number + " ";
+
+        return Frame.chat(prefix + "x".repeat(99 - prefix.length()) + "\n");
+    }
+
+    private String backlogOf(RoomRegistry rooms, String room) {
+        ClientHandler client = this.server.connect(null);
+
+        rooms.join(room, client);
+
+        String backlog = TestServer.output(client);
+
+        rooms.leave(room, client);
+
+        return backlog;
+    }
+
+    @Test
+    void roomsPublishedToTheLongestAgoAreEvictedFirst() {
+        RoomRegistry rooms = new RoomRegistry(10, 1000, 350);
+
+        for (String room : new String[]{"a", "b", "c"}) {
+            rooms.join(room, this.server.connect(room + "-member"));
+        }
+
+        rooms.publish("a", message("a", 0));
+        rooms.publish("b", message("b", 0));
+        rooms.publish("a", message("a", 1));
+
+        assertEquals(300, rooms.getBacklogSize());
+
+        // Over the budget: b is the one that hasn't been published to for the longest, even though a was first
+        rooms.publish("c", message("c", 0));
+
+        assertEquals(300, rooms.getBacklogSize());
+        assertEquals("", backlogOf(rooms, "b"));
+        assertEquals(message("a", 0).getLine() + message("a", 1).getLine(), backlogOf(rooms, "a"));
+        assertEquals(message("c", 0).getLine(), backlogOf(rooms, "c"));
+    }
+
+    @Test
+    void evictionGoesTenPercentUnderTheBudget() {
+        RoomRegistry rooms = new RoomRegistry(10, 1000, 1000);
+
+        for (int i = 0; i < 10; i++) {
+            rooms.join("room" + i, this.server.connect("member" + i));
+            rooms.publish("room" + i, message("room" + i, 0));
+        }
+
+        assertEquals(1000, rooms.getBacklogSize());
+
+        // 1100 bytes, down to 900 at most
+        rooms.join("room10", this.server.connect("member10"));
+        rooms.publish("room10", message("room10", 0));
+
+        assertEquals(900, rooms.getBacklogSize());
+        assertEquals("", backlogOf(rooms, "room0"));
+        assertEquals("", backlogOf(rooms, "room1"));
+        assertEquals(message("room2", 0).getLine(), backlogOf(rooms, "room2"));
+    }
+
+    @Test
+    void closedRoomsAreForgotten() {
+        RoomRegistry rooms = new RoomRegistry(10, 1000, 250);
+
+        ClientHandler alice = this.server.connect("alice");
+
+        rooms.join("a", alice);
+        rooms.publish("a", message("a", 0));
+        rooms.leave("a", alice);
+
+        assertEquals(0, rooms.getBacklogSize());
+
+        rooms.join("b", this.server.connect("bob"));
+        rooms.publish("b", message("b", 0));
+        rooms.publish("b", message("b", 1));
+        rooms.publish("b", message("b", 2));
+
+        // Only b is left to evict from
+        assertEquals(0, rooms.getBacklogSize());
+    }
+
+}
@@ -0,0 +1,101 @@
+package chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RoomShardTest {
+
+    private static final int CAPACITY = 4;
+
+    private final Metrics metrics = new Metrics();
+
+    private RoomShard shard(int id) {
+        RoomShard shard = new RoomShard(id, new RoomRegistry(0, 0, 0), CAPACITY, this.metrics);
+
+        shard.start();
+
+        return shard;
+    }
+
+    /**
+     * Hold the shard in a command until the latch is released, with its mailbox full behind it
+     */
+    private static void block(RoomShard shard, CountDownLatch release) throws InterruptedException {
+        CountDownLatch running = new CountDownLatch(1);
+
+        shard.execute(rooms -> {
+            running.countDown();
+
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < new RingBuffer<>(CAPACITY).capacity(); i++) {
+            shard.execute(rooms -> {
+            });
+        }
+    }
+
+    @Test
+    void callerWaitsForRoomInAFullMailbox() throws Exception {
+        RoomShard shard = shard(0);
+
+        CountDownLatch release = new CountDownLatch(1), done = new CountDownLatch(1);
+
+        block(shard, release);
+
+        Thread caller = new Thread(() -> shard.execute(rooms -> done.countDown()));
+
+        caller.start();
+
+        // Still waiting while the shard is held up
+        caller.join(100);
+        assertTrue(caller.isAlive());
+        assertEquals(1, this.metrics.getMailboxFull());
+
+        release.countDown();
+
+        caller.join(5000);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void shardCantWaitForAFullMailbox() throws Exception {
+        RoomShard full = shard(0), other = shard(1);
+
+        CountDownLatch release = new CountDownLatch(1), done = new CountDownLatch(1);
+
+        block(full, release);
+
+        AtomicReference<RuntimeException> refused = new AtomicReference<>();
+
+        other.execute(rooms -> {
+            try {
+                full.execute(fullRooms -> {
+                });
+            } catch (RuntimeException e) {
+                refused.set(e);
+            }
+
+            done.countDown();
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, refused.get());
+
+        release.countDown();
+    }
+
+}
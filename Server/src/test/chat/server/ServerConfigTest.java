@@ -0,0 +1,48 @@
+package chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ServerConfigTest {
+
+    @Test
+    void idleTickHasToBePositive() {
+        ServerConfig config = new ServerConfig(0);
+
+        assertThrows(IllegalArgumentException.class, () -> config.setIdleTickMillis(0));
+        assertThrows(IllegalArgumentException.class, () -> config.setIdleTickMillis(-1));
+    }
+
+    @Test
+    void idleTimeoutHasToFitTheWheel() {
+        ServerConfig config = new ServerConfig(0);
+
+        config.setIdleTickMillis(1);
+
+        assertThrows(IllegalArgumentException.class, () -> config.setIdleTimeoutMillis(TimeUnit.DAYS.toMillis(30)));
+
+        config.setIdleTimeoutMillis(TimeUnit.DAYS.toMillis(1));
+
+        // Nor can the tick get that much shorter than the timeout
+        config.setIdleTickMillis(1000);
+        config.setIdleTimeoutMillis(TimeUnit.DAYS.toMillis(30));
+
+        assertThrows(IllegalArgumentException.class, () -> config.setIdleTickMillis(1));
+        assertEquals(1000, config.getIdleTickMillis());
+    }
+
+    @Test
+    void largestIdleWheel() {
+        ServerConfig config = new ServerConfig(0);
+
+        config.setIdleTickMillis(1);
+        config.setIdleTimeoutMillis(IdleWheel.MAX_TICKS);
+
+        assertThrows(IllegalArgumentException.class, () -> config.setIdleTimeoutMillis(IdleWheel.MAX_TICKS + 1));
+    }
+
+}
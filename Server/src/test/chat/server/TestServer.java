@@ -0,0 +1,188 @@
+package chat.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A server that is never started, with clients that are never connected, for the tests.
+ * <p>
+ * The clients are on a transport that runs everything on the test's thread and only records that a client
+ * was closed, and their output is collected with {@link #output(ClientHandler)}. The room shard never runs,
+ * the room commands run right away on the test's thread
+ */
+final class TestServer {
+
+    /**
+     * A transport whose thread is the caller's
+     */
+    static final class TestTransport implements Transport {
+
+        boolean closed;
+
+        @Override
+        public boolean inOwnerThread() {
+            return true;
+        }
+
+        @Override
+        public void disconnect(ClientHandler client) {
+            ChatServer.getInstance().deleteClient(client);
+        }
+
+        @Override
+        public void requestFlush(ClientHandler client) {
+        }
+
+        @Override
+        public void pauseReads(ClientHandler client, long resumeNanos) {
+        }
+
+        @Override
+        public void close(ClientHandler client) {
+            this.closed = true;
+        }
+
+    }
+
+    /**
+     * A channel that keeps every byte it's given
+     */
+    static final class Collector implements GatheringByteChannel {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        @Override
+        public int write(ByteBuffer src) {
+            int written = src.remaining();
+
+            while (src.hasRemaining()) {
+                this.bytes.write(src.get());
+            }
+
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long written = 0;
+
+            for (int i = offset; i < offset + length; i++) {
+                written += write(srcs[i]);
+            }
+
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    final ChatServer server;
+
+    private final SocketChannel socket;
+
+    TestServer() {
+        this(new ServerConfig(0));
+    }
+
+    TestServer(ServerConfig config) {
+        // A single shard that is never started, the rooms are handled right away on the test's thread
+        config.setRoomShards(1);
+
+        this.server = new ChatServer(config);
+
+        try {
+            this.socket = SocketChannel.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Add a client to the server
+     *
+     * @param name The nick of the client, null to leave it in the INIT state
+     * @return The client, with whatever its nick got it already collected
+     */
+    ClientHandler connect(String name) {
+        ClientHandler client = new ClientHandler(this.socket, new TestTransport());
+
+        this.server.getClients().add(client);
+
+        if (name != null) {
+            client.acceptName(name);
+        }
+
+        output(client);
+
+        return client;
+    }
+
+    /**
+     * Get the unconnected channel the clients share, for the tests that build their own clients
+     *
+     * @return The channel
+     */
+    SocketChannel getSocket() {
+        return this.socket;
+    }
+
+    /**
+     * Send bytes to a client as if they had been read from its socket
+     *
+     * @param client The client
+     * @param bytes  The bytes
+     */
+    static void receive(ClientHandler client, byte[] bytes) {
+        client.receive(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Write everything queued for a text client
+     *
+     * @param client The client
+     * @return The bytes, as UTF-8
+     */
+    static String output(ClientHandler client) {
+        return new String(written(client), ChatServer.charset);
+    }
+
+    /**
+     * Write everything queued for a client
+     *
+     * @param client The client
+     * @return The bytes
+     */
+    static byte[] written(ClientHandler client) {
+        Collector collector = new Collector();
+
+        try {
+            client.getOutbound().writeTo(collector);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return collector.bytes.toByteArray();
+    }
+
+    void close() throws IOException {
+        this.socket.close();
+    }
+
+}
@@ -0,0 +1,118 @@
+package chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // Any time will do, it's only compared with the times after it
+    private static final long T0 = 1_000_000 * MS;
+
+    @Test
+    void burstIsTakenAtOnce() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryTake(T0), "token " + i);
+        }
+
+        assertFalse(bucket.tryTake(T0));
+    }
+
+    @Test
+    void oneTokenComesBackPerInterval() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+
+        for (int i = 0; i < 5; i++) {
+            bucket.tryTake(T0);
+        }
+
+        // 100 ms a token
+        assertFalse(bucket.tryTake(T0 + 99 * MS));
+        assertTrue(bucket.tryTake(T0 + 100 * MS));
+        assertFalse(bucket.tryTake(T0 + 100 * MS));
+
+        assertTrue(bucket.tryTake(T0 + 300 * MS));
+        assertTrue(bucket.tryTake(T0 + 300 * MS));
+        assertFalse(bucket.tryTake(T0 + 300 * MS));
+    }
+
+    @Test
+    void idleBucketRefillsUpToItsBurst() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+
+        bucket.tryTake(T0);
+
+        long later = T0 + TimeUnit.MINUTES.toNanos(1);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryTake(later), "token " + i);
+        }
+
+        assertFalse(bucket.tryTake(later));
+    }
+
+    @Test
+    void burstOfOneIsTheRateOnly() {
+        TokenBucket bucket = new TokenBucket(100, 1);
+
+        assertTrue(bucket.tryTake(T0));
+        assertFalse(bucket.tryTake(T0 + 9 * MS));
+        assertTrue(bucket.tryTake(T0 + 10 * MS));
+
+        // A burst under 1 is taken as 1
+        TokenBucket none = new TokenBucket(100, 0);
+
+        assertTrue(none.tryTake(T0));
+        assertFalse(none.tryTake(T0));
+    }
+
+    @Test
+    void borrowingPutsTheBucketInDebt() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+
+        // Nothing to wait for while there are tokens
+        assertEquals(0, bucket.borrow(T0));
+
+        for (int i = 0; i < 3; i++) {
+            bucket.tryTake(T0);
+        }
+
+        // The last token of the burst, the next one comes back after an interval
+        assertEquals(100 * MS, bucket.borrow(T0));
+        assertEquals(200 * MS, bucket.borrow(T0));
+
+        // No token until the debt is paid back
+        assertFalse(bucket.tryTake(T0 + 199 * MS));
+        assertTrue(bucket.tryTake(T0 + 200 * MS));
+        assertFalse(bucket.tryTake(T0 + 200 * MS));
+    }
+
+    @Test
+    void worksAcrossTheSignOfNanoTime() {
+        // System.nanoTime() can be anything, negative too
+        long start = -50 * MS;
+
+        TokenBucket bucket = new TokenBucket(10, 1);
+
+        assertTrue(bucket.tryTake(start));
+        assertFalse(bucket.tryTake(start + 99 * MS));
+        assertTrue(bucket.tryTake(start + 100 * MS));
+
+        TokenBucket wrapping = new TokenBucket(10, 1);
+
+        start = Long.MAX_VALUE - 50 * MS;
+
+        assertTrue(wrapping.tryTake(start));
+        assertFalse(wrapping.tryTake(start + 99 * MS));
+        assertTrue(wrapping.tryTake(start + 100 * MS));
+    }
+
+}
@@ -0,0 +1,62 @@
+#!/usr/bin/env python3
+"""Compare two JMH JSON result files and flag the regressions.
+
+usage: compare.py before.json after.json [threshold]
+"""
+import json
+import sys
+
+
+def load(path):
+    results = {}
+
+    with open(path) as f:
+        for result in json.load(f):
+            params = ",".join("%s=%s" % kv for kv in sorted(result.get("params", {}).items()))
+            name = result["benchmark"].rsplit(".", 2)[-2] + "." + result["benchmark"].rsplit(".", 1)[-1]
+
+            metric = result["primaryMetric"]
+            # A single iteration has no error, JMH writes it as "NaN"
+            error = float(metric["scoreError"])
+            error = 0.0 if error != error else error
+
+            results[(name, params)] = (metric["score"], error, metric["scoreUnit"], result["mode"])
+
+    return results
+
+
+def main():
+    if len(sys.argv) < 3:
+        print(__doc__.strip())
+        return 2
+
+    before, after = load(sys.argv[1]), load(sys.argv[2])
+    threshold = float(sys.argv[3]) if len(sys.argv) > 3 else 0.10
+
+    regressions = 0
+
+    for key in sorted(before.keys() & after.keys()):
+        old, old_error, unit, mode = before[key]
+        new, new_error, _, _ = after[key]
+
+        # Throughput is better when higher, every other mode is a time
+        change = (old - new) / old if mode == "thrpt" else (new - old) / old
+        significant = abs(new - old) > old_error + new_error
+
+        flag = ""
+
+        if change > threshold and significant:
+            flag = "  REGRESSION"
+            regressions += 1
+
+        name, params = key
+        print("%-45s %-35s %12.3f -> %12.3f %-6s %+7.1f%%%s" % (name, params, old, new, unit, change * 100, flag))
+
+    for key in sorted(before.keys() - after.keys()):
+        print("%-45s %-35s missing from %s" % (key[0], key[1], sys.argv[2]))
+
+    return 1 if regressions else 0
+
+
+if __name__ == "__main__":
+    sys.exit(main())
@@ -0,0 +1,161 @@
+package chat.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A server that is never started, with clients that are never connected, for the benchmarks.
+ * <p>
+ * The clients share one unconnected channel and a reactor whose thread never runs, their output
+ * is drained to a channel that throws the bytes away, like a reactor writing to a fast socket would.
+ * The room shard never runs either, the room commands run on the benchmark's thread
+ */
+final class BenchFixture {
+
+    /**
+     * A channel that takes every byte it's given
+     */
+    static final GatheringByteChannel DISCARD = new GatheringByteChannel() {
+        @Override
+        public int write(ByteBuffer src) {
+            int written = src.remaining();
+
+            src.position(src.limit());
+
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long written = 0;
+
+            for (int i = offset; i < offset + length; i++) {
+                written += write(srcs[i]);
+            }
+
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    final ChatServer server;
+
+    private final Reactor reactor;
+
+    private final SocketChannel socket;
+
+    BenchFixture() {
+        try {
+            ServerConfig config = new ServerConfig(0);
+
+            // Big enough that nothing is dropped between two drains
+            config.setOutboundLimit(64 * 1024 * 1024);
+
+            // A single client sends every line, at a rate no flood control would let through
+            config.setFloodLineRate(0);
+            config.setFloodChurnRate(0);
+            config.setFloodPrivateRate(0);
+
+            // A single shard that is never started, the rooms are handled right away on the benchmark's thread
+            config.setRoomShards(1);
+
+            this.server = new ChatServer(config);
+            this.reactor = new Reactor(this.server, 0);
+            this.socket = SocketChannel.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Add a client to the server
+     *
+     * @param name The nick of the client, null to leave it in the INIT state
+     * @return The client
+     */
+    ClientHandler connect(String name) {
+        return add(new ClientHandler(this.socket, this.reactor), name);
+    }
+
+    /**
+     * Add a client that talks the given protocol to the server
+     *
+     * @param name     The nick of the client
+     * @param protocol The protocol
+     * @return The client
+     */
+    ClientHandler connect(String name, ClientHandler.Protocol protocol) {
+        ClientHandler client = new ClientHandler(this.socket, this.reactor);
+
+        client.switchProtocol(protocol);
+
+        return add(client, name);
+    }
+
+    /**
+     * Add a client that was built by the benchmark, e.g. a subclass
+     */
+    ClientHandler add(ClientHandler client, String name) {
+        this.server.getClients().add(client);
+
+        if (name != null) {
+            client.acceptName(name);
+        }
+
+        drain(client);
+
+        return client;
+    }
+
+    /**
+     * Write everything queued for a client
+     *
+     * @param client The client
+     */
+    static void drain(ClientHandler client) {
+        try {
+            client.getOutbound().writeTo(DISCARD);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Get the rooms, which are only touched by the benchmark's thread
+     *
+     * @return The rooms
+     */
+    RoomRegistry getRooms() {
+        return this.server.getRoomShards()[0].getRooms();
+    }
+
+    Reactor getReactor() {
+        return this.reactor;
+    }
+
+    SocketChannel getSocket() {
+        return this.socket;
+    }
+
+    void close() throws IOException {
+        this.socket.close();
+        this.reactor.getSelector().close();
+    }
+
+}
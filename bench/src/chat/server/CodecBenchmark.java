@@ -0,0 +1,57 @@
+package chat.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UTF-8 encoding and decoding of typical chat lines
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+
+    @Param({"ascii", "accented", "emoji"})
+    public String text;
+
+    private String line;
+
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        switch (this.text) {
+            case "ascii":
+                this.line = "MESSAGE someone hello everyone, how is it going today?\n";
+                break;
+            case "accented":
+                this.line = "MESSAGE alguém olá a todos, como é que está a correr o dia?\n";
+                break;
+            default:
+                this.line = "MESSAGE someone hello everyone 👋 how is it going today? 😀\n";
+                break;
+        }
+
+        this.encoded = this.line.getBytes(ChatServer.charset);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return this.line.getBytes(ChatServer.charset);
+    }
+
+    @Benchmark
+    public String decode() {
+        return new String(this.encoded, 0, this.encoded.length - 1, ChatServer.charset);
+    }
+
+    @Benchmark
+    public Frame encodeFrame() {
+        return Frame.chat(this.line);
+    }
+
+}
@@ -0,0 +1,161 @@
+package chat.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures the memory taken by idle connections:
+ * {@code java -cp bench/target/benchmarks.jar chat.server.ConnectionFootprint 15000 7100 4096 256}
+ * <p>
+ * Starts a server in this JVM and a second JVM that opens the given amount of connections to it, each
+ * picking a nick and joining a room of 100, and then reads whatever the server sends without ever writing
+ * again. Once everything queued has been written, reports the heap and the direct memory per connection,
+ * and what 100,000 connections would take. The slabs of the {@link BufferPool} are counted apart, they are
+ * bounded by its limit. Exits with status 1 if a connection takes more than the given heap or direct bytes. The server reads the usual system properties, e.g. {@code -Dchat.io=virtual}
+ */
+public final class ConnectionFootprint {
+
+    private static final int ROOM_SIZE = 100, PROJECTED = 100_000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--client")) {
+            client(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 15_000,
+                port = args.length > 1 ? Integer.parseInt(args[1]) : 7100;
+
+        long heapBudget = args.length > 2 ? Long.parseLong(args[2]) : Long.MAX_VALUE,
+                directBudget = args.length > 3 ? Long.parseLong(args[3]) : Long.MAX_VALUE;
+
+        ChatServer server = new ChatServer(ServerConfig.fromSystemProperties(port));
+
+        Thread thread = new Thread(server::start, "footprint-server");
+
+        thread.setDaemon(true);
+        thread.start();
+
+        // Let the reactors and their buffers come up before the baseline
+        Thread.sleep(1000);
+
+        long heapBefore = usedHeap(), directBefore = usedDirect();
+
+        Process process = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), ConnectionFootprint.class.getName(),
+                "--client", Integer.toString(connections), Integer.toString(port))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            if (!"READY".equals(reader.readLine())) {
+                throw new IOException("The client process didn't connect");
+            }
+
+            while (server.getClients().size() < connections || !drained(server)) {
+                Thread.sleep(100);
+            }
+
+            BufferPool pool = server.getBufferPool();
+
+            // The slabs are bounded by the pool limit whatever the amount of connections, they're reported apart
+            long heap = usedHeap() - heapBefore, direct = usedDirect() - directBefore - pool.getAllocated();
+
+            double heapPerConnection = heap / (double) connections, directPerConnection = direct / (double) connections;
+
+            System.out.printf("%d connections: %d heap bytes, %.1f per connection; %d direct bytes outside of the pool, %.1f per connection%n",
+                    connections, heap, heapPerConnection, direct, directPerConnection);
+            System.out.printf("Buffer pool: %d bytes of slabs, %d borrowed, at most %d%n",
+                    pool.getAllocated(), pool.getBorrowed(), server.getConfig().getBufferPoolLimit());
+            System.out.printf("Projected for %d connections: %d MiB of heap and %d MiB of direct memory, plus the pool and the %d MiB and %d MiB of an empty server%n",
+                    PROJECTED, (long) (heapPerConnection * PROJECTED) >> 20, (long) (directPerConnection * PROJECTED) >> 20,
+                    heapBefore >> 20, directBefore >> 20);
+
+            if (heapPerConnection > heapBudget || directPerConnection > directBudget) {
+                System.out.printf("Over the budget of %d heap and %d direct bytes per connection%n", heapBudget, directBudget);
+                System.exit(1);
+            }
+        } finally {
+            process.destroy();
+        }
+
+        System.exit(0);
+    }
+
+    /**
+     * Open the connections and read from them until killed
+     */
+    private static void client(int connections, int port) throws IOException {
+        Selector selector = Selector.open();
+
+        InetSocketAddress address = new InetSocketAddress("localhost", port);
+
+        for (int i = 0; i < connections; i++) {
+            SocketChannel socket = SocketChannel.open(address);
+
+            socket.write(ByteBuffer.wrap(("/nick user" + i + "\n/join room" + (i / ROOM_SIZE) + "\n").getBytes(StandardCharsets.UTF_8)));
+            socket.configureBlocking(false);
+            socket.register(selector, SelectionKey.OP_READ);
+        }
+
+        System.out.println("READY");
+        System.out.flush();
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        while (true) {
+            selector.select();
+
+            for (SelectionKey key : selector.selectedKeys()) {
+                buffer.clear();
+
+                if (((SocketChannel) key.channel()).read(buffer) < 0) {
+                    key.cancel();
+                }
+            }
+
+            selector.selectedKeys().clear();
+        }
+    }
+
+    private static boolean drained(ChatServer server) {
+        for (ClientHandler client : server.getClients().getClients()) {
+            if (client.getState() != ClientHandler.State.INSIDE || !client.getOutbound().isEmpty()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long usedDirect() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+
+        return 0;
+    }
+
+}
@@ -0,0 +1,65 @@
+package chat.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A chat line broadcast to rooms of different sizes: formatting, encoding, queueing a view per
+ * member and draining every member's queue, like the reactors would on a fast network.
+ * The members talk the text protocol, the binary one, or half of them each
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class FanOutBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int roomSize;
+
+    @Param({"text", "binary", "mixed"})
+    public String protocol;
+
+    private BenchFixture fixture;
+
+    private ClientHandler[] members;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.fixture = new BenchFixture();
+        this.members = new ClientHandler[this.roomSize];
+
+        for (int i = 0; i < this.roomSize; i++) {
+            boolean binary = this.protocol.equals("binary") || (this.protocol.equals("mixed") && i % 2 == 1);
+
+            this.members[i] = this.fixture.connect("user" + i, binary ? ClientHandler.Protocol.BINARY : ClientHandler.Protocol.TEXT);
+            this.members[i].setCurrentChatRoom("room");
+
+            // Keep the JOINED broadcasts from piling up
+            if (i % 64 == 0 || i == this.roomSize - 1) {
+                for (int j = 0; j <= i; j++) {
+                    BenchFixture.drain(this.members[j]);
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.fixture.close();
+    }
+
+    @Benchmark
+    public void sendMessageToRoom() {
+        this.fixture.server.acceptMessage(this.members[0], "hello everyone, how is it going today?");
+
+        for (ClientHandler member : this.members) {
+            BenchFixture.drain(member);
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+package chat.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nick name lookups (nick claims, private messages) with different amounts of connected clients.
+ * <p>
+ * The old per socket lookup is now the SelectionKey attachment, so there's nothing left to measure for it
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class LookupBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int clients;
+
+    private BenchFixture fixture;
+
+    private String[] present, absent;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.fixture = new BenchFixture();
+
+        for (int i = 0; i < this.clients; i++) {
+            this.fixture.connect("user" + i);
+        }
+
+        // Looked up in a fixed random order, with a mix of cases, so every run does the same work
+        Random random = new Random(42);
+
+        this.present = new String[1024];
+        this.absent = new String[1024];
+
+        for (int i = 0; i < this.present.length; i++) {
+            this.present[i] = (random.nextBoolean() ? "USER" : "user") + random.nextInt(this.clients);
+            this.absent[i] = "nobody" + random.nextInt(this.clients);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.fixture.close();
+    }
+
+    @Benchmark
+    public boolean isUsernameTakenHit() {
+        return this.fixture.server.isUsernameTaken(this.present[this.next++ & 1023]);
+    }
+
+    @Benchmark
+    public boolean isUsernameTakenMiss() {
+        return this.fixture.server.isUsernameTaken(this.absent[this.next++ & 1023]);
+    }
+
+    @Benchmark
+    public ClientHandler getByName() {
+        return this.fixture.server.getClients().getByName(this.present[this.next++ & 1023]);
+    }
+
+}
@@ -0,0 +1,164 @@
+package chat.server;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The inbound path of a client: splitting the bytes that were read into lines, and handling a line
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ReceiveBenchmark {
+
+    /**
+     * A client that only counts the lines it gets
+     */
+    static final class CountingClient extends ClientHandler {
+
+        Blackhole blackhole;
+
+        CountingClient(BenchFixture fixture) {
+            super(fixture.getSocket(), fixture.getReactor());
+        }
+
+        @Override
+        void receiveFinalMessage(String receivedMessage) {
+            this.blackhole.consume(receivedMessage);
+        }
+
+    }
+
+    @State(Scope.Thread)
+    public static class Framing {
+
+        // How many bytes every read returns, lines are split across the reads
+        @Param({"512", "16384"})
+        public int readSize;
+
+        @Param({"32", "200"})
+        public int lineLength;
+
+        BenchFixture fixture;
+
+        CountingClient client;
+
+        ByteBuffer data;
+
+        int length;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            this.fixture = new BenchFixture();
+            this.client = new CountingClient(this.fixture);
+
+            StringBuilder line = new StringBuilder();
+
+            while (line.length() < this.lineLength - 1) {
+                line.append("chat ");
+            }
+
+            line.setLength(this.lineLength - 1);
+            line.append('\n');
+
+            byte[] encoded = line.toString().getBytes(ChatServer.charset);
+
+            this.data = ByteBuffer.allocate(16384);
+
+            while (this.data.remaining() >= encoded.length) {
+                this.data.put(encoded);
+            }
+
+            this.data.flip();
+
+            this.length = this.data.limit();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            this.fixture.close();
+        }
+
+    }
+
+    @State(Scope.Thread)
+    public static class Lines {
+
+        @Param({"message", "nick", "join", "priv", "escaped"})
+        public String kind;
+
+        BenchFixture fixture;
+
+        ClientHandler client, bob;
+
+        String[] lines;
+
+        int next;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            this.fixture = new BenchFixture();
+            this.client = this.fixture.connect("sender");
+            this.bob = this.fixture.connect("bob");
+
+            this.client.setCurrentChatRoom("room");
+
+            switch (this.kind) {
+                case "message":
+                    this.lines = new String[]{"hello everyone, how is it going today?"};
+                    break;
+                case "nick":
+                    this.lines = new String[]{"/nick sender1", "/nick sender"};
+                    break;
+                case "join":
+                    this.lines = new String[]{"/join room1", "/join room"};
+                    break;
+                case "priv":
+                    this.lines = new String[]{"/priv bob hello there, how is it going?"};
+                    break;
+                default:
+                    this.lines = new String[]{"//not a command, just a slash"};
+                    break;
+            }
+
+            BenchFixture.drain(this.client);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            this.fixture.close();
+        }
+
+    }
+
+    /**
+     * Reported per 16 KiB of received data
+     */
+    @Benchmark
+    public void framing(Framing state, Blackhole blackhole) {
+        ByteBuffer data = state.data;
+
+        state.client.blackhole = blackhole;
+
+        for (int start = 0; start < state.length; start += state.readSize) {
+            data.limit(Math.min(state.length, start + state.readSize)).position(start);
+
+            state.client.receive(data);
+        }
+    }
+
+    @Benchmark
+    public void receiveFinalMessage(Lines state) {
+        state.client.receiveFinalMessage(state.lines[state.next++ % state.lines.length]);
+
+        BenchFixture.drain(state.client);
+        BenchFixture.drain(state.bob);
+    }
+
+}
@@ -0,0 +1,209 @@
+package chat.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how the server copes with a reconnect storm:
+ * {@code java -cp bench/target/benchmarks.jar chat.server.ReconnectStorm 15000 7200}
+ * <p>
+ * Starts a server in this JVM with a client that keeps sending /ping, then has a second JVM open the given
+ * amount of connections all at once, each sending a /nick, the way every client of a server comes back after
+ * a restart. A connection that is refused or reset comes back after a random pause of up to a second.
+ * <p>
+ * Reports how long it took for the connections to get their nick, all of them or as many as the server lets
+ * in, how many times they were turned away, and the round trips of the /ping during the storm, which tell if
+ * the clients that were already connected were still being served. The server reads the usual system
+ * properties, e.g. {@code -Dchat.accept.batch=1} or {@code -Dchat.connections.max=10000}
+ */
+public final class ReconnectStorm {
+
+    private static final long RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--client")) {
+            client(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            return;
+        }
+
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 15_000,
+                port = args.length > 1 ? Integer.parseInt(args[1]) : 7200;
+
+        ServerConfig config = ServerConfig.fromSystemProperties(port);
+
+        ChatServer server = new ChatServer(config);
+
+        // The pinger takes one of the connections the server lets in
+        int wanted = config.getMaxConnections() > 0 ? Math.min(connections, config.getMaxConnections() - 1) : connections;
+
+        Thread thread = new Thread(server::start, "storm-server");
+
+        thread.setDaemon(true);
+        thread.start();
+
+        Thread.sleep(1000);
+
+        Histogram pings = new Histogram();
+
+        Thread pinger = new Thread(() -> ping(port, pings), "storm-pinger");
+
+        pinger.setDaemon(true);
+        pinger.start();
+
+        Process process = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), ReconnectStorm.class.getName(),
+                "--client", Integer.toString(connections), Integer.toString(wanted), Integer.toString(port))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String done = reader.readLine();
+
+            if (done == null || !done.startsWith("DONE ")) {
+                throw new IOException("The client process failed");
+            }
+
+            String[] fields = done.split(" ");
+
+            Metrics metrics = server.getMetrics();
+
+            System.out.printf("%s of %d connections got in after %s ms, turned away %s times%n", fields[3], connections, fields[1], fields[2]);
+            System.out.printf("Accepted %d, refused %d over the cap and %d over the cap per address%n", metrics.getAccepts(),
+                    metrics.getRejected(Admission.Reason.FULL), metrics.getRejected(Admission.Reason.ADDRESS));
+            System.out.printf("/ping during the storm: %d round trips, p50 %.2f ms, p99 %.2f ms, max %.2f ms%n", pings.getCount(),
+                    pings.getPercentile(0.5) / 1e6, pings.getPercentile(0.99) / 1e6, pings.getMax() / 1e6);
+        } finally {
+            process.destroy();
+        }
+
+        System.exit(0);
+    }
+
+    /**
+     * Send a /ping every 10 ms and record the round trips, until the JVM exits
+     */
+    private static void ping(int port, Histogram pings) {
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+            socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+            ByteBuffer ping = ByteBuffer.wrap("/ping\n".getBytes(StandardCharsets.US_ASCII)), pong = ByteBuffer.allocate(64);
+
+            while (true) {
+                long start = System.nanoTime();
+
+                socket.write(ping.rewind());
+
+                pong.clear();
+
+                while (pong.position() == 0 || pong.get(pong.position() - 1) != '\n') {
+                    if (socket.read(pong) < 0) {
+                        return;
+                    }
+                }
+
+                pings.record(System.nanoTime() - start);
+
+                Thread.sleep(10);
+            }
+        } catch (IOException | InterruptedException e) {
+            System.err.println("The pinger stopped: " + e);
+        }
+    }
+
+    /**
+     * Open the connections at once, retry the ones that are turned away, and print when the wanted amount got
+     * their nick, or after a minute
+     */
+    private static void client(int connections, int wanted, int port) throws IOException {
+        Selector selector = Selector.open();
+
+        InetSocketAddress address = new InetSocketAddress("localhost", port);
+
+        // The connections to retry, as {when, index}
+        PriorityQueue<long[]> retries = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < connections; i++) {
+            connect(selector, address, i);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+
+        int ready = 0, turnedAway = 0;
+
+        long deadline = start + TimeUnit.MINUTES.toNanos(1);
+
+        while (ready < wanted && System.nanoTime() - deadline < 0) {
+            selector.select(10);
+
+            for (SelectionKey key : selector.selectedKeys()) {
+                SocketChannel socket = (SocketChannel) key.channel();
+
+                int index = (Integer) key.attachment();
+
+                try {
+                    if (key.isConnectable()) {
+                        socket.finishConnect();
+                        socket.write(ByteBuffer.wrap(("/nick storm" + index + "\n").getBytes(StandardCharsets.US_ASCII)));
+
+                        key.interestOps(SelectionKey.OP_READ);
+                    } else if (key.isReadable()) {
+                        buffer.clear();
+
+                        if (socket.read(buffer) < 0) {
+                            throw new IOException("Closed by the server");
+                        }
+
+                        // Once in, it's only kept open
+                        key.interestOps(0);
+                        ready++;
+                    }
+                } catch (IOException e) {
+                    key.cancel();
+                    socket.close();
+
+                    turnedAway++;
+                    retries.add(new long[]{System.nanoTime() + ThreadLocalRandom.current().nextLong(RETRY_NANOS), index});
+                }
+            }
+
+            selector.selectedKeys().clear();
+
+            long now = System.nanoTime();
+
+            while (!retries.isEmpty() && retries.peek()[0] - now <= 0) {
+                connect(selector, address, (int) retries.poll()[1]);
+            }
+        }
+
+        System.out.println("DONE " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " " + turnedAway + " " + ready);
+        System.out.flush();
+
+        // Keep the connections open until killed
+        while (true) {
+            selector.select();
+        }
+    }
+
+    private static void connect(Selector selector, InetSocketAddress address, int index) throws IOException {
+        SocketChannel socket = SocketChannel.open();
+
+        socket.configureBlocking(false);
+        socket.connect(address);
+        socket.register(selector, SelectionKey.OP_CONNECT, index);
+    }
+
+}
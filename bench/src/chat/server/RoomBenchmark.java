@@ -0,0 +1,90 @@
+package chat.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Room churn: a client leaving its room and joining another one, with a room created and one
+ * removed half of the time, with different amounts of rooms
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class RoomBenchmark {
+
+    @Param({"100", "100000"})
+    public int rooms;
+
+    private BenchFixture fixture;
+
+    private RoomRegistry registry;
+
+    private ClientHandler[] clients;
+
+    private String[] names, current;
+
+    private int[] moves;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.fixture = new BenchFixture();
+        this.registry = this.fixture.getRooms();
+
+        // Two members per room, and as many names again for the rooms that come and go
+        this.clients = new ClientHandler[this.rooms * 2];
+        this.names = new String[this.rooms * 2];
+        this.current = new String[this.clients.length];
+
+        for (int i = 0; i < this.names.length; i++) {
+            this.names[i] = "room" + i;
+        }
+
+        for (int i = 0; i < this.clients.length; i++) {
+            this.clients[i] = this.fixture.connect(null);
+            this.current[i] = this.names[i % this.rooms];
+
+            this.registry.join(this.current[i], this.clients[i]);
+        }
+
+        Random random = new Random(42);
+
+        this.moves = new int[1024];
+
+        for (int i = 0; i < this.moves.length; i++) {
+            this.moves[i] = random.nextInt(this.clients.length);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.fixture.close();
+    }
+
+    @Benchmark
+    public void leaveAndJoin() {
+        int move = this.next++;
+
+        int client = this.moves[move & 1023];
+
+        String room = this.names[(client + move) % this.names.length];
+
+        this.registry.leave(this.current[client], this.clients[client]);
+        this.registry.join(room, this.clients[client]);
+
+        this.current[client] = room;
+    }
+
+    @Benchmark
+    public int members() {
+        return this.registry.getMembers(this.names[this.next++ % this.rooms]).length;
+    }
+
+}
@@ -0,0 +1,61 @@
+package chat.server;
+
+import java.io.IOException;
+
+/**
+ * Measures the heap taken by the rooms: {@code java -cp bench/target/benchmarks.jar chat.server.RoomFootprint 100000 2}
+ * <p>
+ * Fills the given amount of rooms with the given amount of members each, sends one message to every room
+ * so their member arrays are copied for the fan-out, and reports the heap per room and per membership
+ */
+public final class RoomFootprint {
+
+    public static void main(String[] args) throws IOException {
+        int rooms = args.length > 0 ? Integer.parseInt(args[0]) : 100_000,
+                members = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+
+        BenchFixture fixture = new BenchFixture();
+
+        RoomRegistry registry = fixture.getRooms();
+
+        ClientHandler[] clients = new ClientHandler[rooms * members];
+
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = fixture.connect(null);
+        }
+
+        long before = usedHeap();
+
+        for (int i = 0; i < clients.length; i++) {
+            registry.join("room" + (i % rooms), clients[i]);
+        }
+
+        for (int i = 0; i < rooms; i++) {
+            registry.getMembers("room" + i);
+        }
+
+        long after = usedHeap();
+
+        System.out.printf("%d rooms, %d members each: %d bytes, %.1f bytes per room, %.1f bytes per membership%n",
+                rooms, members, after - before, (after - before) / (double) rooms, (after - before) / (double) clients.length);
+
+        for (int i = 0; i < clients.length; i++) {
+            registry.leave("room" + (i % rooms), clients[i]);
+        }
+
+        System.out.printf("After everyone left: %d rooms, %d bytes%n", registry.size(), usedHeap() - before);
+
+        fixture.close();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
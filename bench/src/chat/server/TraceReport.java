@@ -0,0 +1,209 @@
+package chat.server;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns a flight recording of the server into a latency breakdown per stage:
+ * {@code java -cp bench/target/benchmarks.jar chat.server.TraceReport chat.jfr}
+ * <p>
+ * Prints the percentiles of every stage recorded by {@link Tracing}, then follows the traced messages from
+ * their parse to their delivery and splits the delivery time into the stages, for all of them and for the
+ * slowest 1%, to tell which stage the tail comes from
+ */
+public final class TraceReport {
+
+    /**
+     * The stages of one traced message, split at the points in time, in nanoseconds since the epoch, where
+     * the parse started, it was handed to the shard, the fan-out started and ended, and the last copy was written
+     */
+    private static final class Trace {
+
+        long parsed, handed, fannedOut, fanOutEnd, delivered, latency;
+
+        boolean complete() {
+            return this.parsed > 0 && this.fanOutEnd > 0 && this.delivered > 0;
+        }
+
+        long read() {
+            return this.parsed - (this.delivered - this.latency);
+        }
+
+    }
+
+    /**
+     * The durations, and a size, of the events of one stage
+     */
+    private static final class Stage {
+
+        final String label, unit;
+
+        final List<Long> nanos = new ArrayList<>();
+
+        long size;
+
+        Stage(String label, String unit) {
+            this.label = label;
+            this.unit = unit;
+        }
+
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: TraceReport <recording.jfr>");
+            System.exit(2);
+        }
+
+        Map<String, Stage> stages = new LinkedHashMap<>();
+
+        stages.put("chat.Read", new Stage("read", "bytes"));
+        stages.put("chat.Parse", new Stage("parse", "bytes"));
+        stages.put("queue", new Stage("shard queue", null));
+        stages.put("chat.FanOut", new Stage("fan-out", "recipients"));
+        stages.put("chat.Write", new Stage("write", "bytes"));
+        stages.put("chat.Delivery", new Stage("delivery", null));
+
+        Map<Long, Trace> traces = new HashMap<>();
+
+        try (RecordingFile recording = new RecordingFile(Path.of(args[0]))) {
+            while (recording.hasMoreEvents()) {
+                RecordedEvent event = recording.readEvent();
+
+                String name = event.getEventType().getName();
+
+                Stage stage = stages.get(name);
+
+                if (stage == null) {
+                    continue;
+                }
+
+                switch (name) {
+                    case "chat.Read", "chat.Write" -> add(stage, event.getDuration(), event.getLong("bytes"));
+                    case "chat.Parse" -> {
+                        add(stage, event.getDuration(), event.getInt("bytes"));
+
+                        Trace trace = traces.computeIfAbsent(event.getLong("traceId"), id -> new Trace());
+
+                        trace.parsed = nanos(event.getStartTime());
+                    }
+                    case "chat.FanOut" -> {
+                        Duration queue = event.getDuration("queueTime");
+
+                        add(stage, event.getDuration(), event.getInt("recipients"));
+                        add(stages.get("queue"), queue, 0);
+
+                        Trace trace = traces.computeIfAbsent(event.getLong("traceId"), id -> new Trace());
+
+                        trace.fannedOut = nanos(event.getStartTime());
+                        trace.handed = trace.fannedOut - queue.toNanos();
+                        trace.fanOutEnd = nanos(event.getEndTime());
+                    }
+                    case "chat.Delivery" -> {
+                        Duration latency = event.getDuration("latency");
+
+                        add(stage, latency, 0);
+
+                        Trace trace = traces.computeIfAbsent(event.getLong("traceId"), id -> new Trace());
+
+                        trace.latency = latency.toNanos();
+                        trace.delivered = nanos(event.getStartTime());
+                    }
+                    default -> {
+                    }
+                }
+            }
+        }
+
+        System.out.printf("%-12s %9s %10s %10s %10s %10s %10s  %s%n", "stage", "events", "p50", "p90", "p99", "max", "mean", "mean size");
+
+        for (Stage stage : stages.values()) {
+            print(stage);
+        }
+
+        long[] latencies = traces.values().stream().filter(Trace::complete).mapToLong(trace -> trace.latency).sorted().toArray();
+
+        if (latencies.length == 0) {
+            System.out.println("\nNo message was traced from its parse to its delivery");
+            return;
+        }
+
+        long p99 = latencies[Math.min(latencies.length - 1, (int) (latencies.length * 0.99))];
+
+        System.out.printf("%n%d messages traced end to end, mean time per stage:%n", latencies.length);
+        System.out.printf("%-12s %12s %12s %12s %12s %12s %12s%n", "", "delivery", "read", "parse", "shard queue", "fan-out", "write");
+
+        breakdown("all", traces, 0);
+        breakdown("slowest 1%", traces, p99);
+    }
+
+    private static void add(Stage stage, Duration duration, long size) {
+        stage.nanos.add(duration.toNanos());
+        stage.size += size;
+    }
+
+    private static long nanos(Instant instant) {
+        return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+    }
+
+    private static void print(Stage stage) {
+        if (stage.nanos.isEmpty()) {
+            System.out.printf("%-12s %9d%n", stage.label, 0);
+            return;
+        }
+
+        long[] nanos = stage.nanos.stream().mapToLong(Long::longValue).sorted().toArray();
+
+        System.out.printf("%-12s %9d %10s %10s %10s %10s %10s  %s%n", stage.label, nanos.length,
+                format(percentile(nanos, 0.5)), format(percentile(nanos, 0.9)), format(percentile(nanos, 0.99)),
+                format(nanos[nanos.length - 1]), format((long) Arrays.stream(nanos).average().orElse(0)),
+                stage.unit == null ? "" : String.format("%.1f %s", stage.size / (double) nanos.length, stage.unit));
+    }
+
+    /**
+     * Print the mean of every stage of the complete traces that took at least the given time
+     */
+    private static void breakdown(String label, Map<Long, Trace> traces, long minLatency) {
+        long count = 0, latency = 0, read = 0, parse = 0, queue = 0, fanOut = 0, write = 0;
+
+        // The parse event ends after the handing over, so it's counted up to there and the stages add up
+        for (Trace trace : traces.values()) {
+            if (trace.complete() && trace.latency >= minLatency) {
+                count++;
+                latency += trace.latency;
+                read += trace.read();
+                parse += trace.handed - trace.parsed;
+                queue += trace.fannedOut - trace.handed;
+                fanOut += trace.fanOutEnd - trace.fannedOut;
+                write += trace.delivered - trace.fanOutEnd;
+            }
+        }
+
+        System.out.printf("%-12s %12s %12s %12s %12s %12s %12s%n", label, format(latency / count), format(read / count),
+                format(parse / count), format(queue / count), format(fanOut / count), format(write / count));
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))];
+    }
+
+    private static String format(long nanos) {
+        if (Math.abs(nanos) >= 1_000_000) {
+            return String.format("%.2fms", nanos / 1e6);
+        }
+
+        return String.format("%.1fus", nanos / 1e3);
+    }
+
+}
@@ -0,0 +1,277 @@
+package chat.loadgen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import chat.server.BinaryProtocol;
+import chat.server.Compressor;
+import java.util.ArrayDeque;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * One simulated chat user
+ */
+final class LoadConnection {
+
+    // Lines longer than this are skipped, the load generator only sends short ones
+    private static final int MAX_LINE = 16384;
+
+    final String name;
+
+    final int room;
+
+    final SocketChannel channel;
+
+    SelectionKey key;
+
+    final boolean binary;
+
+    // Replies to /nick and /join that are still missing before the user is ready
+    int pendingSetup = 2;
+
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+
+    private final ByteBuffer in = ByteBuffer.allocate(MAX_LINE);
+
+    // The chunks read from a compressed connection, null if it isn't, see Compressor
+    private final ByteBuffer raw;
+
+    private final Inflater inflater;
+
+    // The deflated chunk that is being inflated
+    private byte[] chunk;
+
+    // Whether the inflater may still have output for the chunk
+    private boolean inflating;
+
+    // The bytes of the PLAIN chunk that are still to be read
+    private int plain;
+
+    LoadConnection(String name, int room, SocketChannel channel, boolean binary, boolean compressed) {
+        this.name = name;
+        this.room = room;
+        this.channel = channel;
+        this.binary = binary;
+        this.raw = compressed ? ByteBuffer.allocate(2 * Compressor.MAX_BATCH) : null;
+        this.inflater = compressed ? new Inflater() : null;
+    }
+
+    /**
+     * Send a line, whatever the socket doesn't take now is sent once it becomes writable
+     *
+     * @param line The encoded line
+     * @throws IOException If the write fails
+     */
+    void send(ByteBuffer line) throws IOException {
+        if (!this.pending.isEmpty()) {
+            this.pending.add(line);
+            return;
+        }
+
+        this.channel.write(line);
+
+        if (line.hasRemaining()) {
+            this.pending.add(line);
+            this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Write the lines that are waiting for the socket
+     *
+     * @throws IOException If the write fails
+     */
+    void flush() throws IOException {
+        ByteBuffer line;
+
+        while ((line = this.pending.peek()) != null) {
+            this.channel.write(line);
+
+            if (line.hasRemaining()) {
+                return;
+            }
+
+            this.pending.poll();
+        }
+
+        this.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Whether the socket is backed up, in which case no new messages are generated for this user
+     *
+     * @return true if lines are waiting
+     */
+    boolean isBackedUp() {
+        return !this.pending.isEmpty();
+    }
+
+    /**
+     * Read whatever is available, calling the worker for every complete line, or frame of the binary protocol
+     *
+     * @param worker The worker that owns this connection
+     * @return false if the server closed the connection
+     * @throws IOException If the read fails
+     */
+    boolean read(LoadWorker worker) throws IOException {
+        int read = this.channel.read(this.raw == null ? this.in : this.raw);
+
+        if (read < 0) {
+            return false;
+        }
+
+        worker.onRead(read);
+
+        if (this.raw == null) {
+            process(worker);
+            return true;
+        }
+
+        try {
+            // A chunk can inflate to more than the buffer holds, hand it over a buffer at a time
+            while (fill()) {
+                process(worker);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Broken compressed stream", e);
+        }
+
+        return true;
+    }
+
+    /**
+     * Free the native memory of the inflater, once the connection is closed
+     */
+    void close() {
+        if (this.inflater != null) {
+            this.inflater.end();
+        }
+    }
+
+    /**
+     * Move the bytes of the chunks that have been read into the buffer of lines or frames, inflating them
+     *
+     * @return true if anything has been moved
+     */
+    private boolean fill() throws DataFormatException {
+        int before = this.in.position();
+
+        this.raw.flip();
+
+        while (this.in.hasRemaining()) {
+            if (this.inflating) {
+                int inflated = this.inflater.inflate(this.in.array(), this.in.position(), this.in.remaining());
+
+                this.in.position(this.in.position() + inflated);
+
+                // The chunk ends with a sync flush, so no output with room to spare means all of it is out
+                this.inflating = inflated > 0;
+                continue;
+            }
+
+            if (this.plain > 0) {
+                int length = Math.min(this.plain, Math.min(this.raw.remaining(), this.in.remaining()));
+
+                if (length == 0) {
+                    break;
+                }
+
+                this.raw.get(this.in.array(), this.in.position(), length);
+                this.in.position(this.in.position() + length);
+                this.plain -= length;
+                continue;
+            }
+
+            int start = this.raw.position();
+
+            if (!this.raw.hasRemaining()) {
+                break;
+            }
+
+            byte type = this.raw.get();
+
+            int length = BinaryProtocol.getVarint(this.raw);
+
+            if (length < 0 || (type == Compressor.DEFLATED && this.raw.remaining() < length)) {
+                // Only a PLAIN chunk is taken before all of it has been read
+                this.raw.position(start);
+                break;
+            }
+
+            if (type == Compressor.PLAIN) {
+                this.plain = length;
+                continue;
+            }
+
+            if (this.chunk == null || this.chunk.length < length) {
+                this.chunk = new byte[Math.max(length, 1024)];
+            }
+
+            this.raw.get(this.chunk, 0, length);
+            this.inflater.setInput(this.chunk, 0, length);
+            this.inflating = true;
+        }
+
+        this.raw.compact();
+
+        return this.in.position() > before;
+    }
+
+    /**
+     * Call the worker for every complete line or frame in the buffer, keeping the incomplete one that is left
+     */
+    private void process(LoadWorker worker) {
+        byte[] data = this.in.array();
+
+        int start = 0, end = this.in.position();
+
+        if (this.binary) {
+            start = readFrames(worker, start, end);
+        } else {
+            for (int i = 0; i < end; i++) {
+                if (data[i] == '\n') {
+                    worker.onLine(this, data, start, i);
+
+                    start = i + 1;
+                }
+            }
+        }
+
+        if (start == 0 && end == data.length) {
+            // A line that doesn't fit, throw it away
+            this.in.clear();
+            return;
+        }
+
+        System.arraycopy(data, start, data, 0, end - start);
+        this.in.position(end - start);
+    }
+
+    /**
+     * Call the worker for every complete frame
+     *
+     * @return Where the incomplete frame that is left starts
+     */
+    private int readFrames(LoadWorker worker, int start, int end) {
+        ByteBuffer frames = ByteBuffer.wrap(this.in.array(), start, end - start);
+
+        while (frames.hasRemaining()) {
+            int length = BinaryProtocol.getVarint(frames);
+
+            if (length < 0 || frames.remaining() < length) {
+                break;
+            }
+
+            worker.onFrame(this, this.in.array(), start, frames.position(), frames.position() + length);
+
+            frames.position(frames.position() + length);
+            start = frames.position();
+        }
+
+        return start;
+    }
+
+}
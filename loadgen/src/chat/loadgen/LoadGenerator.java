@@ -0,0 +1,345 @@
+package chat.loadgen;
+
+import chat.server.BinaryProtocol;
+import chat.server.ChatServer;
+import chat.server.Histogram;
+import chat.server.ServerConfig;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Headless load generator for the chat server.
+ * <p>
+ * Opens a number of connections over loopback, gives each one a nick and spreads them over rooms,
+ * then sends chat lines (and optionally private messages) at a target rate. Every message carries
+ * the time it was sent, so every copy that comes back gives a delivery latency.
+ * <p>
+ * {@code java -jar loadgen/target/loadgen.jar --port 8000 --connections 5000 --rooms 50 --rate 20000 --duration 30}
+ */
+public class LoadGenerator {
+
+    private static final String USAGE = String.join("\n",
+            "Options (all optional):",
+            "  --host <address>      loopback address of the server (127.0.0.1)",
+            "  --port <port>         port of the server (8000)",
+            "  --embedded            start a server in this process on --port first",
+            "  --connections <n>     simulated users (1000)",
+            "  --rooms <n>           rooms the users are spread over (10)",
+            "  --rate <n>            messages per second, over all the users (10000)",
+            "  --priv <ratio>        share of the messages that are /priv to a random user (0)",
+            "  --size <bytes>        approximate size of each message (64)",
+            "  --binary              talk the binary protocol instead of lines of text",
+            "  --compress            have the server compress what it sends to the users",
+            "  --warmup <seconds>    time before the measurement starts (5)",
+            "  --duration <seconds>  measured time (30)",
+            "  --threads <n>         event loops driving the users (cores)");
+
+    private final Map<String, String> options;
+
+    private final LoadStats stats = new LoadStats();
+
+    private final String[] names;
+
+    private final int[] roomSizes;
+
+    private final double privateRatio;
+
+    private final boolean binary, compress;
+
+    private LoadWorker[] workers;
+
+    private LoadGenerator(Map<String, String> options) {
+        this.options = options;
+
+        int connections = intOption("connections", 1000), rooms = intOption("rooms", 10);
+
+        // Unique per run, so a server that is still up from a previous run doesn't reject the nicks
+        String prefix = "load" + Integer.toString(new Random().nextInt(1 << 20), 36) + "_";
+
+        this.names = new String[connections];
+        this.roomSizes = new int[rooms];
+
+        for (int i = 0; i < connections; i++) {
+            this.names[i] = prefix + i;
+            this.roomSizes[i % rooms]++;
+        }
+
+        this.privateRatio = Double.parseDouble(options.getOrDefault("priv", "0"));
+        this.binary = options.containsKey("binary");
+        this.compress = options.containsKey("compress");
+    }
+
+    double getPrivateRatio() {
+        return this.privateRatio;
+    }
+
+    boolean isBinary() {
+        return this.binary;
+    }
+
+    /**
+     * Encode a frame of the binary protocol
+     *
+     * @param opcode  The opcode
+     * @param payload The payload
+     * @return The frame
+     */
+    static ByteBuffer frame(byte opcode, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(6 + payload.length);
+
+        BinaryProtocol.putVarint(frame, payload.length + 1);
+        frame.put(opcode).put(payload);
+
+        return frame.flip();
+    }
+
+    int getRoomSize(int room) {
+        return this.roomSizes[room];
+    }
+
+    String randomName(Random random) {
+        return this.names[random.nextInt(this.names.length)];
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(this.options.getOrDefault(name, String.valueOf(defaultValue)));
+    }
+
+    private void run() throws IOException, InterruptedException {
+        InetAddress host = InetAddress.getByName(this.options.getOrDefault("host", "127.0.0.1"));
+        int port = intOption("port", 8000);
+
+        if (!host.isLoopbackAddress()) {
+            throw new IllegalArgumentException(host + " isn't a loopback address, the load generator only runs over loopback");
+        }
+
+        if (this.options.containsKey("embedded")) {
+            startEmbeddedServer(port);
+        }
+
+        InetSocketAddress address = new InetSocketAddress(host, port);
+
+        this.workers = new LoadWorker[intOption("threads", Runtime.getRuntime().availableProcessors())];
+
+        for (int i = 0; i < this.workers.length; i++) {
+            this.workers[i] = new LoadWorker(this, this.stats, i, intOption("size", 64));
+            this.workers[i].start();
+        }
+
+        connect(address);
+
+        double rate = intOption("rate", 10000);
+        int warmup = intOption("warmup", 5), duration = intOption("duration", 30);
+
+        this.stats.measureStart = this.stats.now() + warmup * 1_000_000_000L;
+
+        for (LoadWorker worker : this.workers) {
+            worker.startSending(rate * worker.getConnections() / this.names.length);
+        }
+
+        System.out.printf(Locale.ROOT, "Sending %.0f messages/s, %ds of warmup and %ds measured%n", rate, warmup, duration);
+
+        long lastSent = 0, lastReceived = 0;
+
+        for (int second = 1; second <= warmup + duration; second++) {
+            Thread.sleep(1000);
+
+            long sent = this.stats.sent.sum(), received = this.stats.received.sum();
+
+            System.out.printf(Locale.ROOT, "%4ds %s sent %8d/s, delivered %9d/s, p99 %s%n", second,
+                    second <= warmup ? "warmup  " : "measured", sent - lastSent, received - lastReceived,
+                    millis(this.stats.latency.getPercentile(0.99)));
+
+            lastSent = sent;
+            lastReceived = received;
+        }
+
+        this.stats.sendStop = this.stats.now();
+
+        for (LoadWorker worker : this.workers) {
+            worker.stopSending();
+        }
+
+        // Let the copies that are still in flight arrive
+        Thread.sleep(2000);
+
+        report(duration);
+
+        for (LoadWorker worker : this.workers) {
+            worker.stop();
+        }
+    }
+
+    /**
+     * Open every connection, send its /nick and /join and wait until the server has accepted all of them
+     */
+    private void connect(InetSocketAddress address) throws IOException, InterruptedException {
+        for (int i = 0; i < this.names.length; i++) {
+            SocketChannel channel = SocketChannel.open(address);
+
+            channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+
+            int room = i % this.roomSizes.length;
+
+            if (this.binary) {
+                request(channel, ByteBuffer.wrap("/protocol binary\n".getBytes(StandardCharsets.US_ASCII)), false);
+            }
+
+            if (this.compress) {
+                request(channel, this.binary ? frame(BinaryProtocol.COMMAND, "/compress".getBytes(StandardCharsets.US_ASCII))
+                        : ByteBuffer.wrap("/compress\n".getBytes(StandardCharsets.US_ASCII)), this.binary);
+            }
+
+            ByteBuffer setup;
+
+            if (this.binary) {
+                ByteBuffer nick = frame(BinaryProtocol.NICK, this.names[i].getBytes(StandardCharsets.US_ASCII)),
+                        join = frame(BinaryProtocol.JOIN, ("room" + room).getBytes(StandardCharsets.US_ASCII));
+
+                setup = ByteBuffer.allocate(nick.remaining() + join.remaining()).put(nick).put(join).flip();
+            } else {
+                setup = ByteBuffer.wrap(("/nick " + this.names[i] + "\n/join room" + room + "\n").getBytes(StandardCharsets.US_ASCII));
+            }
+
+            while (setup.hasRemaining()) {
+                channel.write(setup);
+            }
+
+            channel.configureBlocking(false);
+
+            this.workers[i % this.workers.length].register(new LoadConnection(this.names[i], room, channel, this.binary, this.compress));
+        }
+
+        long deadline = System.currentTimeMillis() + 60_000;
+
+        while (this.stats.ready.sum() < this.names.length) {
+            if (System.currentTimeMillis() > deadline || this.stats.errors.sum() > 0) {
+                throw new IllegalStateException("Only " + this.stats.ready.sum() + " of " + this.names.length
+                        + " users got in, " + this.stats.errors.sum() + " errors");
+            }
+
+            Thread.sleep(50);
+        }
+
+        System.out.printf("%d users connected to %s in %d rooms%n", this.names.length, address, this.roomSizes.length);
+    }
+
+    /**
+     * Send a request that changes how the connection is read and wait for its OK, while the channel still blocks
+     *
+     * @param binary Whether the reply is a frame of the binary protocol rather than a line
+     */
+    private static void request(SocketChannel channel, ByteBuffer request, boolean binary) throws IOException {
+        while (request.hasRemaining()) {
+            channel.write(request);
+        }
+
+        ByteBuffer reply = ByteBuffer.allocate(64), next = ByteBuffer.allocate(1);
+
+        // One byte at a time, whatever follows the reply isn't ours to take
+        while (reply.hasRemaining()) {
+            next.clear();
+
+            if (channel.read(next) < 0) {
+                throw new IOException("The server closed the connection");
+            }
+
+            reply.put(next.get(0));
+
+            if (binary ? reply.position() == 2 : next.get(0) == '\n') {
+                break;
+            }
+        }
+
+        boolean ok = binary ? reply.get(0) == 1 && reply.get(1) == BinaryProtocol.OK
+                : new String(reply.array(), 0, reply.position(), StandardCharsets.US_ASCII).equals("OK\n");
+
+        if (!ok) {
+            throw new IllegalStateException("The server refused " + (binary ? "a binary request" : "a request") + ", is it enabled?");
+        }
+    }
+
+    private void report(int duration) {
+        long sent = this.stats.sent.sum(), expected = this.stats.expected.sum(), received = this.stats.received.sum();
+
+        Histogram latency = this.stats.latency;
+
+        System.out.println();
+        System.out.printf(Locale.ROOT, "messages sent      %12d  %10.1f/s%n", sent, sent / (double) duration);
+        System.out.printf(Locale.ROOT, "copies expected    %12d%n", expected);
+        System.out.printf(Locale.ROOT, "copies delivered   %12d  %10.1f/s  %.2f%%  %.1f MB/s%n", received,
+                received / (double) duration, expected == 0 ? 0 : 100.0 * received / expected,
+                this.stats.receivedBytes.sum() / (duration * 1e6));
+        System.out.printf(Locale.ROOT, "bytes read         %12d  %10.1f MB/s%n", this.stats.wireBytes.sum(),
+                this.stats.wireBytes.sum() / (duration * 1e6));
+        System.out.printf(Locale.ROOT, "skipped (backed up)%12d%n", this.stats.skipped.sum());
+        System.out.printf(Locale.ROOT, "errors             %12d%n", this.stats.errors.sum());
+        System.out.printf(Locale.ROOT, "closed by server   %12d%n", this.stats.closed.sum());
+        System.out.printf(Locale.ROOT, "latency p50 %s  p99 %s  p999 %s  max %s%n",
+                millis(latency.getPercentile(0.5)), millis(latency.getPercentile(0.99)),
+                millis(latency.getPercentile(0.999)), millis(latency.getMax()));
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3fms", nanos / 1e6);
+    }
+
+    private static void startEmbeddedServer(int port) throws InterruptedException {
+        ServerConfig config = ServerConfig.fromSystemProperties(port);
+
+        Thread server = new Thread(() -> new ChatServer(config).start(), "embedded-server");
+        server.setDaemon(true);
+        server.start();
+
+        // Wait until it accepts connections
+        for (int i = 0; i < 100; i++) {
+            try (SocketChannel probe = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port))) {
+                probe.write(ByteBuffer.wrap("/bye\n".getBytes(StandardCharsets.US_ASCII)));
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+
+        throw new IllegalStateException("The embedded server didn't start on port " + port);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+
+            String name = args[i].substring(2);
+
+            if (name.equals("embedded") || name.equals("binary") || name.equals("compress") || name.equals("help")) {
+                options.put(name, "true");
+            } else if (i + 1 < args.length) {
+                options.put(name, args[++i]);
+            } else {
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+        }
+
+        if (options.containsKey("help")) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        new LoadGenerator(options).run();
+    }
+
+}
@@ -0,0 +1,37 @@
+package chat.loadgen;
+
+import chat.server.Histogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters of a load run, shared by every worker.
+ * <p>
+ * Times are nanoseconds since the start of the run, which is also what the messages carry as their send time
+ */
+final class LoadStats {
+
+    private final long origin = System.nanoTime();
+
+    // Only messages sent between these two times are counted
+    volatile long measureStart = Long.MAX_VALUE, sendStop = Long.MAX_VALUE;
+
+    final LongAdder ready = new LongAdder(),
+            sent = new LongAdder(),
+            skipped = new LongAdder(),
+            expected = new LongAdder(),
+            received = new LongAdder(),
+            receivedBytes = new LongAdder(),
+            // Everything read from the sockets while measuring, compressed or not
+            wireBytes = new LongAdder(),
+            errors = new LongAdder(),
+            closed = new LongAdder();
+
+    // Nanoseconds from sending a message to receiving a copy of it
+    final Histogram latency = new Histogram();
+
+    long now() {
+        return System.nanoTime() - this.origin;
+    }
+
+}
@@ -0,0 +1,375 @@
+package chat.loadgen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+
+import chat.server.BinaryProtocol;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An event loop driving a share of the simulated users: it paces their messages to its share
+ * of the target rate and measures the delivery of everything they receive
+ */
+final class LoadWorker implements Runnable {
+
+    private static final byte[] MESSAGE = "MESSAGE ".getBytes(StandardCharsets.US_ASCII),
+            PRIVATE = "PRIVATE ".getBytes(StandardCharsets.US_ASCII),
+            OK = "OK".getBytes(StandardCharsets.US_ASCII),
+            ERROR = "ERROR".getBytes(StandardCharsets.US_ASCII);
+
+    private final LoadGenerator generator;
+
+    private final LoadStats stats;
+
+    private final Selector selector;
+
+    private final Thread thread;
+
+    private final List<LoadConnection> connections = new ArrayList<>();
+
+    private final Queue<LoadConnection> registrations = new ConcurrentLinkedQueue<>();
+
+    private final Random random;
+
+    private final String padding;
+
+    // This worker's share of the target rate, in messages per nanosecond
+    private volatile double ratePerNano;
+
+    private volatile boolean sending, running = true;
+
+    private long sendStart, sent;
+
+    private int next;
+
+    LoadWorker(LoadGenerator generator, LoadStats stats, int id, int messageSize) throws IOException {
+        this.generator = generator;
+        this.stats = stats;
+        this.selector = Selector.open();
+        this.random = new Random(id);
+        this.padding = "x".repeat(Math.max(0, messageSize - 24));
+        this.thread = new Thread(this, "load-worker-" + id);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        this.thread.start();
+    }
+
+    /**
+     * Hand a connection that has sent its /nick and /join to this worker
+     *
+     * @param connection The connection
+     */
+    void register(LoadConnection connection) {
+        this.registrations.add(connection);
+        this.selector.wakeup();
+    }
+
+    int getConnections() {
+        return this.connections.size() + this.registrations.size();
+    }
+
+    /**
+     * Start sending messages
+     *
+     * @param messagesPerSecond This worker's share of the rate
+     */
+    void startSending(double messagesPerSecond) {
+        this.ratePerNano = messagesPerSecond / 1e9;
+        this.sendStart = this.stats.now();
+        this.sending = true;
+    }
+
+    void stopSending() {
+        this.sending = false;
+    }
+
+    void stop() {
+        this.running = false;
+        this.selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            try {
+                this.selector.select(1);
+
+                LoadConnection connection;
+
+                while ((connection = this.registrations.poll()) != null) {
+                    connection.key = connection.channel.register(this.selector, SelectionKey.OP_READ, connection);
+                    this.connections.add(connection);
+                }
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    connection = (LoadConnection) key.attachment();
+
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+
+                        if (key.isValid() && key.isReadable() && !connection.read(this)) {
+                            this.stats.closed.increment();
+                            key.cancel();
+                            connection.close();
+                        }
+                    } catch (IOException e) {
+                        this.stats.closed.increment();
+                        key.cancel();
+                        connection.close();
+                    }
+                }
+
+                if (this.sending) {
+                    pace();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        for (LoadConnection connection : this.connections) {
+            try {
+                connection.channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Send the messages that are due to keep up with the target rate
+     */
+    private void pace() {
+        if (this.connections.isEmpty()) {
+            return;
+        }
+
+        long now = this.stats.now(), due = (long) ((now - this.sendStart) * this.ratePerNano) - this.sent;
+
+        for (; due > 0; due--) {
+            LoadConnection connection = this.connections.get(this.next++ % this.connections.size());
+
+            this.sent++;
+
+            if (connection.isBackedUp() || !connection.key.isValid()) {
+                // Sending anyway would only measure our own queue
+                this.stats.skipped.increment();
+                continue;
+            }
+
+            boolean measured = now >= this.stats.measureStart && now < this.stats.sendStop;
+
+            ByteBuffer encoded;
+
+            if (this.random.nextDouble() < this.generator.getPrivateRatio()) {
+                String dest = this.generator.randomName(this.random), text = "t=" + now + " " + this.padding;
+
+                if (connection.binary) {
+                    ByteBuffer payload = ByteBuffer.allocate(5 + dest.length() + text.length());
+
+                    BinaryProtocol.putVarint(payload, dest.length());
+                    payload.put(dest.getBytes(StandardCharsets.US_ASCII)).put(text.getBytes(StandardCharsets.US_ASCII));
+
+                    encoded = LoadGenerator.frame(BinaryProtocol.SEND_PRIVATE, Arrays.copyOf(payload.array(), payload.position()));
+                } else {
+                    encoded = ByteBuffer.wrap(("/priv " + dest + " " + text + "\n").getBytes(StandardCharsets.US_ASCII));
+                }
+
+                if (measured) {
+                    this.stats.expected.increment();
+                }
+            } else {
+                String text = "t=" + now + " " + this.padding;
+
+                encoded = connection.binary ? LoadGenerator.frame(BinaryProtocol.SEND, text.getBytes(StandardCharsets.US_ASCII))
+                        : ByteBuffer.wrap((text + "\n").getBytes(StandardCharsets.US_ASCII));
+
+                if (measured) {
+                    this.stats.expected.add(this.generator.getRoomSize(connection.room));
+                }
+            }
+
+            try {
+                connection.send(encoded);
+
+                if (measured) {
+                    this.stats.sent.increment();
+                }
+            } catch (IOException e) {
+                this.stats.closed.increment();
+                connection.key.cancel();
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Count the bytes read from a socket, as they came over the wire
+     *
+     * @param bytes The amount of bytes
+     */
+    void onRead(int bytes) {
+        long now = this.stats.now();
+
+        if (now >= this.stats.measureStart && now < this.stats.sendStop) {
+            this.stats.wireBytes.add(bytes);
+        }
+    }
+
+    /**
+     * Handle a line received by one of the users
+     *
+     * @param connection The user
+     * @param data       The buffer holding the line
+     * @param start      The start of the line
+     * @param end        The end of the line, excluding the line feed
+     */
+    void onLine(LoadConnection connection, byte[] data, int start, int end) {
+        long now = this.stats.now();
+
+        if (connection.pendingSetup > 0) {
+            if (equals(data, start, end, OK)) {
+                if (--connection.pendingSetup == 0) {
+                    this.stats.ready.increment();
+                }
+            } else if (equals(data, start, end, ERROR)) {
+                this.stats.errors.increment();
+            }
+
+            return;
+        }
+
+        if (startsWith(data, start, end, ERROR)) {
+            this.stats.errors.increment();
+            return;
+        }
+
+        if (!startsWith(data, start, end, MESSAGE) && !startsWith(data, start, end, PRIVATE)) {
+            return;
+        }
+
+        long sentAt = timestamp(data, start, end);
+
+        if (sentAt < this.stats.measureStart || sentAt >= this.stats.sendStop) {
+            return;
+        }
+
+        this.stats.received.increment();
+        this.stats.receivedBytes.add(end - start + 1);
+        this.stats.latency.record(now - sentAt);
+    }
+
+    /**
+     * Handle a frame of the binary protocol received by one of the users
+     *
+     * @param connection The user
+     * @param data       The buffer holding the frame
+     * @param start      The start of the frame, including its length
+     * @param opcode     Where the opcode is
+     * @param end        The end of the frame
+     */
+    void onFrame(LoadConnection connection, byte[] data, int start, int opcode, int end) {
+        long now = this.stats.now();
+
+        byte type = data[opcode];
+
+        if (connection.pendingSetup > 0) {
+            if (type == BinaryProtocol.OK) {
+                if (--connection.pendingSetup == 0) {
+                    this.stats.ready.increment();
+                }
+            } else if (type == BinaryProtocol.ERROR) {
+                this.stats.errors.increment();
+            }
+
+            return;
+        }
+
+        if (type == BinaryProtocol.ERROR) {
+            this.stats.errors.increment();
+            return;
+        }
+
+        if (type != BinaryProtocol.MESSAGE && type != BinaryProtocol.PRIVATE) {
+            return;
+        }
+
+        // Skip the sender's id, the text starts with t=
+        int text = opcode + 1;
+
+        while (text < end && data[text] < 0) {
+            text++;
+        }
+
+        long sentAt = text + 3 < end && data[text + 1] == 't' && data[text + 2] == '=' ? digits(data, text + 3, end) : -1;
+
+        if (sentAt < this.stats.measureStart || sentAt >= this.stats.sendStop) {
+            return;
+        }
+
+        this.stats.received.increment();
+        this.stats.receivedBytes.add(end - start);
+        this.stats.latency.record(now - sentAt);
+    }
+
+    /**
+     * Find the send time embedded in a MESSAGE or PRIVATE line, the " t=" that follows the sender's name
+     *
+     * @return The send time, -1 if the line has none
+     */
+    private static long timestamp(byte[] data, int start, int end) {
+        for (int i = start; i + 3 < end; i++) {
+            if (data[i] == ' ' && data[i + 1] == 't' && data[i + 2] == '=') {
+                return digits(data, i + 3, end);
+            }
+        }
+
+        return -1;
+    }
+
+    private static long digits(byte[] data, int start, int end) {
+        long value = 0;
+
+        for (int i = start; i < end && data[i] >= '0' && data[i] <= '9'; i++) {
+            value = value * 10 + (data[i] - '0');
+        }
+
+        return value;
+    }
+
+    private static boolean startsWith(byte[] data, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean equals(byte[] data, int start, int end, byte[] expected) {
+        return end - start == expected.length && startsWith(data, start, end, expected);
+    }
+
+}